@@ -0,0 +1,53 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-collapse-directories/1.0/rpm-collapse-directories-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+if (!log.contains("Collapsed 5 entries of the %files section"))
+    throw new AssertionError("The collapsed entries should have been reported")
+
+List<String> spec = new File(basedir, "target/rpm/rpm-collapse-directories/SPECS/rpm-collapse-directories.spec").readLines()
+[
+        '%attr(644,-,-)  "/opt/collapse/lib/a"',
+        '%attr(644,-,-)  "/opt/collapse/lib/b/z.txt"',
+        '%attr(640,-,-)  "/opt/collapse/conf/*"'
+].each {
+    if (!spec.contains(it))
+        throw new AssertionError("${it} missing from spec file! ${spec}")
+}
+[
+        "/opt/collapse/lib/a/x.txt",
+        "/opt/collapse/lib/a/deep",
+        "/opt/collapse/conf/app.conf"
+].each { path ->
+    if (spec.any { it.contains(path) })
+        throw new AssertionError("${path} should have been collapsed! ${spec}")
+}
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/opt/collapse/lib",
+        "/opt/collapse/lib/a",
+        "/opt/collapse/lib/a/deep",
+        "/opt/collapse/lib/a/deep/d.txt",
+        "/opt/collapse/lib/a/x.txt",
+        "/opt/collapse/lib/a/y.txt",
+        "/opt/collapse/lib/b",
+        "/opt/collapse/lib/b/hosts",
+        "/opt/collapse/lib/b/z.txt",
+        "/opt/collapse/lib/extra",
+        "/opt/collapse/lib/extra/e.txt",
+        "/opt/collapse/conf/app.conf",
+        "/opt/collapse/conf/log.conf"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+if (lines.size() != 13)
+    throw new AssertionError("Unexpected files in RPM! ${lines}")
+
+return true
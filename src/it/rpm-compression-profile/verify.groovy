@@ -0,0 +1,30 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-compression-profile/1.0/rpm-compression-profile-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+// the max-ratio profile compresses with xz at level 9, with threads from rpm 4.14 on
+String logged = /Compressed [0-9.]+ MB of payload with xz level 9.* to [0-9.]+ MB \(ratio [0-9.]+\), /
+if (!(log =~ (logged + /build throughput [0-9.]+ MB\/s/)))
+    throw new AssertionError("The compression, ratio and build throughput should be logged")
+
+proc = ["rpm", "-qp", "--qf", "%{PAYLOADCOMPRESSOR} %{PAYLOADFLAGS}", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+String payload = proc.in.text
+if (!payload.startsWith("xz 9"))
+    throw new AssertionError("Unexpected payload compression: ${payload}")
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/opt/app/app.txt",
+        "/opt/app/run.sh"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+return true
@@ -0,0 +1,33 @@
+import java.nio.file.Files
+
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-dedupe-dependencies/1.0/rpm-dedupe-dependencies-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+File jar = new File(localRepositoryPath, "log4j/log4j/1.2.14/log4j-1.2.14.jar")
+if (!log.contains("Artifact deduplication: 1 files linked, ${jar.length()} bytes saved"))
+    throw new AssertionError("The second placement of log4j should have been linked")
+
+File buildroot = new File(basedir, "target/rpm/rpm-dedupe-dependencies/buildroot")
+File first = new File(buildroot, "opt/app/lib/log4j-1.2.14.jar")
+if (!Files.isSameFile(first.toPath(), new File(buildroot, "opt/app/component/lib/log4j.jar").toPath()))
+    throw new AssertionError("log4j.jar should be a link to the first copy")
+if (Files.isSameFile(first.toPath(), new File(buildroot, "opt/app/bin/log4j-1.2.14.jar").toPath()))
+    throw new AssertionError("The executable log4j-1.2.14.jar should be a copy")
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/opt/app/lib/log4j-1.2.14.jar",
+        "/opt/app/component/lib/log4j.jar",
+        "/opt/app/bin/log4j-1.2.14.jar"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+return true
@@ -0,0 +1,35 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-filter-binary/1.0/rpm-filter-binary-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+if (!log.contains("Mapping /opt/app/assets: filtered 2 files, copied 3 binary files unfiltered"))
+    throw new AssertionError("The binary files should have been reported")
+
+File sources = new File(basedir, "src/main/assets")
+File buildroot = new File(basedir, "target/rpm/rpm-filter-binary/buildroot/opt/app/assets")
+if (new File(buildroot, "app.properties").text != "version=1.0\n")
+    throw new AssertionError("app.properties was not filtered")
+if (new File(buildroot, "readme.tmpl").text != "title 1.0\n")
+    throw new AssertionError("readme.tmpl was not filtered")
+["logo.png", "data.bin2", "raw.dat"].each {
+    if (new File(buildroot, it).bytes != new File(sources, it).bytes)
+        throw new AssertionError("The binary ${it} should not have been filtered")
+}
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/opt/app/assets/app.properties",
+        "/opt/app/assets/logo.png",
+        "/opt/app/assets/data.bin2",
+        "/opt/app/assets/raw.dat"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+return true
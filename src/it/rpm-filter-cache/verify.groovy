@@ -0,0 +1,30 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-filter-cache/1.0/rpm-filter-cache-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+if (!log.contains("Filter cache: 0 files restored, 2 files filtered"))
+    throw new AssertionError("The first build should have filtered the files")
+if (!log.contains("Filter cache: 2 files restored, 0 files filtered"))
+    throw new AssertionError("The second build should have restored the files from the cache")
+
+File buildroot = new File(basedir, "target/rpm/rpm-filter-cache/buildroot/etc/app")
+if (new File(buildroot, "a.properties").text != "version=1.0\n")
+    throw new AssertionError("a.properties was not restored")
+if (new File(buildroot, "b.properties").text != "name=rpm-filter-cache\n")
+    throw new AssertionError("b.properties was not restored")
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/etc/app/a.properties",
+        "/etc/app/b.properties"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+return true
@@ -0,0 +1,35 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-filter-threads/1.0/rpm-filter-threads-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+if (!log.contains("Filtered 7 files using 4 threads"))
+    throw new AssertionError("All files should have been filtered by the filter threads")
+
+File buildroot = new File(basedir, "target/rpm/rpm-filter-threads/buildroot/etc/app")
+(1..5).each {
+    String content = new File(buildroot, "app${it}.properties").text
+    if (content != "name=rpm-filter-threads\nversion=1.0\nfile=${it}\n")
+        throw new AssertionError("app${it}.properties was not filtered: ${content}")
+}
+if (new File(buildroot, "sub/sub.properties").text != "sub=1.0\n")
+    throw new AssertionError("sub/sub.properties was not filtered")
+if (!new File(buildroot, "run.sh").canExecute())
+    throw new AssertionError("run.sh should have kept its mode")
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/etc/app/app1.properties",
+        "/etc/app/app5.properties",
+        "/etc/app/run.sh",
+        "/etc/app/sub/sub.properties"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+return true
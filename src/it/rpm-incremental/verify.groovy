@@ -0,0 +1,35 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-incremental/1.0/rpm-incremental-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+File workarea = new File(basedir, "target/rpm/rpm-incremental")
+if (!new File(workarea, "staging-manifest.txt").exists())
+    throw new AssertionError("The staging manifest has not been written")
+
+File staged = new File(workarea, "tmp-buildroot/opt/incremental")
+if (new File(staged, "old.txt").exists())
+    throw new AssertionError("The stale old.txt should have been removed")
+if (new File(staged, "app.properties").text != "version=1.0\n")
+    throw new AssertionError("app.properties has not been filtered")
+
+String log = new File(basedir, "build.log").text
+if (!log.contains("Incremental staging: 1 files copied, 1 unchanged, 1 stale removed"))
+    throw new AssertionError("The second build should only have copied the filtered file, whose filter settings changed")
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/opt/incremental/app.properties",
+        "/opt/incremental/kept.txt"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+if (lines.size() != 2)
+    throw new AssertionError("Expected: 2 files but got: ${lines.size()}")
+
+return true
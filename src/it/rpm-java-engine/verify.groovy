@@ -0,0 +1,63 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-java-engine/1.0/rpm-java-engine-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+if (new File(basedir, "target/rpm/rpm-java-engine/SPECS/rpm-java-engine.spec").exists())
+    throw new AssertionError("Spec file should not be written by the java engine")
+
+proc = ["rpm", "-K", "--nosignature", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+if (proc.exitValue() != 0)
+    throw new AssertionError("rpm -K failed: ${proc.in.text} ${proc.err.text}")
+
+proc = ["rpm", "-qp", "--queryformat", "%{NAME}-%{VERSION}-%{RELEASE} %{SUMMARY} %{GROUP}", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+def info = proc.in.text
+if (info != "rpm-java-engine-1.0-1 java engine Applications/Internet")
+    throw new AssertionError("Unexpected package info: ${info}")
+
+proc = ["rpm", "-qp", "--requires", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+def requires = proc.in.text.readLines()
+if (!requires.contains("bash >= 4.0"))
+    throw new AssertionError("Missing requirement: ${requires}")
+
+// the macros of the preamble are expanded like rpmbuild does
+proc = ["rpm", "-qp", "--provides", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+def provides = proc.in.text.readLines()
+if (!provides.contains("rpm-java-engine-api = 1.0-1"))
+    throw new AssertionError("Missing provide with expanded macros: ${provides}")
+
+proc = ["rpm", "-qp", "--scripts", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+def scripts = proc.in.text
+if (!scripts.contains("echo installed rpm-java-engine 1.0-1 100%\n"))
+    throw new AssertionError("Missing postinstall scriptlet with expanded macros: ${scripts}")
+
+proc = ["rpm", "-qp", "--changelog", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+if (!proc.in.text.contains("- initial package"))
+    throw new AssertionError("Missing changelog")
+
+proc = ["rpm", "-qvlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        /-rwxr-xr-x\s.+tu01\s+tg01\s.*\s\/opt\/java-engine\/bin\/start.sh$/,
+        /lrwxrwxrwx\s.+tu01\s+tg01\s.*\s\/opt\/java-engine\/bin\/run.sh -> \/opt\/java-engine\/bin\/start.sh$/,
+        /-rw-r-----\s.+root\s+root\s.*\s\/etc\/java-engine\/app.properties$/,
+        /drwxr-x---\s.+tu01\s+root\s.*\s\/var\/log\/java-engine$/
+].each {
+    if (!lines*.matches(it).contains(true))
+        throw new AssertionError("File/dir/link matching ${it.toString()} missing from RPM! ${lines}")
+}
+
+proc = ["rpm", "-qp", "--configfiles", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+if (!proc.in.text.readLines().contains("/etc/java-engine/app.properties"))
+    throw new AssertionError("app.properties should be a config file")
+
+return true
@@ -0,0 +1,33 @@
+import java.nio.file.Files
+
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-link-staging/1.0/rpm-link-staging-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+if (!log.contains("Link staging: {LINK=2}"))
+    throw new AssertionError("Both unfiltered files should have been linked")
+
+File buildroot = new File(basedir, "target/rpm/rpm-link-staging/buildroot")
+if (!Files.isSameFile(new File(buildroot, "opt/linked/hello.sh").toPath(),
+                      new File(basedir, "src/main/bin/hello.sh").toPath()))
+    throw new AssertionError("hello.sh should be a link to its source")
+if (Files.isSameFile(new File(buildroot, "opt/filtered/data.txt").toPath(),
+                     new File(basedir, "src/main/bin/data.txt").toPath()))
+    throw new AssertionError("The filtered data.txt should be a copy")
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/opt/linked/data.txt",
+        "/opt/linked/hello.sh",
+        "/opt/filtered/data.txt"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+return true
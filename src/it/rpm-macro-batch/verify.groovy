@@ -0,0 +1,37 @@
+String log = new File(basedir, "build.log").text
+
+if (!(log =~ /Evaluated [0-9]+ macros with one rpm execution/))
+    throw new AssertionError("Macros of rpm-batch not evaluated together!")
+
+if (!(log =~ /Unable to evaluate \[.*macro_batch_undefined.*\] together/))
+    throw new AssertionError("Macros of rpm-fallback not evaluated one at a time!")
+
+def eval(String macro) {
+    def proc = ["rpm", "--eval", macro].execute()
+    proc.waitFor()
+    return proc.in.text.trim()
+}
+
+String prefix = eval("%{_prefix}")
+String datadir = eval("%{_datadir}")
+
+[
+        "rpm-batch": [ "${prefix}/lib/macro-batch/hello.sh", "${datadir}/macro-batch/hello.sh" ],
+        "rpm-fallback": [ "${datadir}/macro-fallback/@@rpm-maven-plugin@@/hello.sh" ]
+].each { module, files ->
+    String name = "rpm-macro-batch-module-${module.substring(4)}"
+    File rpm = new File(basedir, "${module}/target/rpm/${name}/RPMS/noarch/${name}-1.0-1.noarch.rpm")
+    if (!rpm.exists())
+        throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+    def proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+    proc.waitFor()
+    def lines = proc.in.text.readLines()
+
+    files.each {
+        if (!lines.contains(it.toString()))
+            throw new AssertionError("${it} missing from ${rpm.name}! ${lines}")
+    }
+}
+
+return true
@@ -0,0 +1,22 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-macro-cache/1.0/rpm-macro-cache-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+Properties cache = new Properties()
+new File(basedir, "macros.properties").withInputStream { cache.load(it) }
+
+[ "fingerprint", "macro._prefix" ].each {
+    if (!cache.containsKey(it))
+        throw new AssertionError("${it} missing from the macro cache! ${cache}")
+}
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+String hello = cache.getProperty("macro._prefix") + "/lib/macro-cache/hello.sh"
+if (!lines.contains(hello))
+    throw new AssertionError("${hello} missing from RPM! ${lines}")
+
+return true
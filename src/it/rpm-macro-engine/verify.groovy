@@ -0,0 +1,37 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-macro-engine/1.0/rpm-macro-engine-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+
+if (!log.contains("Leaving %{?macro_engine_unknown:-unexpected} to rpm"))
+    throw new AssertionError("Unknown macro not left to rpm!")
+
+// evaluated without rpm
+[ "_prefix", "_datadir", "?_datadir:conditional" ].each { macro ->
+    if (log.readLines().any { it =~ /About to execute .*--eval.*/ && it.contains("%{${macro}}") })
+        throw new AssertionError("%{${macro}} evaluated by rpm!")
+}
+
+def eval(String value) {
+    def proc = ["rpm", "--eval", value].execute()
+    proc.waitFor()
+    return proc.in.text.trim()
+}
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "%{_prefix}/lib/macro-engine",
+        "%{_datadir}/macro-engine-%{?_datadir:conditional}",
+        "%{_datadir}/macro-engine%{?macro_engine_unknown:-unexpected}/fallback"
+].each {
+    String hello = eval(it) + "/hello.sh"
+    if (!lines.contains(hello))
+        throw new AssertionError("${hello} missing from RPM! ${lines}")
+}
+
+return true
@@ -0,0 +1,38 @@
+String log = new File(basedir, "build.log").text
+
+// the modules share the macros, so each is evaluated by one of them only
+def prefix = log.readLines().findAll { it =~ /About to execute .*--eval.*%\{_prefix\}/ }
+if (prefix.size() != 1)
+    throw new AssertionError("Expected %{_prefix} to be evaluated once, but got: ${prefix}")
+
+def eval(String macro) {
+    def proc = ["rpm", "--eval", macro].execute()
+    proc.waitFor()
+    return proc.in.text.trim()
+}
+
+String prefixdir = eval("%{_prefix}")
+String datadir = eval("%{_datadir}")
+
+[
+        "first": [ "${prefixdir}/lib/macro-session-first/hello.sh", "${datadir}/macro-session-first/hello.sh" ],
+        "second": [ "${prefixdir}/lib/macro-session-second/hello.sh", "${datadir}/macro-session-second/hello.sh" ],
+        // failing to evaluate its macros together does not fail the modules waiting for %{_datadir}
+        "fallback": [ "${datadir}/macro-session/@@rpm-maven-plugin@@/hello.sh" ]
+].each { module, files ->
+    String name = "rpm-macro-session-module-${module}"
+    File rpm = new File(basedir, "rpm-${module}/target/rpm/${name}/RPMS/noarch/${name}-1.0-1.noarch.rpm")
+    if (!rpm.exists())
+        throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+    def proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+    proc.waitFor()
+    def lines = proc.in.text.readLines()
+
+    files.each {
+        if (!lines.contains(it.toString()))
+            throw new AssertionError("${it} missing from ${rpm.name}! ${lines}")
+    }
+}
+
+return true
@@ -0,0 +1,42 @@
+File repository = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-multi-arch/1.0")
+
+String log = new File(basedir, "build.log").text
+if (!log.contains("Linked 1 shared files into"))
+    throw new AssertionError("The shared files should be staged once and linked for each architecture")
+
+// the package of the first architecture is the primary artifact, it is not attached with a classifier
+if (new File(repository, "rpm-multi-arch-1.0-x86_64.rpm").exists())
+    throw new AssertionError("The primary artifact should not be attached with its architecture as classifier")
+
+[
+        "x86_64": "rpm-multi-arch-1.0.rpm",
+        "aarch64": "rpm-multi-arch-1.0-aarch64.rpm"
+].each { arch, name ->
+    String content = "${arch} library"
+    File rpm = new File(repository, name)
+    if (!rpm.exists())
+        throw new AssertionError("${rpm.getAbsolutePath()} does not exist")
+
+    proc = ["rpm", "-qp", "--qf", "%{ARCH}", rpm.getAbsolutePath()].execute()
+    proc.waitFor()
+    String actual = proc.in.text
+    if (actual != arch)
+        throw new AssertionError("Unexpected architecture of ${rpm.name}: ${actual}")
+
+    proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+    proc.waitFor()
+    lines = proc.in.text.readLines()
+    [
+            "/opt/app/app.txt",
+            "/opt/app/lib.txt"
+    ].each {
+        if (!lines.contains(it))
+            throw new AssertionError("${it} missing from ${rpm.name}! ${lines}")
+    }
+
+    File staged = new File(basedir, "target/rpm/rpm-multi-arch-${arch}/buildroot/opt/app/lib.txt")
+    if (staged.text.trim() != content)
+        throw new AssertionError("Unexpected content of ${staged}: ${staged.text}")
+}
+
+return true
@@ -0,0 +1,22 @@
+File rpm = new File(localRepositoryPath,
+        "org/codehaus/mojo/rpm/its/rpm-parallel-shared-directory/1.0/rpm-parallel-shared-directory-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+File lib = new File(basedir, "target/rpm/rpm-parallel-shared-directory/buildroot/opt/shared/app/lib")
+(1..8).each {
+    if (new File(lib, "m${it}.txt").text != "file ${it}\n")
+        throw new AssertionError("m${it}.txt was not staged")
+}
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+(1..8).each {
+    if (!lines.contains("/opt/shared/app/lib/m${it}.txt".toString()))
+        throw new AssertionError("/opt/shared/app/lib/m${it}.txt missing from RPM! ${lines}")
+}
+
+return true
@@ -0,0 +1,26 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-parallel-staging/1.0/rpm-parallel-staging-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+File buildroot = new File(basedir, "target/rpm/rpm-parallel-staging/buildroot")
+if (new File(buildroot, "opt/parallel/a/shared.txt").text != "second\n")
+    throw new AssertionError("The last mapping writing shared.txt should win")
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/opt/parallel/a/a1.txt",
+        "/opt/parallel/a/shared.txt",
+        "/opt/parallel/b/b1.txt"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+if (lines.size() != 3)
+    throw new AssertionError("Expected: 3 files but got: ${lines.size()}")
+
+return true
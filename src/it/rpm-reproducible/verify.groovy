@@ -0,0 +1,35 @@
+import java.security.MessageDigest
+
+String sha256(File file) {
+    if (!file.exists())
+        throw new AssertionError("${file.getAbsolutePath()} does not exist")
+    return MessageDigest.getInstance("SHA-256").digest(file.bytes).encodeHex().toString()
+}
+
+// the second build starts from a clean build root, so every file has a new modification time
+File first = new File(basedir, "first.rpm")
+File second = new File(basedir, "second.rpm")
+if (sha256(first) != sha256(second))
+    throw new AssertionError("Building the same inputs twice gave different packages")
+
+proc = ["rpm", "-qp", "--qf", "%{RELEASE} %{BUILDTIME} %{BUILDHOST}", second.getAbsolutePath()].execute()
+proc.waitFor()
+String header = proc.in.text
+if (header != "SNAPSHOT20230101000000 1672531200 reproducible")
+    throw new AssertionError("Unexpected release, build time or build host: ${header}")
+
+proc = ["rpm", "-qp", "--qf", "[%{FILENAMES} %{FILEMTIMES}\n]", second.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+[
+        "/opt/app/app.txt",
+        "/opt/app/run.sh"
+].each { path ->
+    String line = lines.find { it.startsWith(path + " ") }
+    if (line == null)
+        throw new AssertionError("${path} missing from RPM! ${lines}")
+    if (Long.parseLong(line.substring(path.length() + 1)) > 1672531200L)
+        throw new AssertionError("${path} is newer than the timestamp: ${line}")
+}
+
+return true
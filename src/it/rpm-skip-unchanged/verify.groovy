@@ -0,0 +1,29 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-skip-unchanged/1.0/rpm-skip-unchanged-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+File fingerprint = new File(basedir, "target/rpm/rpm-skip-unchanged/RPMS/noarch/rpm-skip-unchanged-1.0-1.noarch.rpm.fingerprint")
+if (!fingerprint.exists())
+    throw new AssertionError("${fingerprint.getAbsolutePath()} does not exist");
+
+String log = new File(basedir, "build.log").text
+// the second build is skipped, the third has other user properties
+if (log.count("are unchanged since the previous build, skipping.") != 1)
+    throw new AssertionError("Only the second build should have been skipped")
+if (log.count("Creating spec file") != 2)
+    throw new AssertionError("The first and the third build should have built the package")
+
+proc = ["rpm", "-qlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        "/opt/app/app.txt",
+        "/opt/app/run.sh"
+].each {
+    if (!lines.contains(it))
+        throw new AssertionError("${it} missing from RPM! ${lines}")
+}
+
+return true
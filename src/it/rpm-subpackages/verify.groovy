@@ -0,0 +1,35 @@
+File repository = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-subpackages/1.0")
+
+def query(File rpm, List<String> args) {
+    proc = (["rpm"] + args + [rpm.getAbsolutePath()]).execute()
+    proc.waitFor()
+    return proc.in.text
+}
+
+[
+        "rpm-subpackages-1.0.rpm": ["/opt/app/app.txt"],
+        "rpm-subpackages-1.0-docs.rpm": ["/opt/app/docs", "/opt/app/docs/manual.txt"]
+].each { file, expected ->
+    File rpm = new File(repository, file)
+    if (!rpm.exists())
+        throw new AssertionError("${rpm.getAbsolutePath()} does not exist")
+
+    lines = query(rpm, ["-qlp"]).readLines()
+    if (lines != expected)
+        throw new AssertionError("Unexpected files in ${file}: ${lines}")
+}
+
+File docs = new File(repository, "rpm-subpackages-1.0-docs.rpm")
+String name = query(docs, ["-qp", "--qf", "%{NAME} %{SUMMARY}"])
+if (name != "rpm-subpackages-docs The documentation of rpm-subpackages")
+    throw new AssertionError("Unexpected name and summary of the sub-package: ${name}")
+
+String requires = query(docs, ["-qp", "--requires"])
+if (!requires.contains("rpm-subpackages = 1.0"))
+    throw new AssertionError("The sub-package should require the package: ${requires}")
+
+String scripts = query(docs, ["-qp", "--scripts"])
+if (!scripts.contains("echo installed the documentation"))
+    throw new AssertionError("The postinstall scriptlet should belong to the sub-package: ${scripts}")
+
+return true
@@ -0,0 +1,36 @@
+File rpm = new File(localRepositoryPath, "org/codehaus/mojo/rpm/its/rpm-virtual-buildroot/1.0/rpm-virtual-buildroot-1.0.rpm")
+
+if (!rpm.exists())
+    throw new AssertionError("${rpm.getAbsolutePath()} does not exist");
+
+File buildroot = new File(basedir, "target/rpm/rpm-virtual-buildroot/tmp-buildroot")
+
+// filtered files are staged, everything else is streamed from the original location
+if (!new File(buildroot, "opt/virtual/bin/start.sh").isFile())
+    throw new AssertionError("Filtered file should be staged")
+if (new File(buildroot, "etc/virtual/app.properties").exists())
+    throw new AssertionError("Unfiltered file should not be staged")
+
+proc = ["rpm", "-K", "--nosignature", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+if (proc.exitValue() != 0)
+    throw new AssertionError("rpm -K failed: ${proc.in.text} ${proc.err.text}")
+
+proc = ["rpm", "-qvlp", rpm.getAbsolutePath()].execute()
+proc.waitFor()
+lines = proc.in.text.readLines()
+
+[
+        /-rwxr-xr-x\s.+tu01\s+tg01\s.*\s\/opt\/virtual\/bin\/start.sh$/,
+        /lrwxrwxrwx\s.+tu01\s+tg01\s.*\s\/opt\/virtual\/bin\/run.sh -> \/opt\/virtual\/bin\/start.sh$/,
+        /-rw-r-----\s.+root\s+root\s+27\s.*\s\/etc\/virtual\/app.properties$/,
+        /drwxr-x---\s.+tu01\s+root\s.*\s\/var\/log\/virtual$/
+].each {
+    if (!lines*.matches(it).contains(true))
+        throw new AssertionError("File/dir/link matching ${it.toString()} missing from RPM! ${lines}")
+}
+
+if (lines.size() != 5)
+    throw new AssertionError("Expected: 5 file/dir/links but got: ${lines.size()}")
+
+return true
@@ -20,29 +20,48 @@ package org.codehaus.mojo.rpm;
  */
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
 import org.apache.maven.settings.Server;
 import org.apache.maven.settings.Settings;
 import org.apache.maven.shared.filtering.FilterWrapper;
@@ -67,6 +86,21 @@ public abstract class AbstractRPMMojo
     implements RPMVersionableMojo
 {
 
+    /**
+     * {@code Pattern} to identify macros.
+     *
+     * @since 2.1-alpha-1
+     */
+    private static final Pattern MACRO_PATTERN = Pattern.compile( "%\\{([^}]*)\\}" );
+
+    private static final int SPEC_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The system properties left out of the {@link #computeFilterFingerprint() filter fingerprint}.
+     */
+    private static final List<String> VOLATILE_SYSTEM_PROPERTIES =
+        Arrays.asList( "sun.java.command", "env.MAVEN_CMD_LINE_ARGS" );
+
     /**
      * The name portion of the output file name.
      */
@@ -368,6 +402,43 @@ public abstract class AbstractRPMMojo
     @Parameter
     private List<Mapping> mappings = Collections.emptyList();
 
+    /**
+     * The sub-packages built from the same spec file as the package, each with its own
+     * <a href="map-params.html">mappings</a>. The files of all packages are staged into the same build root, and
+     * rpmbuild writes every package in a single run. Each sub-package is attached with its name as classifier, prefixed
+     * with the classifier of the execution if there is one. Scriptlets and triggers select a sub-package by its full
+     * name, <code><i>name</i>-<i>subpackage name</i></code>. Requires the <code>rpmbuild</code>
+     * {@link #packagingEngine}.
+     *
+     * <pre>
+     *  &lt;subpackages>
+     *      &lt;subpackage>
+     *          &lt;name>docs&lt;/name>
+     *          &lt;summary>optional, the summary of the package if not set&lt;/summary>
+     *          &lt;description>optional, the summary if not set&lt;/description>
+     *          &lt;group>optional&lt;/group>
+     *          &lt;requires>optional&lt;/requires>
+     *          &lt;provides>optional&lt;/provides>
+     *          &lt;conflicts>optional&lt;/conflicts>
+     *          &lt;obsoletes>optional&lt;/obsoletes>
+     *          &lt;mappings>
+     *              ...
+     *          &lt;/mappings>
+     *      &lt;/subpackage>
+     *  &lt;/subpackages>
+     * </pre>
+     *
+     * @since 2.3.1
+     */
+    @Parameter
+    private List<Subpackage> subpackages;
+
+    /**
+     * The {@link #mappings} of the package itself, {@link #mappings} holds those of the {@link #subpackages} as well
+     * once the execution started.
+     */
+    private List<Mapping> packageMappings = Collections.emptyList();
+
     /**
      * The prepare scriptlet;
      *
@@ -502,6 +573,12 @@ public abstract class AbstractRPMMojo
     @Parameter( defaultValue = "${session}", readonly = true, required = true )
     private MavenSession session;
 
+    /**
+     * @since 2.3.1
+     */
+    @Parameter( defaultValue = "${mojoExecution}", readonly = true, required = true )
+    private MojoExecution mojoExecution;
+
     /**
      * @since 2.1-alpha-4
      */
@@ -666,6 +743,298 @@ public abstract class AbstractRPMMojo
     @Parameter(defaultValue = "false")
     private boolean hardLinkDependencies;
 
+    /**
+     * The engine used to create the package. Supported values are:
+     * <ul>
+     * <li><code>rpmbuild</code> - generate a spec file and execute <i>rpmbuild</i> (the default).</li>
+     * <li><code>java</code> - write the package directly from the staged files, without a spec file or <i>rpmbuild</i>.
+     * This does not support the <i>prepare</i>, <i>install</i> and <i>clean</i> scriptlets, triggers, scriptlets for
+     * sub packages or an icon, and does not determine automatic provides and requires. The payload is compressed with
+     * gzip.</li>
+     * </ul>
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.packagingEngine", defaultValue = "rpmbuild" )
+    private String packagingEngine;
+
+    /**
+     * Indicates if files which are not filtered should be streamed from their original location into the package
+     * instead of being copied into the build root. Only directories and filtered files are staged. This requires the
+     * <code>java</code> {@link #packagingEngine}.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.virtualBuildroot", defaultValue = "false" )
+    private boolean virtualBuildroot;
+
+    /**
+     * The profile selecting the compression of the payload. Supported values are:
+     * <ul>
+     * <li><code>fast-dev</code> - fast compression at a low level with all threads, for development builds.</li>
+     * <li><code>balanced</code> - good compression with all threads.</li>
+     * <li><code>max-ratio</code> - the smallest package, for release builds.</li>
+     * </ul>
+     * The codec, level and threads are chosen for the version of rpm, and the ratio achieved and the throughput of
+     * the build are logged. If not set, the payload is compressed the way rpm is configured to.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.compressionProfile" )
+    private String compressionProfile;
+
+    /**
+     * The number of threads compressing the payload with a {@link #compressionProfile}. <code>0</code> uses all
+     * available processors.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.compressionThreads", defaultValue = "0" )
+    private int compressionThreads;
+
+    /**
+     * The number of lines of rpmbuild output kept to be logged if rpmbuild fails. The output is not logged line by
+     * line (unless debug logging is enabled): a successful build only logs the warnings and errors, the packages
+     * written and the number of lines.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.rpmbuildOutputLines", defaultValue = "100" )
+    private int rpmbuildOutputLines;
+
+    /**
+     * Indicates if the whole output of rpmbuild is written to <i>rpmbuild.log</i> in the {@link #workarea}. If rpmbuild
+     * fails, the whole output is logged instead of the last {@link #rpmbuildOutputLines}.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.rpmbuildLog", defaultValue = "false" )
+    private boolean rpmbuildLog;
+
+    /**
+     * The number of threads used to copy the mappings into the build root. With more than one thread, mappings are
+     * copied concurrently, each thread using its own archiver. Mappings sharing a destination are always copied in the
+     * order they are configured.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.stagingThreads", defaultValue = "1" )
+    private int stagingThreads;
+
+    /**
+     * The number of threads used to filter the files of mappings with <code>filter</code> enabled. With more than one
+     * thread, the files are filtered concurrently while the staging threads continue with the following files. All
+     * files share the filter settings, which are created once per build.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.filterThreads", defaultValue = "1" )
+    private int filterThreads;
+
+    /**
+     * Indicates if binary files of sources with <code>filter</code> enabled are copied unchanged instead of being
+     * filtered. Files are binary if their extension is one of the {@link #nonFilteredFileExtensions} or of common
+     * binary formats (e.g. <i>png</i>, <i>jar</i> or <i>ttf</i>), or, unless their extension is one of the
+     * {@link #filteredFileExtensions} or of common text formats, if their first bytes contain a <code>NUL</code>
+     * byte. The number of filtered and binary files is logged for each mapping. Disabled by default, so that every
+     * file of such a source is filtered, as before.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.detectBinaryFiles", defaultValue = "false" )
+    private boolean detectBinaryFiles;
+
+    /**
+     * Extensions (e.g. <code>dat</code>) of further binary files, which are never filtered. Only used if
+     * {@link #detectBinaryFiles} is enabled.
+     *
+     * @since 2.3.1
+     */
+    @Parameter
+    private List<String> nonFilteredFileExtensions;
+
+    /**
+     * Extensions (e.g. <code>tmpl</code>) of further text files, which are always filtered without probing their
+     * content. Only used if {@link #detectBinaryFiles} is enabled.
+     *
+     * @since 2.3.1
+     */
+    @Parameter
+    private List<String> filteredFileExtensions;
+
+    /**
+     * Indicates if filtered files are cached in the {@link #filterCacheDirectory}. A file whose content has been
+     * filtered before with the same filter settings (the {@link #escapeString}, the content of the {@link #filters}
+     * files and of the pom, the project and its properties and the user and system properties including the
+     * environment) is restored from the cache instead of being filtered again.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.cacheFilteredFiles", defaultValue = "false" )
+    private boolean cacheFilteredFiles;
+
+    /**
+     * The directory the {@link #cacheFilteredFiles filter cache} is stored in.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.filterCacheDirectory",
+                defaultValue = "${settings.localRepository}/.cache/rpm-maven-plugin/filtered" )
+    private File filterCacheDirectory;
+
+    /**
+     * The maximum size of the {@link #cacheFilteredFiles filter cache} in megabytes. The least recently used files are
+     * removed once the cache is larger.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.filterCacheSize", defaultValue = "100" )
+    private int filterCacheSize;
+
+    /**
+     * Indicates if the build root is kept between builds. Only files whose source, mode or filter settings (including
+     * the system properties and the environment) changed since the previous build are copied again and files no longer
+     * part of any mapping are removed. What was staged is recorded in a manifest in the {@link #workarea}. Without a
+     * manifest the build root is cleaned as usual.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.incremental", defaultValue = "false" )
+    private boolean incremental;
+
+    /**
+     * Indicates if files which are not filtered are staged as hard links to their source instead of copies. Files on
+     * another file system than the {@link #workarea}, or which need other permissions than their source has, are
+     * still copied.
+     * <br />
+     * <b>NOTE:</b> The staged files share their content with the originals, so any script modifying files in the build
+     * root in place modifies the originals.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.linkStaging", defaultValue = "false" )
+    private boolean linkStaging;
+
+    /**
+     * Indicates if an artifact or dependency staged by several mappings is only copied once. Further placements of the
+     * same content are hard links to the first copy. The number of linked files and the bytes saved are logged.
+     * Placements which need other permissions or package attributes (e.g. <code>filemode</code> or
+     * <code>configuration</code> of the mapping) than the first copy are still copied, as rpm installs the linked
+     * placements as hard links as well.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.dedupeDependencies", defaultValue = "false" )
+    private boolean dedupeDependencies;
+
+    /**
+     * Indicates if the values determined by executing rpm (the host architecture and vendor and any evaluated macros)
+     * are cached in the {@link #macroCacheFile} and reused by later builds. The cache is discarded whenever the rpm
+     * executable, the macro files of the rpm installation, the user's <i>.rpmmacros</i> or the
+     * {@link #defineStatements} change.
+     * <br />
+     * <b>NOTE:</b> Macros whose value depends on anything else (e.g. the date or the environment) are cached as well.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.cacheMacros", defaultValue = "false" )
+    private boolean cacheMacros;
+
+    /**
+     * How macros are evaluated:
+     * <ul>
+     * <li><code>rpm</code> - by executing <i>rpm --eval</i> (the default).</li>
+     * <li><code>java</code> - by reading the macro files of the rpm installation, the user's <i>.rpmmacros</i> and
+     * the {@link #defineStatements}, without executing rpm. Macros which cannot be evaluated with certainty (shell
+     * commands, built-ins such as <i>%{lua:...}</i>, parametric macros, macros which depend on the target platform or
+     * are not defined by any of the files) are still evaluated by executing rpm.</li>
+     * </ul>
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.macroEngine", defaultValue = "rpm" )
+    private String macroEngine;
+
+    /**
+     * The file the {@link #cacheMacros macro cache} is stored in.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.macroCacheFile",
+                defaultValue = "${settings.localRepository}/.cache/rpm-maven-plugin/macros.properties" )
+    private File macroCacheFile;
+
+    /**
+     * Indicates if the <i>%files</i> section of the spec file lists whole directories instead of each file below them,
+     * where this does not change the content of the package. A directory of a mapping with
+     * <code>recurseDirectories</code> is listed once with all its content if nothing below it belongs to another
+     * mapping or is a soft link and the mapping has the same attributes for files and directories. The files of a
+     * directory which holds only files of the mapping (and no hidden files) are listed with a single <code>*</code>
+     * wildcard. This keeps the spec file small for mappings with many files, which rpmbuild processes much faster.
+     * Nothing is collapsed if there is an {@link #installScriptlet}, as it may add files to the build root.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.collapseDirectories", defaultValue = "false" )
+    private boolean collapseDirectories;
+
+    /**
+     * Indicates if building the package is skipped if its inputs are unchanged since the previous build. The
+     * fingerprint of the inputs covers the configuration and version of the plugin, the project and its properties, the
+     * user and system properties (including the environment, which filtering interpolates), the version, release and
+     * architecture of the package, the evaluated macros, the content of scriptlet files and the path, size,
+     * permissions and content of every source, artifact and dependency of the mappings. It is written next to the
+     * package. If the package of the previous build with the same fingerprint still exists, staging, writing the
+     * spec file, rpmbuild and signing are skipped and the existing package is attached again.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.skipUnchanged", defaultValue = "false" )
+    private boolean skipUnchanged;
+
+    /**
+     * Indicates if the package is built reproducibly, so that building the same inputs again gives the same package.
+     * The time of the build is replaced by the <code>SOURCE_DATE_EPOCH</code> environment variable or, if it is not
+     * set, the {@link #outputTimestamp}: it is the build time of the package and the timestamp appended to the release
+     * of <i>SNAPSHOT</i> versions, and no file of the package is newer. The paths of each mapping are listed in order
+     * in the spec file and rpmbuild is told to use the timestamp as well.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.reproducible", defaultValue = "false" )
+    private boolean reproducible;
+
+    /**
+     * The timestamp of a {@link #reproducible} build, in seconds since the epoch or as ISO 8601 date and time with
+     * offset (e.g. <code>2023-01-01T00:00:00Z</code>). The <code>SOURCE_DATE_EPOCH</code> environment variable takes
+     * precedence.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( defaultValue = "${project.build.outputTimestamp}" )
+    private String outputTimestamp;
+
+    /**
+     * The architectures to build a package for in this execution, e.g. <code>noarch</code>, <code>x86_64</code> and
+     * <code>aarch64</code>. The sources without a
+     * <a href="source-params.html#targetArchitecture">targetArchitecture</a> are staged once and shared by all packages
+     * through hard links, the sources of each architecture are staged on top of them. The packages are built
+     * concurrently and each is attached with the architecture as classifier, prefixed with the classifier of the
+     * execution if there is one, unless it is the primary artifact. This replaces {@link #needarch} and cannot be
+     * combined with {@link #incremental} staging, a {@link #virtualBuildroot}, {@link #skipUnchanged} or
+     * {@link #copyTo}.
+     *
+     * @since 2.3.1
+     */
+    @Parameter
+    private List<String> targetArchitectures;
+
+    /**
+     * Attaches the packages of the {@link #targetArchitectures}.
+     */
+    @Component
+    protected MavenProjectHelper mavenProjectHelper;
+
     //////////////////////////////////////////////////////////////////////////
 
     /**
@@ -685,15 +1054,70 @@ public abstract class AbstractRPMMojo
     private final Map<String, List<SoftlinkSource>> linkTargetToSources =
         new LinkedHashMap<String, List<SoftlinkSource>>();
 
-    /** The root of the build area prior to calling rpmbuild. */
+    /**
+     * The root of the build area the files are staged into. The same as {@link #rpmBuildroot} unless staging is
+     * {@link #incremental} or the {@link #packagingEngine} is <code>java</code>.
+     */
     private File buildroot;
 
     /** The root of the build area as used by rpmbuild. */
     private File rpmBuildroot;
 
+    /**
+     * The files recorded instead of copied into {@link #buildroot}, {@code null} unless {@link #virtualBuildroot} is
+     * enabled.
+     */
+    private VirtualBuildroot virtualBuildrootManifest;
+
+    /**
+     * What has been staged into {@link #buildroot}, {@code null} unless {@link #incremental} is enabled.
+     */
+    private StagingManifest stagingManifest;
+
+    /**
+     * Links the staged files, {@code null} unless {@link #linkStaging} is enabled.
+     */
+    private StagingLinker stagingLinker;
+
+    /**
+     * Everything staged into {@link #buildroot}.
+     */
+    private StagedFileIndex stagedFileIndex;
+
+    /**
+     * The content of the artifacts staged into {@link #buildroot}, {@code null} unless {@link #dedupeDependencies} is
+     * enabled.
+     */
+    private StagedContentRegistry stagedContentRegistry;
+
+    /**
+     * The values determined by executing rpm, {@code null} unless {@link #cacheMacros} is enabled.
+     */
+    private MacroCache macroCache;
+
+    /**
+     * Evaluates macros without executing rpm, {@code null} unless the <code>java</code> {@link #macroEngine} is used.
+     */
+    private MacroEvaluator macroEvaluator;
+
+    /**
+     * The values determined by executing rpm, shared by all executions in the {@link #session}.
+     */
+    private SessionMacros sessionMacros;
+
     /** The changelog string. */
     private String changelog;
 
+    /**
+     * The profile of {@link #compressionProfile}.
+     */
+    private PayloadCompression.Profile payloadCompression;
+
+    /**
+     * The timestamp replacing the time of the build, {@code null} unless {@link #reproducible} is enabled.
+     */
+    private Date reproducibleTimestamp;
+
     /**
      * This is not set until {@link #execute() is called}.
      *
@@ -744,12 +1168,40 @@ public abstract class AbstractRPMMojo
             this.prefixes.add(prefix);
         }
 
+        // the files of the sub-packages are staged with those of the package
+        packageMappings = mappings != null ? mappings : Collections.<Mapping>emptyList();
+        if ( subpackages != null && !subpackages.isEmpty() )
+        {
+            mappings = new ArrayList<Mapping>( packageMappings );
+            for ( Subpackage subpackage : subpackages )
+            {
+                mappings.addAll( subpackage.getMappings() );
+            }
+        }
+
+        if ( "java".equals( macroEngine ) )
+        {
+            macroEvaluator = MacroEvaluator.load( defineStatements, getLog() );
+        }
+        else if ( !"rpm".equals( macroEngine ) )
+        {
+            throw new MojoFailureException( "Unknown macroEngine: " + macroEngine );
+        }
+        reproducibleTimestamp = reproducible ? SourceDateEpoch.resolve( outputTimestamp ) : null;
+        sessionMacros = SessionMacros.get( session );
+        macroCache = cacheMacros ? MacroCache.open( macroCacheFile, defineStatements, getLog() ) : null;
         helper = new RPMHelper( this );
 
         checkParams( helper );
 
         final String classifier = getClassifier();
 
+        if ( targetArchitectures != null && !targetArchitectures.isEmpty() )
+        {
+            executeArchitectures( classifier );
+            return;
+        }
+
         if ( classifier != null )
         {
             workarea = new File( workarea, name + '-' + classifier );
@@ -759,20 +1211,58 @@ public abstract class AbstractRPMMojo
             workarea = new File( workarea, name );
         }
 
+        final String buildFingerprint = skipUnchanged ? computeBuildFingerprint() : null;
+        final File buildFingerprintFile = new File( getRPMFile().getPath() + ".fingerprint" );
+        if ( buildFingerprint != null && isBuilt()
+            && BuildFingerprint.matches( buildFingerprintFile, buildFingerprint ) )
+        {
+            getLog().info( "The inputs of " + getRPMFile().getAbsolutePath()
+                + " are unchanged since the previous build, skipping." );
+
+            attachSubpackages( classifier );
+            afterExecution();
+
+            if ( this.copyTo != null ) {
+                makeSecondCopy();
+            }
+            return;
+        }
+
         buildWorkArea();
 
-        // set up the maven file filter and FilteringDirectoryArchiver
         setDefaultWrappers();
-        final FilteringDirectoryArchiver copier = new FilteringDirectoryArchiver();
-        copier.setMavenFileFilter( mavenFileFilter );
-        new FileHelper( this, copier ).installFiles();
+        installFiles( FileHelper.Scope.ALL );
 
-        writeSpecFile();
+        if ( isJavaPackagingEngine() )
+        {
+            new RPMPackageWriter( this ).writePackage();
 
-        this.loadGpgPassphrase();
+            this.loadGpgPassphrase();
+
+            helper.signPackage();
+        }
+        else
+        {
+            writeSpecFile();
 
-        helper.buildPackage();
+            this.loadGpgPassphrase();
 
+            helper.buildPackage();
+        }
+
+        if ( buildFingerprint != null && isBuilt() )
+        {
+            try
+            {
+                BuildFingerprint.write( buildFingerprintFile, buildFingerprint );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to write " + buildFingerprintFile.getAbsolutePath(), e );
+            }
+        }
+
+        attachSubpackages( classifier );
         afterExecution();
 
         if ( this.copyTo != null ) {
@@ -780,6 +1270,157 @@ public abstract class AbstractRPMMojo
         }
     }
 
+    /**
+     * Builds a package for each of the {@link #targetArchitectures}, see {@link ArchitectureFanOut}.
+     *
+     * @param classifier The classifier of the execution, may be {@code null}.
+     * @throws MojoExecutionException if an error occurs
+     * @throws MojoFailureException if a failure occurs
+     */
+    private void executeArchitectures( String classifier )
+        throws MojoExecutionException, MojoFailureException
+    {
+        final File baseWorkarea = workarea;
+        final String prefix = classifier != null ? name + '-' + classifier : name;
+
+        workarea = new File( baseWorkarea, prefix + "-shared" );
+        buildWorkArea();
+        final File sharedBuildroot = buildroot;
+        setDefaultWrappers();
+        installFiles( FileHelper.Scope.SHARED );
+
+        final ArchitectureFanOut fanOut = new ArchitectureFanOut( this );
+        fanOut.snapshot();
+
+        this.loadGpgPassphrase();
+
+        final Map<String, File> packages = new LinkedHashMap<String, File>();
+        final List<RPMHelper.Build> builds = new ArrayList<RPMHelper.Build>();
+        for ( String architecture : targetArchitectures )
+        {
+            targetArch = architecture.trim();
+            workarea = new File( baseWorkarea, prefix + '-' + targetArch );
+            buildWorkArea();
+            fanOut.restore();
+            try
+            {
+                final int linked = ArchitectureFanOut.linkTree( sharedBuildroot, buildroot, stagedFileIndex );
+                getLog().info( "Linked " + linked + " shared files into " + buildroot.getAbsolutePath() );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to link the shared files into " + buildroot.getAbsolutePath()
+                    + ": " + e.getMessage(), e );
+            }
+            installFiles( FileHelper.Scope.ARCHITECTURE );
+
+            if ( isJavaPackagingEngine() )
+            {
+                new RPMPackageWriter( this ).writePackage();
+                helper.signPackage();
+            }
+            else
+            {
+                writeSpecFile();
+                builds.add( helper.prepareBuild() );
+            }
+            packages.put( targetArch, getRPMFile() );
+        }
+
+        ArchitectureFanOut.runAll( builds );
+
+        afterExecution( packages );
+
+        for ( Map.Entry<String, File> entry : packages.entrySet() )
+        {
+            final String packageClassifier = ( classifier != null ? classifier + '-' : "" ) + entry.getKey();
+            // deployed as the primary artifact already
+            if ( !entry.getValue().equals( project.getArtifact().getFile() ) )
+            {
+                getLog().info( "Attaching " + entry.getValue().getAbsolutePath() + " with classifier "
+                    + packageClassifier );
+                mavenProjectHelper.attachArtifact( project, "rpm", packageClassifier, entry.getValue() );
+            }
+            targetArch = entry.getKey();
+            workarea = new File( baseWorkarea, prefix + '-' + targetArch );
+            attachSubpackages( packageClassifier );
+        }
+    }
+
+    /**
+     * @return Indicates if the package and the packages of all {@link #subpackages} exist.
+     */
+    private boolean isBuilt()
+    {
+        if ( !getRPMFile().isFile() )
+        {
+            return false;
+        }
+        for ( Subpackage subpackage : getSubpackages() )
+        {
+            if ( !getRPMFile( subpackage ).isFile() )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Attaches the packages of the {@link #subpackages}.
+     *
+     * @param classifier The classifier of the package, prefixed to the names of the sub-packages, may be {@code null}.
+     */
+    private void attachSubpackages( String classifier )
+    {
+        for ( Subpackage subpackage : getSubpackages() )
+        {
+            final String subpackageClassifier = ( classifier != null ? classifier + '-' : "" ) + subpackage.getName();
+            final File file = getRPMFile( subpackage );
+            getLog().info( "Attaching " + file.getAbsolutePath() + " with classifier " + subpackageClassifier );
+            mavenProjectHelper.attachArtifact( project, "rpm", subpackageClassifier, file );
+        }
+    }
+
+    /**
+     * Stages the files of the mappings into the {@link #buildroot}.
+     *
+     * @param scope The sources to stage.
+     * @throws MojoExecutionException if an error occurs
+     * @throws MojoFailureException if a failure occurs
+     */
+    private void installFiles( FileHelper.Scope scope )
+        throws MojoExecutionException, MojoFailureException
+    {
+        final FilteringDirectoryArchiver copier = new FilteringDirectoryArchiver();
+        copier.setMavenFileFilter( mavenFileFilter );
+        copier.setStagingManifest( stagingManifest );
+        copier.setStagingLinker( stagingLinker );
+        copier.setStagedFileIndex( stagedFileIndex );
+        copier.setStagedContentRegistry( stagedContentRegistry );
+        final FilterPipeline filterPipeline = filterThreads > 1 ? new FilterPipeline( filterThreads ) : null;
+        copier.setFilterPipeline( filterPipeline );
+        copier.setBinaryFileDetector( detectBinaryFiles
+                        ? new BinaryFileDetector( nonFilteredFileExtensions, filteredFileExtensions ) : null );
+        final FilterCache filterCache = cacheFilteredFiles
+                        ? new FilterCache( filterCacheDirectory, filterCacheSize * 1024L * 1024L,
+                                           computeFilterFingerprint(), getLog() ) : null;
+        copier.setFilterCache( filterCache );
+        // the files of an architecture must not be written through the hard links to the shared files
+        copier.setReplaceStagedFiles( scope == FileHelper.Scope.ARCHITECTURE );
+        try
+        {
+            new FileHelper( this, copier, scope ).installFiles();
+        }
+        finally
+        {
+            if ( filterPipeline != null )
+            {
+                filterPipeline.shutdown();
+            }
+        }
+    }
+
     /**
      * @return The Maven project used by this MOJO
      */
@@ -821,6 +1462,22 @@ public abstract class AbstractRPMMojo
 
     }
 
+    /**
+     * Will be called on completion of {@link #execute()} if packages have been built for several
+     * {@link #targetArchitectures}, before they are attached with their architecture as classifier. A package set as
+     * the file of the project's artifact is not attached again.
+     *
+     * @param packages The packages by architecture, in the configured order.
+     * @throws MojoExecutionException If an error occurs.
+     * @throws MojoFailureException If failure occurs.
+     * @since 2.3.1
+     */
+    protected void afterExecution( Map<String, File> packages )
+        throws MojoExecutionException, MojoFailureException
+    {
+
+    }
+
     /**
      * Provides an opportunity for subclasses to provide an additional classifier for the rpm workarea.<br>
      * By default this implementation returns {@code null}, which indicates that no additional classifier should be
@@ -847,6 +1504,22 @@ public abstract class AbstractRPMMojo
         return new File( archDir, name + '-' + projversion + '-' + release + '.' + targetArch + ".rpm" );
     }
 
+    /**
+     * Returns the generated rpm {@link File} of a sub-package.
+     *
+     * @param subpackage The sub-package.
+     * @return The generated rpm {@link File} of <i>subpackage</i>.
+     * @since 2.3.1
+     */
+    final File getRPMFile( Subpackage subpackage )
+    {
+        File rpms = new File( workarea, "RPMS" );
+        File archDir = new File( rpms, targetArch );
+
+        return new File( archDir, name + '-' + subpackage.getName() + '-' + projversion + '-' + release + '.'
+            + targetArch + ".rpm" );
+    }
+
     /**
      * @throws MojoExecutionException
      */
@@ -870,58 +1543,278 @@ public abstract class AbstractRPMMojo
     }
 
     /**
-     * Build the structure of the work area.
+     * Build the structure of the work area.
+     *
+     * @throws MojoFailureException if a directory cannot be built
+     * @throws MojoExecutionException if buildroot cannot be cleared (if exists)
+     */
+    private void buildWorkArea()
+        throws MojoFailureException, MojoExecutionException
+    {
+        final String[] topdirs = { "BUILD", "RPMS", "SOURCES", "SPECS", "SRPMS", "tmp-buildroot", "buildroot" };
+
+        // Build the top directory
+        if ( !workarea.exists() )
+        {
+            getLog().info( "Creating directory " + workarea.getAbsolutePath() );
+            if ( !workarea.mkdirs() )
+            {
+                throw new MojoFailureException( "Unable to create directory " + workarea.getAbsolutePath() );
+            }
+        }
+
+        validateWorkarea();
+
+        // set build root variable, rpmbuild uses the staged files in place unless they are kept for the next build
+        rpmBuildroot = new File( workarea, "buildroot" );
+        buildroot = incremental || isJavaPackagingEngine() ? new File( workarea, "tmp-buildroot" ) : rpmBuildroot;
+
+        boolean keepBuildroot = false;
+        stagingManifest = null;
+        if ( incremental )
+        {
+            try
+            {
+                stagingManifest = new StagingManifest( new File( workarea, "staging-manifest.txt" ), buildroot,
+                                                       computeFilterFingerprint() );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to resolve the build root: " + e.getMessage(), e );
+            }
+            keepBuildroot = stagingManifest.load() && buildroot.isDirectory();
+            if ( !keepBuildroot )
+            {
+                getLog().info( "No staging manifest of a previous build, staging everything." );
+            }
+        }
+
+        // Build each directory in the top directory
+        for ( String topdir : topdirs )
+        {
+            File dir = new File( workarea, topdir );
+            if ( "tmp-buildroot".equals( topdir ) && !dir.equals( buildroot ) )
+            {
+                // only used by incremental staging and the java engine, a leftover would suggest files staged there
+                if ( dir.exists() )
+                {
+                    getLog().info( "Deleting unused directory " + dir.getAbsolutePath() );
+                    try
+                    {
+                        FileUtils.deleteDirectory( dir );
+                    }
+                    catch ( IOException e )
+                    {
+                        throw new MojoExecutionException( "Unable to delete directory: " + dir.getName(), e );
+                    }
+                }
+            }
+            else if ( keepBuildroot && dir.equals( buildroot ) )
+            {
+                getLog().info( "Keeping the content of " + dir.getAbsolutePath() + " for incremental staging." );
+            }
+            else if ( dir.exists() )
+            {
+                getLog().info( "Directory " + dir.getAbsolutePath() + " already exists. Deleting all contents." );
+
+                try
+                {
+                    FileUtils.cleanDirectory( dir );
+                }
+                catch ( IOException e )
+                {
+                    throw new MojoExecutionException( "Unable to clear directory: " + dir.getName(), e );
+                }
+            }
+            else
+            {
+                getLog().info( "Creating directory " + dir.getAbsolutePath() );
+                if ( !dir.mkdir() )
+                {
+                    throw new MojoFailureException( "Unable to create directory " + dir.getAbsolutePath() );
+                }
+            }
+        }
+
+        virtualBuildrootManifest = virtualBuildroot ? new VirtualBuildroot( buildroot ) : null;
+        stagingLinker = linkStaging ? new StagingLinker( buildroot ) : null;
+        stagedFileIndex = new StagedFileIndex( buildroot, virtualBuildrootManifest );
+        stagedContentRegistry = dedupeDependencies ? new StagedContentRegistry() : null;
+    }
+
+    /**
+     * Computes a fingerprint of everything which affects the result of filtering: the {@link #escapeString}, the
+     * content of the {@link #filters} files and of the pom, the project and its properties and the user and system
+     * properties (including the environment) of the session, which are all interpolated. Used by the
+     * {@link #incremental} staging and the {@link #cacheFilteredFiles filter cache}.
+     *
+     * @return The hex encoded sha256 of the filter settings.
+     * @throws MojoExecutionException if a filter file or the pom cannot be read
+     */
+    private String computeFilterFingerprint()
+        throws MojoExecutionException
+    {
+        final MessageDigest digest = FileDigest.newDigest();
+        final StringBuilder settings = new StringBuilder();
+        settings.append( escapeString ).append( '\n' );
+        settings.append( project.getId() ).append( '\n' );
+        settings.append( project.getBasedir() ).append( '\n' );
+        settings.append( new TreeMap<Object, Object>( project.getProperties() ) ).append( '\n' );
+        if ( session != null )
+        {
+            settings.append( new TreeMap<Object, Object>( session.getUserProperties() ) ).append( '\n' );
+            final Map<Object, Object> systemProperties = new TreeMap<Object, Object>( session.getSystemProperties() );
+            // the command line of the build itself, which changes with the goals but is not worth filtering
+            systemProperties.keySet().removeAll( VOLATILE_SYSTEM_PROPERTIES );
+            settings.append( systemProperties ).append( '\n' );
+        }
+        digest.update( settings.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+        final List<File> files = new ArrayList<File>();
+        if ( project.getFile() != null )
+        {
+            files.add( project.getFile() );
+        }
+        if ( filters != null )
+        {
+            for ( String filter : filters )
+            {
+                final File file = new File( filter );
+                files.add( file.isAbsolute() ? file : new File( project.getBasedir(), filter ) );
+            }
+        }
+        for ( File file : files )
+        {
+            digest.update( ( file.getAbsolutePath() + '\n' ).getBytes( StandardCharsets.UTF_8 ) );
+            if ( file.isFile() )
+            {
+                try
+                {
+                    FileDigest.update( digest, file );
+                }
+                catch ( IOException e )
+                {
+                    throw new MojoExecutionException( "Unable to read " + file.getAbsolutePath(), e );
+                }
+            }
+        }
+        return RPMPackageWriter.hex( digest.digest() );
+    }
+
+    /**
+     * Computes the fingerprint of everything the package is built from, for {@link #skipUnchanged}.
      *
-     * @throws MojoFailureException if a directory cannot be built
-     * @throws MojoExecutionException if buildroot cannot be cleared (if exists)
+     * @return The hex encoded sha256 of the inputs.
+     * @throws MojoExecutionException if an input cannot be read
      */
-    private void buildWorkArea()
-        throws MojoFailureException, MojoExecutionException
+    private String computeBuildFingerprint()
+        throws MojoExecutionException
     {
-        final String[] topdirs = { "BUILD", "RPMS", "SOURCES", "SPECS", "SRPMS", "tmp-buildroot", "buildroot" };
-
-        // Build the top directory
-        if ( !workarea.exists() )
+        final BuildFingerprint fingerprint = new BuildFingerprint();
+        try
         {
-            getLog().info( "Creating directory " + workarea.getAbsolutePath() );
-            if ( !workarea.mkdirs() )
+            final PluginDescriptor plugin = mojoExecution.getMojoDescriptor().getPluginDescriptor();
+            fingerprint.add( "plugin", plugin.getId() );
+            final File pluginFile = plugin.getPluginArtifact() != null ? plugin.getPluginArtifact().getFile() : null;
+            if ( pluginFile != null )
             {
-                throw new MojoFailureException( "Unable to create directory " + workarea.getAbsolutePath() );
+                // changes with every build of a snapshot version
+                fingerprint.add( "pluginFile", pluginFile.getAbsolutePath() + ':' + pluginFile.lastModified() );
+            }
+            fingerprint.add( "execution", mojoExecution.getExecutionId() );
+            final Plugin model = project.getPlugin( plugin.getPluginLookupKey() );
+            if ( model != null )
+            {
+                fingerprint.add( "configuration", model.getConfiguration() );
+                final PluginExecution execution = model.getExecutionsAsMap().get( mojoExecution.getExecutionId() );
+                if ( execution != null )
+                {
+                    fingerprint.add( "executionConfiguration", execution.getConfiguration() );
+                }
+            }
+            fingerprint.add( "filter", computeFilterFingerprint() );
+            fingerprint.add( "rpm", getRPMFile().getAbsolutePath() );
+            fingerprint.add( "targetOS", targetOS );
+            fingerprint.add( "targetVendor", targetVendor );
+            fingerprint.add( "macros", new TreeMap<String, String>( macroKeyToValue ) );
+            fingerprint.add( "changelog", changelog );
+            fingerprint.add( "reproducibleTimestamp", reproducibleTimestamp );
+            if ( icon != null )
+            {
+                fingerprint.addFile( "icon", icon );
             }
-        }
-
-        validateWorkarea();
 
-        // Build each directory in the top directory
-        for ( String topdir : topdirs )
-        {
-            File dir = new File( workarea, topdir );
-            if ( dir.exists() )
+            final Scriptlet[] scriptlets =
+                { prepareScriptlet, pretransScriptlet, preinstallScriptlet, installScriptlet, postinstallScriptlet,
+                    preremoveScriptlet, postremoveScriptlet, posttransScriptlet, verifyScriptlet, cleanScriptlet };
+            final List<Scriptlet> allScriptlets = new ArrayList<Scriptlet>( Arrays.asList( scriptlets ) );
+            if ( triggers != null )
             {
-                getLog().info( "Directory " + dir.getAbsolutePath() + " already exists. Deleting all contents." );
+                allScriptlets.addAll( triggers );
+            }
+            for ( Scriptlet scriptlet : allScriptlets )
+            {
+                if ( scriptlet != null && scriptlet.getScriptFile() != null )
+                {
+                    fingerprint.addFile( "scriptFile", scriptlet.getScriptFile() );
+                }
+            }
 
-                try
+            boolean artifacts = false;
+            boolean dependencies = false;
+            for ( Mapping map : mappings )
+            {
+                fingerprint.add( "mapping", map );
+                artifacts |= map.getArtifact() != null;
+                dependencies |= map.getDependency() != null;
+                if ( map.getSources() == null )
                 {
-                    FileUtils.cleanDirectory( dir );
+                    continue;
                 }
-                catch ( IOException e )
+                for ( Source source : map.getSources() )
                 {
-                    throw new MojoExecutionException( "Unable to clear directory: " + dir.getName(), e );
+                    if ( source instanceof SoftlinkSource )
+                    {
+                        continue;
+                    }
+                    final File location = new File( evaluateMacros( source.getLocation() ) );
+                    fingerprint.addFile( "source",
+                                         location.isAbsolute() ? location : new File( project.getBasedir(),
+                                                                                      location.getPath() ) );
                 }
             }
-            else
+
+            if ( artifacts )
             {
-                getLog().info( "Creating directory " + dir.getAbsolutePath() );
-                if ( !dir.mkdir() )
+                addArtifact( fingerprint, project.getArtifact() );
+                for ( Artifact artifact : project.getAttachedArtifacts() )
                 {
-                    throw new MojoFailureException( "Unable to create directory " + dir.getAbsolutePath() );
+                    addArtifact( fingerprint, artifact );
+                }
+            }
+            if ( dependencies )
+            {
+                for ( Artifact artifact : project.getArtifacts() )
+                {
+                    addArtifact( fingerprint, artifact );
                 }
             }
         }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to compute the fingerprint of the build: " + e.getMessage(), e );
+        }
+        return fingerprint.get();
+    }
 
-        // set build root variable
-        buildroot = new File( workarea, "tmp-buildroot" );
-        rpmBuildroot = new File( workarea, "buildroot" );
+    private static void addArtifact( BuildFingerprint fingerprint, Artifact artifact )
+        throws IOException
+    {
+        fingerprint.add( "artifact", artifact.getId() );
+        if ( artifact.getFile() != null )
+        {
+            fingerprint.addFile( "artifactFile", artifact.getFile() );
+        }
     }
 
     /**
@@ -962,6 +1855,23 @@ public abstract class AbstractRPMMojo
         log.debug( "project version = " + this.projversion );
         log.debug( "project release = " + this.release );
 
+        if ( isJavaPackagingEngine() )
+        {
+            // the macros rpmbuild defines from the preamble of the spec file, which the java engine has to expand
+            macroKeyToValue.put( "name", name );
+            macroKeyToValue.put( "version", projversion );
+            macroKeyToValue.put( "release", release );
+            if ( epoch != null )
+            {
+                macroKeyToValue.put( "epoch", epoch );
+            }
+        }
+
+        // the java engine does not need the host vendor, which is only informational in its packages
+        final boolean probeVendor =
+            ( targetVendor == null || targetVendor.length() == 0 ) && !isJavaPackagingEngine();
+        prefetchMacros( "true".equalsIgnoreCase( needarch ), probeVendor );
+
         // evaluate needarch and populate targetArch
         if ( needarch == null || needarch.length() == 0 || "false".equalsIgnoreCase( needarch ) )
         {
@@ -969,7 +1879,7 @@ public abstract class AbstractRPMMojo
         }
         else if ( "true".equalsIgnoreCase( needarch ) )
         {
-            targetArch = helper.getArch();
+            targetArch = macroKeyToValue.containsKey( "_arch" ) ? macroKeyToValue.get( "_arch" ) : helper.getArch();
         }
         else
         {
@@ -984,9 +1894,62 @@ public abstract class AbstractRPMMojo
         }
         log.debug( "targetOS = " + targetOS );
 
+        if ( !"rpmbuild".equals( packagingEngine ) && !isJavaPackagingEngine() )
+        {
+            throw new MojoFailureException( "Unknown packagingEngine: " + packagingEngine );
+        }
+
+        if ( compressionProfile != null && compressionProfile.trim().length() > 0 )
+        {
+            payloadCompression = PayloadCompression.Profile.forName( compressionProfile );
+            if ( payloadCompression == null )
+            {
+                throw new MojoFailureException( "Unknown compressionProfile: " + compressionProfile );
+            }
+        }
+        if ( compressionThreads < 0 )
+        {
+            throw new MojoFailureException( "compressionThreads must not be negative: " + compressionThreads );
+        }
+
+        if ( virtualBuildroot && !isJavaPackagingEngine() )
+        {
+            throw new MojoFailureException( "virtualBuildroot requires the java packagingEngine" );
+        }
+
+        final Set<String> subpackageNames = new HashSet<String>();
+        for ( Subpackage subpackage : getSubpackages() )
+        {
+            final String subpackageName = subpackage.getName();
+            if ( subpackageName == null || !subpackageName.matches( "[^\\s/]+" ) )
+            {
+                throw new MojoFailureException( "<subpackage> element must contain a name without whitespace: "
+                    + subpackageName );
+            }
+            if ( !subpackageNames.add( subpackageName ) )
+            {
+                throw new MojoFailureException( "Duplicate subpackage: " + subpackageName );
+            }
+        }
+
+        if ( targetArchitectures != null && !targetArchitectures.isEmpty()
+            && ( incremental || virtualBuildroot || skipUnchanged || copyTo != null ) )
+        {
+            throw new MojoFailureException( "targetArchitectures cannot be combined with incremental, "
+                + "virtualBuildroot, skipUnchanged or copyTo" );
+        }
+
         if ( targetVendor == null || targetVendor.length() == 0 )
         {
-            targetVendor = helper.getHostVendor();
+            if ( isJavaPackagingEngine() )
+            {
+                targetVendor = "unknown";
+            }
+            else
+            {
+                targetVendor = macroKeyToValue.containsKey( "_host_vendor" ) ? macroKeyToValue.get( "_host_vendor" )
+                                : helper.getHostVendor();
+            }
         }
         log.debug( "targetVendor = " + targetVendor );
 
@@ -1069,6 +2032,11 @@ public abstract class AbstractRPMMojo
         }
 
         processDefineStatements();
+
+        if ( isJavaPackagingEngine() )
+        {
+            new RPMPackageWriter( this ).checkSupported();
+        }
     }
 
     /**
@@ -1092,6 +2060,99 @@ public abstract class AbstractRPMMojo
         }
     }
 
+    /**
+     * Evaluates all macros referenced by the {@link #mappings} (destinations and source locations, including soft
+     * links) and the {@link #prefixes} with a single execution of rpm, instead of one execution per macro. The results
+     * are put in {@link #macroKeyToValue}. If the evaluation fails, the macros are left to be
+     * {@link #evaluateMacro(String) evaluated} one at a time, which reports the failure where it matters.
+     *
+     * @param arch Indicates if the architecture of the host (<i>_arch</i>) is evaluated as well.
+     * @param vendor Indicates if the vendor of the host (<i>_host_vendor</i>) is evaluated as well.
+     */
+    private void prefetchMacros( boolean arch, boolean vendor )
+    {
+        final Set<String> macros = new LinkedHashSet<String>();
+        if ( arch )
+        {
+            macros.add( "_arch" );
+        }
+        if ( vendor )
+        {
+            macros.add( "_host_vendor" );
+        }
+        if ( mappings != null )
+        {
+            for ( Mapping map : mappings )
+            {
+                collectMacros( map.getDirectory(), macros );
+                if ( map.getSources() != null )
+                {
+                    for ( Source source : map.getSources() )
+                    {
+                        collectMacros( source.getLocation(), macros );
+                        collectMacros( source.getDestination(), macros );
+                    }
+                }
+            }
+        }
+        if ( prefixes != null )
+        {
+            for ( String p : prefixes )
+            {
+                collectMacros( p, macros );
+            }
+        }
+        macros.removeAll( macroKeyToValue.keySet() );
+        if ( defineStatements != null )
+        {
+            // processed later on, but already known
+            for ( String define : defineStatements )
+            {
+                macros.remove( define.split( " " )[0] );
+            }
+        }
+        if ( macroEvaluator != null )
+        {
+            for ( Iterator<String> it = macros.iterator(); it.hasNext(); )
+            {
+                final String macro = it.next();
+                final String value = macroEvaluator.evaluate( macro );
+                if ( value != null )
+                {
+                    macroKeyToValue.put( macro, value );
+                    it.remove();
+                }
+            }
+        }
+
+        if ( macros.isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            macroKeyToValue.putAll( helper.evaluateMacros( macros ) );
+            getLog().debug( "Evaluated " + macros.size() + " macros with one rpm execution" );
+        }
+        catch ( MojoExecutionException e )
+        {
+            getLog().debug( "Unable to evaluate " + macros + " together: " + e.getMessage() );
+        }
+    }
+
+    private static void collectMacros( String value, Set<String> macros )
+    {
+        if ( value != null )
+        {
+            final Matcher matcher = MACRO_PATTERN.matcher( value );
+            while ( matcher.find() )
+            {
+                macros.add( matcher.group( 1 ) );
+            }
+        }
+    }
+
     /**
      * Validate that {@link #workarea} is a {@link File#isDirectory() directory} and that the
      * {@link File#getAbsolutePath()} does not contain any spaces.
@@ -1129,12 +2190,42 @@ public abstract class AbstractRPMMojo
             return macroKeyToValue.get( macro );
         }
 
-        final String value = helper.evaluateMacro( macro );
+        String value = macroEvaluator == null ? null : macroEvaluator.evaluate( macro );
+        if ( value == null )
+        {
+            value = helper.evaluateMacro( macro );
+        }
         macroKeyToValue.put( macro, value );
 
         return value;
     }
 
+    /**
+     * Determine if there are any macros in the <i>value</i> and replace any/all occurrences with the
+     * {@link #evaluateMacro(String) evaluated} value.
+     *
+     * @param value String to replace macros in.
+     * @return Result of evaluating all macros in <i>value</i>.
+     * @throws MojoExecutionException
+     * @since 2.1-alpha-1
+     */
+    String evaluateMacros( String value )
+        throws MojoExecutionException
+    {
+        final Matcher matcher = MACRO_PATTERN.matcher( value );
+
+        final StringBuffer newValue = new StringBuffer( value.length() );
+        while ( matcher.find() )
+        {
+            final String macro = matcher.group( 1 );
+            final String evaluatedValue = evaluateMacro( macro );
+            matcher.appendReplacement( newValue, evaluatedValue.replaceAll( "\\\\", "\\\\\\\\" ) );
+        }
+
+        matcher.appendTail( newValue );
+        return newValue.toString();
+    }
+
     /**
      * Write the SPEC file.
      *
@@ -1146,13 +2237,34 @@ public abstract class AbstractRPMMojo
         File f = new File( workarea, "SPECS" );
         File specf = new File( f, name + ".spec" );
 
+        final Charset charset;
+        try
+        {
+            charset = sourceEncoding != null ? Charset.forName( sourceEncoding ) : Charset.defaultCharset();
+        }
+        catch ( IllegalCharsetNameException e )
+        {
+            throw new MojoExecutionException( "Invalid source encoding " + sourceEncoding, e );
+        }
+        catch ( UnsupportedCharsetException e )
+        {
+            throw new MojoExecutionException( "Unsupported source encoding " + sourceEncoding, e );
+        }
+
         try
         {
             getLog().info( "Creating spec file " + specf.getAbsolutePath() );
-            PrintWriter spec = new UnixPrintWriter( new FileWriter( specf ) );
+            // the spec file is written in many small pieces, so it is buffered as a whole
+            PrintWriter spec = new UnixPrintWriter( new BufferedWriter(
+                new OutputStreamWriter( new FileOutputStream( specf ), charset ), SPEC_BUFFER_SIZE ) );
             try
             {
                 new SpecWriter( this, spec ).writeSpecFile();
+                // PrintWriter swallows the exceptions of the underlying writer, checkError() flushes it
+                if ( spec.checkError() )
+                {
+                    throw new IOException( "Error writing spec file" );
+                }
             }
             finally
             {
@@ -1187,6 +2299,55 @@ public abstract class AbstractRPMMojo
         return "(c) " + copyrightText;
     }
 
+    /**
+     * @return Indicates if the package is written by the {@link RPMPackageWriter} instead of rpmbuild.
+     */
+    final boolean isJavaPackagingEngine()
+    {
+        return "java".equals( packagingEngine );
+    }
+
+    /**
+     * @return The profile selecting the compression of the payload, {@code null} to use the configuration of rpm.
+     */
+    final PayloadCompression.Profile getPayloadCompression()
+    {
+        return payloadCompression;
+    }
+
+    /**
+     * @return The {@link #rpmbuildOutputLines}.
+     */
+    final int getRpmbuildOutputLines()
+    {
+        return rpmbuildOutputLines;
+    }
+
+    /**
+     * @return The {@link #rpmbuildLog}.
+     */
+    final boolean isRpmbuildLog()
+    {
+        return rpmbuildLog;
+    }
+
+    /**
+     * @return The number of threads compressing the payload.
+     */
+    final int getCompressionThreads()
+    {
+        return compressionThreads > 0 ? compressionThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return The files recorded instead of copied into the {@link #getBuildroot() build root}, {@code null} if
+     *         {@link #virtualBuildroot} is not enabled.
+     */
+    final VirtualBuildroot getVirtualBuildroot()
+    {
+        return virtualBuildrootManifest;
+    }
+
     /**
      * @return Returns the {@link #linkTargetToSources}.
      */
@@ -1213,9 +2374,22 @@ public abstract class AbstractRPMMojo
 
     public Date getBuildTimestamp()
     {
+        if ( reproducibleTimestamp != null )
+        {
+            return reproducibleTimestamp;
+        }
         return ( session == null ) ? new Date() : session.getStartTime();
     }
 
+    /**
+     * @return The timestamp no file of the package may be newer than, {@code null} unless {@link #reproducible} is
+     *         enabled.
+     */
+    final Date getReproducibleTimestamp()
+    {
+        return reproducibleTimestamp;
+    }
+
     /**
      * @return Returns the {@link #description}.
      */
@@ -1398,6 +2572,22 @@ public abstract class AbstractRPMMojo
         return this.mappings;
     }
 
+    /**
+     * @return Returns the {@link #packageMappings}.
+     */
+    final List<Mapping> getPackageMappings()
+    {
+        return this.packageMappings;
+    }
+
+    /**
+     * @return Returns the {@link #subpackages}, never {@code null}.
+     */
+    final List<Subpackage> getSubpackages()
+    {
+        return this.subpackages != null ? this.subpackages : Collections.<Subpackage>emptyList();
+    }
+
     /**
      * @return Returns the {@link #prepareScriptlet}.
      */
@@ -1639,6 +2829,71 @@ public abstract class AbstractRPMMojo
         return this.defaultFilterWrappers;
     }
 
+    /**
+     * @return What has been staged into the {@link #getBuildroot() build root}, {@code null} if {@link #incremental}
+     *         is not enabled.
+     */
+    final StagingManifest getStagingManifest()
+    {
+        return stagingManifest;
+    }
+
+    /**
+     * @return Links the staged files, {@code null} if {@link #linkStaging} is not enabled.
+     */
+    final StagingLinker getStagingLinker()
+    {
+        return stagingLinker;
+    }
+
+    /**
+     * @return Everything staged into the {@link #getBuildroot() build root}.
+     */
+    final StagedFileIndex getStagedFileIndex()
+    {
+        return stagedFileIndex;
+    }
+
+    /**
+     * @return The content of the staged artifacts, {@code null} if {@link #dedupeDependencies} is not enabled.
+     */
+    final StagedContentRegistry getStagedContentRegistry()
+    {
+        return stagedContentRegistry;
+    }
+
+    /**
+     * @return The values determined by executing rpm, {@code null} if {@link #cacheMacros} is not enabled.
+     */
+    final MacroCache getMacroCache()
+    {
+        return macroCache;
+    }
+
+    /**
+     * @return The values determined by executing rpm, shared by all executions in the session.
+     */
+    final SessionMacros getSessionMacros()
+    {
+        return sessionMacros;
+    }
+
+    /**
+     * @return Returns the {@link #stagingThreads}.
+     */
+    final int getStagingThreads()
+    {
+        return stagingThreads;
+    }
+
+    /**
+     * @return Returns the {@link #collapseDirectories}.
+     */
+    final boolean isCollapseDirectories()
+    {
+        return collapseDirectories;
+    }
+
     /**
      * @return Returns the {@link #hardLinkDependencies}
      */
@@ -0,0 +1,228 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Builds the packages of several target architectures of an execution from a single staging pass. The files shared by
+ * all architectures are staged once; the build root of each architecture gets hard links to them (or copies, where the
+ * file system does not support hard links) before the sources of that architecture are staged on top. The staging
+ * state of the mappings is {@link #snapshot() captured} after the shared pass and {@link #restore() restored} before
+ * each architecture, so every package lists the shared files and its own ones.
+ *
+ * @since 2.3.1
+ */
+final class ArchitectureFanOut
+{
+    private final AbstractRPMMojo mojo;
+
+    private final List<Mapping> mappings = new ArrayList<Mapping>();
+
+    private final List<List<String>> copied = new ArrayList<List<String>>();
+
+    private final List<List<String>> linked = new ArrayList<List<String>>();
+
+    private final List<Boolean> softLinks = new ArrayList<Boolean>();
+
+    private final Map<String, List<SoftlinkSource>> linkTargetToSources =
+        new LinkedHashMap<String, List<SoftlinkSource>>();
+
+    /**
+     * @param mojo The mojo whose mappings have been staged for the shared files.
+     */
+    ArchitectureFanOut( AbstractRPMMojo mojo )
+    {
+        this.mojo = mojo;
+    }
+
+    /**
+     * Captures the staging state of the mappings after the shared pass.
+     */
+    void snapshot()
+    {
+        for ( Mapping map : mojo.getMappings() )
+        {
+            mappings.add( map );
+            copied.add( new ArrayList<String>( map.getCopiedFileNamesRelativeToDestination() ) );
+            linked.add( new ArrayList<String>( map.getLinkedFileNamesRelativeToDestination() ) );
+            softLinks.add( Boolean.valueOf( map.hasSoftLinks() ) );
+        }
+        for ( Map.Entry<String, List<SoftlinkSource>> entry : mojo.getLinkTargetToSources().entrySet() )
+        {
+            linkTargetToSources.put( entry.getKey(), new ArrayList<SoftlinkSource>( entry.getValue() ) );
+        }
+    }
+
+    /**
+     * Restores the staging state {@link #snapshot() captured} after the shared pass, discarding what staging and
+     * packaging a previous architecture added.
+     */
+    void restore()
+    {
+        for ( int i = 0; i < mappings.size(); ++i )
+        {
+            mappings.get( i ).restoreStagedFileNames( copied.get( i ), linked.get( i ),
+                                                      softLinks.get( i ).booleanValue() );
+        }
+        final Map<String, List<SoftlinkSource>> current = mojo.getLinkTargetToSources();
+        current.clear();
+        for ( Map.Entry<String, List<SoftlinkSource>> entry : linkTargetToSources.entrySet() )
+        {
+            current.put( entry.getKey(), new LinkedList<SoftlinkSource>( entry.getValue() ) );
+        }
+    }
+
+    /**
+     * Recreates the tree of <i>shared</i> in <i>buildroot</i>: directories are created, files are hard linked (or
+     * copied if linking fails) and soft links are copied. Everything is recorded in <i>index</i>.
+     *
+     * @param shared The build root of the shared files.
+     * @param buildroot The empty build root of an architecture.
+     * @param index The index of <i>buildroot</i>.
+     * @return The number of files linked or copied.
+     * @throws IOException if the tree cannot be recreated
+     */
+    static int linkTree( File shared, File buildroot, final StagedFileIndex index )
+        throws IOException
+    {
+        final Path source = shared.toPath();
+        final Path target = buildroot.toPath();
+        final int[] files = new int[1];
+        Files.walkFileTree( source, new SimpleFileVisitor<Path>()
+        {
+            public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs )
+                throws IOException
+            {
+                final Path copy = target.resolve( source.relativize( dir ) );
+                Files.createDirectories( copy );
+                if ( !copy.equals( target ) )
+                {
+                    index.addDirectory( copy.toFile(), -1 );
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+                throws IOException
+            {
+                final Path copy = target.resolve( source.relativize( file ) );
+                if ( attrs.isSymbolicLink() )
+                {
+                    Files.createSymbolicLink( copy, Files.readSymbolicLink( file ) );
+                    index.addSymlink( copy.toFile() );
+                    return FileVisitResult.CONTINUE;
+                }
+                try
+                {
+                    Files.createLink( copy, file );
+                }
+                catch ( IOException e )
+                {
+                    Files.copy( file, copy, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS );
+                }
+                catch ( UnsupportedOperationException e )
+                {
+                    Files.copy( file, copy, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS );
+                }
+                index.addFile( copy.toFile(), -1, attrs.size() );
+                files[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+        return files[0];
+    }
+
+    /**
+     * Runs the rpmbuild executions of the architectures concurrently, at most one per processor.
+     *
+     * @param builds The prepared builds.
+     * @throws MojoExecutionException if a build fails
+     */
+    static void runAll( List<RPMHelper.Build> builds )
+        throws MojoExecutionException
+    {
+        if ( builds.isEmpty() )
+        {
+            return;
+        }
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for ( final RPMHelper.Build build : builds )
+        {
+            tasks.add( new Callable<Void>()
+            {
+                public Void call()
+                    throws MojoExecutionException
+                {
+                    build.run();
+                    return null;
+                }
+            } );
+        }
+
+        final ExecutorService executor =
+            Executors.newFixedThreadPool( Math.min( builds.size(), Runtime.getRuntime().availableProcessors() ) );
+        try
+        {
+            for ( Future<Void> future : executor.invokeAll( tasks ) )
+            {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException( "Interrupted while building the packages", e );
+        }
+        catch ( ExecutionException e )
+        {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) cause;
+            }
+            throw new MojoExecutionException( "Unable to build the packages: " + cause.getMessage(), cause );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
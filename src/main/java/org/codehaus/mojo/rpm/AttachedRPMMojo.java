@@ -21,7 +21,6 @@ package org.codehaus.mojo.rpm;
 
 import java.io.File;
 
-import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
@@ -45,9 +44,6 @@ public class AttachedRPMMojo
     @Parameter
     private String classifier;
 
-    @Component
-    private MavenProjectHelper mavenProjectHelper;
-
     /**
      * Attach the rpm as a secondary artifact.
      *
@@ -0,0 +1,161 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Determines whether a file which is to be filtered is binary, so that it is copied unchanged instead. Filtering a
+ * binary file is slow and corrupts it if its content happens to contain a filter expression or is not valid in the
+ * platform encoding.
+ * <p>
+ * A file is classified by its extension first: extensions of known binary formats (images, archives, fonts, ...) are
+ * binary and extensions of known text formats are text. Any other file is binary if its first
+ * {@value #PROBE_LENGTH} bytes contain a <code>NUL</code> byte, which text in any of the single byte or UTF-8 based
+ * encodings never does.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class BinaryFileDetector
+{
+    /**
+     * The number of leading bytes probed for a <code>NUL</code> byte.
+     */
+    static final int PROBE_LENGTH = 8000;
+
+    private static final List<String> BINARY_EXTENSIONS =
+        Arrays.asList( "7z", "a", "bin", "bmp", "bz2", "class", "dll", "ear", "eot", "exe", "gif", "gz", "ico", "jar",
+                       "jpeg", "jpg", "mp3", "mp4", "o", "ogg", "otf", "pdf", "png", "pyc", "rar", "rpm", "so", "tar",
+                       "tgz", "tif", "tiff", "ttf", "war", "wav", "webp", "woff", "woff2", "xz", "zip" );
+
+    private static final List<String> TEXT_EXTENSIONS =
+        Arrays.asList( "bat", "cfg", "cmd", "conf", "css", "csv", "groovy", "htm", "html", "ini", "java", "js",
+                       "json", "md", "pl", "properties", "py", "rb", "service", "sh", "sql", "svg", "txt", "xml",
+                       "xsd", "xsl", "yaml", "yml" );
+
+    private final Set<String> binaryExtensions = new HashSet<String>();
+
+    private final Set<String> textExtensions = new HashSet<String>();
+
+    /**
+     * @param nonFilteredFileExtensions Further extensions of binary files, may be {@code null}.
+     * @param filteredFileExtensions Further extensions of text files, may be {@code null}. These take precedence over
+     *            the built in binary extensions.
+     */
+    BinaryFileDetector( List<String> nonFilteredFileExtensions, List<String> filteredFileExtensions )
+    {
+        addExtensions( binaryExtensions, BINARY_EXTENSIONS );
+        addExtensions( textExtensions, TEXT_EXTENSIONS );
+        if ( filteredFileExtensions != null )
+        {
+            addExtensions( textExtensions, filteredFileExtensions );
+            binaryExtensions.removeAll( textExtensions );
+        }
+        if ( nonFilteredFileExtensions != null )
+        {
+            addExtensions( binaryExtensions, nonFilteredFileExtensions );
+            textExtensions.removeAll( binaryExtensions );
+        }
+    }
+
+    /**
+     * @param file The file to classify.
+     * @return {@code true} if <i>file</i> is binary and must not be filtered.
+     * @throws IOException if the file cannot be read
+     */
+    boolean isBinary( File file )
+        throws IOException
+    {
+        final String extension = getExtension( file.getName() );
+        if ( extension != null )
+        {
+            if ( binaryExtensions.contains( extension ) )
+            {
+                return true;
+            }
+            if ( textExtensions.contains( extension ) )
+            {
+                return false;
+            }
+        }
+
+        final byte[] probe = new byte[PROBE_LENGTH];
+        final InputStream in = new FileInputStream( file );
+        try
+        {
+            int length = 0;
+            int read;
+            while ( length < probe.length && ( read = in.read( probe, length, probe.length - length ) ) != -1 )
+            {
+                length += read;
+            }
+            for ( int i = 0; i < length; ++i )
+            {
+                if ( probe[i] == 0 )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void addExtensions( Set<String> extensions, List<String> added )
+    {
+        for ( String extension : added )
+        {
+            String normalized = extension.trim().toLowerCase( Locale.ENGLISH );
+            if ( normalized.startsWith( "." ) )
+            {
+                normalized = normalized.substring( 1 );
+            }
+            if ( normalized.length() > 0 )
+            {
+                extensions.add( normalized );
+            }
+        }
+    }
+
+    /**
+     * @return The lower case extension of <i>name</i>, {@code null} if it has none.
+     */
+    private static String getExtension( String name )
+    {
+        final int dot = name.lastIndexOf( '.' );
+        if ( dot <= 0 || dot == name.length() - 1 )
+        {
+            return null;
+        }
+        return name.substring( dot + 1 ).toLowerCase( Locale.ENGLISH );
+    }
+}
@@ -0,0 +1,178 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A fingerprint of everything a package is built from, so that building it can be skipped if the package of a
+ * previous build with the same fingerprint still exists.
+ * <p>
+ * Values are added by name. Files and directories are added with the path, size, permissions and sha256 of each file,
+ * in the order of their paths, so the fingerprint does not depend on modification times or the order the file system
+ * lists directories in.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class BuildFingerprint
+{
+    private final MessageDigest digest = FileDigest.newDigest();
+
+    /**
+     * Adds a value.
+     *
+     * @param name The name of the value.
+     * @param value The value, may be {@code null}.
+     */
+    void add( String name, Object value )
+    {
+        update( name + '=' + value + '\n' );
+    }
+
+    /**
+     * Adds a file or a directory with everything below it. A missing file is added as such.
+     *
+     * @param name The name of the file.
+     * @param file The file or directory.
+     * @throws IOException if the file cannot be read
+     */
+    void addFile( String name, File file )
+        throws IOException
+    {
+        final Path start = file.toPath();
+        if ( !Files.exists( start, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            add( name, "missing " + file.getAbsolutePath() );
+            return;
+        }
+
+        final SortedMap<String, Path> paths = new TreeMap<String, Path>();
+        Files.walkFileTree( start, new SimpleFileVisitor<Path>()
+        {
+            public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs )
+            {
+                paths.put( start.relativize( dir ).toString(), dir );
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile( Path path, BasicFileAttributes attrs )
+            {
+                paths.put( start.relativize( path ).toString(), path );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+
+        update( name + '=' + file.getAbsolutePath() + '\n' );
+        for ( Map.Entry<String, Path> entry : paths.entrySet() )
+        {
+            final Path path = entry.getValue();
+            final StringBuilder line = new StringBuilder( entry.getKey() ).append( ' ' );
+            line.append( getPermissions( path ) ).append( ' ' );
+            if ( Files.isSymbolicLink( path ) )
+            {
+                line.append( "-> " ).append( Files.readSymbolicLink( path ) );
+            }
+            else if ( Files.isDirectory( path ) )
+            {
+                line.append( "dir" );
+            }
+            else
+            {
+                line.append( Files.size( path ) ).append( ' ' ).append( FileDigest.hash( path.toFile() ) );
+            }
+            update( line.append( '\n' ).toString() );
+        }
+    }
+
+    /**
+     * @return The hex encoded fingerprint.
+     */
+    String get()
+    {
+        return RPMPackageWriter.hex( digest.digest() );
+    }
+
+    /**
+     * @param file The file a fingerprint has been {@link #write(File, String) written} to.
+     * @param fingerprint The fingerprint of the current build.
+     * @return Indicates if <i>file</i> holds <i>fingerprint</i>.
+     */
+    static boolean matches( File file, String fingerprint )
+    {
+        try
+        {
+            return fingerprint.equals( new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 ) );
+        }
+        catch ( IOException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Writes <i>fingerprint</i> to <i>file</i>, replacing it atomically.
+     *
+     * @param file The file to write.
+     * @param fingerprint The fingerprint to write.
+     * @throws IOException if the file cannot be written
+     */
+    static void write( File file, String fingerprint )
+        throws IOException
+    {
+        final File tmp = new File( file.getPath() + ".tmp" );
+        Files.write( tmp.toPath(), fingerprint.getBytes( StandardCharsets.UTF_8 ) );
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    private void update( String value )
+    {
+        digest.update( value.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    private static String getPermissions( Path path )
+        throws IOException
+    {
+        try
+        {
+            return PosixFilePermissions.toString(
+                Files.getPosixFilePermissions( path, LinkOption.NOFOLLOW_LINKS ) );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            return path.toFile().canExecute() ? "x" : "-";
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a cpio archive in the "new ASCII" (<i>newc</i>) format used for rpm payloads.
+ *
+ * @since 2.3.1
+ */
+final class CpioWriter
+{
+    private static final String MAGIC = "070701";
+
+    private static final String TRAILER = "TRAILER!!!";
+
+    private final OutputStream out;
+
+    private final byte[] buffer = new byte[64 * 1024];
+
+    /**
+     * Number of bytes written so far, used for the 4 byte alignment of names and data.
+     */
+    private long written;
+
+    /**
+     * @param out The stream to write the archive to. It is not closed by this class.
+     */
+    CpioWriter( OutputStream out )
+    {
+        this.out = out;
+    }
+
+    /**
+     * @return The number of (uncompressed) archive bytes written so far.
+     */
+    long getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * Writes an entry header. The caller must follow up with exactly <i>size</i> bytes of content through
+     * {@link #writeContent(InputStream, long)} or {@link #writeContent(byte[])}.
+     *
+     * @param name The entry name, e.g. <code>./usr/bin/tool</code>.
+     * @param inode The inode number of the entry.
+     * @param mode The full mode (including the file type bits).
+     * @param nlink The number of links.
+     * @param mtime The modification time in seconds since the epoch.
+     * @param size The size of the content.
+     * @throws IOException if the header cannot be written.
+     */
+    void writeHeader( String name, int inode, int mode, int nlink, long mtime, long size )
+        throws IOException
+    {
+        if ( size > 0xffffffffL )
+        {
+            throw new IOException( "File too large for cpio payload: " + name + " (" + size + " bytes)" );
+        }
+
+        final byte[] nameBytes = name.getBytes( StandardCharsets.UTF_8 );
+
+        final StringBuilder header = new StringBuilder( 110 );
+        header.append( MAGIC );
+        hex( header, inode );
+        hex( header, mode );
+        hex( header, 0 ); // uid
+        hex( header, 0 ); // gid
+        hex( header, nlink );
+        hex( header, mtime );
+        hex( header, size );
+        hex( header, 0 ); // devmajor
+        hex( header, 0 ); // devminor
+        hex( header, 0 ); // rdevmajor
+        hex( header, 0 ); // rdevminor
+        hex( header, nameBytes.length + 1 );
+        hex( header, 0 ); // check
+
+        write( header.toString().getBytes( StandardCharsets.US_ASCII ) );
+        write( nameBytes );
+        write( new byte[] { 0 } );
+        pad();
+    }
+
+    /**
+     * Copies exactly <i>size</i> bytes of entry content from <i>in</i>.
+     *
+     * @param in The content.
+     * @param size The size declared in the entry header.
+     * @throws IOException if the content could not be copied or has a different size than declared.
+     */
+    void writeContent( InputStream in, long size )
+        throws IOException
+    {
+        long remaining = size;
+        int read;
+        while ( remaining > 0 && ( read = in.read( buffer, 0, (int) Math.min( buffer.length, remaining ) ) ) != -1 )
+        {
+            write( buffer, read );
+            remaining -= read;
+        }
+
+        if ( remaining != 0 || in.read() != -1 )
+        {
+            throw new IOException( "File size changed while writing the payload" );
+        }
+        pad();
+    }
+
+    /**
+     * Writes the complete entry content.
+     *
+     * @param content The content.
+     * @throws IOException if the content cannot be written.
+     */
+    void writeContent( byte[] content )
+        throws IOException
+    {
+        write( content );
+        pad();
+    }
+
+    /**
+     * Writes the trailer entry. The archive is complete after this call.
+     *
+     * @throws IOException if the trailer cannot be written.
+     */
+    void finish()
+        throws IOException
+    {
+        writeHeader( TRAILER, 0, 0, 1, 0, 0 );
+    }
+
+    private void write( byte[] bytes )
+        throws IOException
+    {
+        write( bytes, bytes.length );
+    }
+
+    private void write( byte[] bytes, int length )
+        throws IOException
+    {
+        out.write( bytes, 0, length );
+        written += length;
+    }
+
+    private void pad()
+        throws IOException
+    {
+        final int padding = (int) ( ( 4 - ( written % 4 ) ) % 4 );
+        if ( padding > 0 )
+        {
+            write( new byte[padding] );
+        }
+    }
+
+    private static void hex( StringBuilder sb, long value )
+    {
+        final String hex = Long.toHexString( value & 0xffffffffL );
+        for ( int i = hex.length(); i < 8; ++i )
+        {
+            sb.append( '0' );
+        }
+        sb.append( hex );
+    }
+}
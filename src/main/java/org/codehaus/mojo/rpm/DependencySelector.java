@@ -0,0 +1,233 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.versioning.ArtifactVersion;
+import org.apache.maven.artifact.versioning.OverConstrainedVersionException;
+import org.codehaus.plexus.util.StringUtils;
+
+/**
+ * Selects the dependencies matching the {@link Dependency#getIncludes() includes} and not matching the
+ * {@link Dependency#getExcludes() excludes} of a {@link Dependency}.
+ * <p>
+ * A pattern matches a dependency if its group id and artifact id are empty, <code>*</code> or equal to those of the
+ * dependency, its version range contains the selected version of the dependency and its type and classifier are either
+ * empty or equal to those of the dependency (the classifier is only compared if the type matches). To avoid comparing
+ * every dependency with every pattern, the patterns are indexed by group id and artifact id, so only the patterns
+ * which can match are checked. Whether a version range contains a version is only determined once per version.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class DependencySelector
+{
+    /**
+     * The patterns of an include or exclude list, indexed by group id and artifact id.
+     */
+    private static final class Patterns
+    {
+        private final Map<String, List<Pattern>> exact = new HashMap<String, List<Pattern>>();
+
+        private final Map<String, List<Pattern>> byGroupId = new HashMap<String, List<Pattern>>();
+
+        private final Map<String, List<Pattern>> byArtifactId = new HashMap<String, List<Pattern>>();
+
+        private final List<Pattern> wildcards = new ArrayList<Pattern>();
+
+        Patterns( List<Artifact> items )
+        {
+            for ( Artifact item : items )
+            {
+                final Pattern pattern = new Pattern( item );
+                final boolean anyGroupId = isWildcard( item.getGroupId() );
+                final boolean anyArtifactId = isWildcard( item.getArtifactId() );
+                if ( anyGroupId && anyArtifactId )
+                {
+                    wildcards.add( pattern );
+                }
+                else if ( anyGroupId )
+                {
+                    add( byArtifactId, item.getArtifactId(), pattern );
+                }
+                else if ( anyArtifactId )
+                {
+                    add( byGroupId, item.getGroupId(), pattern );
+                }
+                else
+                {
+                    add( exact, item.getGroupId() + ':' + item.getArtifactId(), pattern );
+                }
+            }
+        }
+
+        boolean matches( Artifact dep, Version version )
+        {
+            return matches( get( exact, dep.getGroupId() + ':' + dep.getArtifactId() ), dep, version )
+                || matches( get( byGroupId, dep.getGroupId() ), dep, version )
+                || matches( get( byArtifactId, dep.getArtifactId() ), dep, version )
+                || matches( wildcards, dep, version );
+        }
+
+        private static boolean matches( List<Pattern> patterns, Artifact dep, Version version )
+        {
+            for ( Pattern pattern : patterns )
+            {
+                if ( pattern.matches( dep, version ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static void add( Map<String, List<Pattern>> index, String key, Pattern pattern )
+        {
+            List<Pattern> patterns = index.get( key );
+            if ( patterns == null )
+            {
+                patterns = new ArrayList<Pattern>();
+                index.put( key, patterns );
+            }
+            patterns.add( pattern );
+        }
+
+        private static List<Pattern> get( Map<String, List<Pattern>> index, String key )
+        {
+            final List<Pattern> patterns = index.get( key );
+            return patterns == null ? Collections.<Pattern>emptyList() : patterns;
+        }
+
+        private static boolean isWildcard( String id )
+        {
+            return StringUtils.isEmpty( id ) || "*".equals( id );
+        }
+    }
+
+    /**
+     * A pattern, remembering which versions its range contains.
+     */
+    private static final class Pattern
+    {
+        private final Artifact item;
+
+        private final Map<ArtifactVersion, Boolean> containedVersions = new HashMap<ArtifactVersion, Boolean>();
+
+        Pattern( Artifact item )
+        {
+            this.item = item;
+        }
+
+        boolean matches( Artifact dep, Version version )
+        {
+            if ( version.get() == null || !contains( version.get() ) )
+            {
+                return false;
+            }
+            if ( item.getType().isEmpty() )
+            {
+                return true;
+            }
+            return item.getType().equals( dep.getType() )
+                && ( item.getClassifier().isEmpty() || item.getClassifier().equals( dep.getClassifier() ) );
+        }
+
+        private boolean contains( ArtifactVersion version )
+        {
+            Boolean contained = containedVersions.get( version );
+            if ( contained == null )
+            {
+                contained = item.getVersionRange().containsVersion( version );
+                containedVersions.put( version, contained );
+            }
+            return contained;
+        }
+    }
+
+    /**
+     * The selected version of a dependency, determined when a pattern first needs it.
+     */
+    private static final class Version
+    {
+        private final Artifact dep;
+
+        private boolean resolved;
+
+        private ArtifactVersion version;
+
+        Version( Artifact dep )
+        {
+            this.dep = dep;
+        }
+
+        /**
+         * @return The selected version, {@code null} if it is over constrained (which matches no pattern).
+         */
+        ArtifactVersion get()
+        {
+            if ( !resolved )
+            {
+                resolved = true;
+                try
+                {
+                    version = dep.getSelectedVersion();
+                }
+                catch ( OverConstrainedVersionException e )
+                {
+                    version = null;
+                }
+            }
+            return version;
+        }
+    }
+
+    private final Patterns includes;
+
+    private final Patterns excludes;
+
+    /**
+     * @param dependency The includes and excludes to select by.
+     */
+    DependencySelector( Dependency dependency )
+    {
+        this.includes = dependency.getIncludes() == null ? null : new Patterns( dependency.getIncludes() );
+        this.excludes = dependency.getExcludes() == null ? null : new Patterns( dependency.getExcludes() );
+    }
+
+    /**
+     * @param dep The dependency.
+     * @return {@code true} if <i>dep</i> is not excluded and either included or there are no includes.
+     */
+    boolean isSelected( Artifact dep )
+    {
+        final Version version = new Version( dep );
+        if ( excludes != null && excludes.matches( dep, version ) )
+        {
+            return false;
+        }
+        return includes == null || includes.matches( dep, version );
+    }
+}
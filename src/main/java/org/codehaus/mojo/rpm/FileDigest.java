@@ -0,0 +1,93 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The sha256 of the content of files, used to recognize unchanged and identical files.
+ *
+ * @since 2.3.1
+ */
+final class FileDigest
+{
+    private FileDigest()
+    {
+    }
+
+    /**
+     * @return A new sha256 digest.
+     */
+    static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Adds the content of <i>file</i> to <i>digest</i>.
+     *
+     * @param digest The digest to update.
+     * @param file The file to read.
+     * @throws IOException if <i>file</i> cannot be read
+     */
+    static void update( MessageDigest digest, File file )
+        throws IOException
+    {
+        final InputStream in = new FileInputStream( file );
+        try
+        {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ( ( read = in.read( buffer ) ) != -1 )
+            {
+                digest.update( buffer, 0, read );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @param file The file to hash.
+     * @return The hex encoded sha256 of the content of <i>file</i>.
+     * @throws IOException if <i>file</i> cannot be read
+     */
+    static String hash( File file )
+        throws IOException
+    {
+        final MessageDigest digest = newDigest();
+        update( digest, file );
+        return RPMPackageWriter.hex( digest.digest() );
+    }
+}
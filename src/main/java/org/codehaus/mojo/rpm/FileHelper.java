@@ -25,21 +25,29 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.artifact.Artifact;
-import org.apache.maven.artifact.versioning.OverConstrainedVersionException;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
 import org.codehaus.plexus.archiver.ArchiveEntry;
 import org.codehaus.plexus.archiver.util.DefaultFileSet;
+import org.codehaus.plexus.components.io.resources.PlexusIoFileResource;
+import org.codehaus.plexus.components.io.resources.PlexusIoSymlinkResource;
 import org.codehaus.plexus.util.StringUtils;
 
 /**
@@ -59,13 +67,6 @@ final class FileHelper
     private static final String DESTINATION_DIRECTORY_ERROR_MSG =
         "Source has a destination [{0}], but the location [{1}] does not refer to a file.";
 
-    /**
-     * {@code Pattern} to identify macros.
-     *
-     * @since 2.1-alpha-1
-     */
-    private static final Pattern MACRO_PATTERN = Pattern.compile( "%\\{([^}]*)\\}" );
-
     /**
      * A Plexus component to copy files and directories. Using our own custom version of the DirectoryArchiver to allow
      * filtering of files.
@@ -74,19 +75,155 @@ final class FileHelper
 
     private final AbstractRPMMojo mojo;
 
+    /**
+     * Which sources are staged.
+     */
+    private final Scope scope;
+
+    /**
+     * The sources staged by an {@link FileHelper#installFiles() installation}. Several architectures are built from one
+     * staging pass by staging the {@link #SHARED} sources once and the {@link #ARCHITECTURE} sources for each
+     * architecture.
+     *
+     * @since 2.3.1
+     */
+    enum Scope
+    {
+        /** All sources, artifacts and dependencies matching the target architecture. */
+        ALL,
+
+        /** The sources without a target architecture, the artifacts and the dependencies. */
+        SHARED,
+
+        /** Only the sources with a target architecture matching the target architecture. */
+        ARCHITECTURE
+    }
+
+    /**
+     * A single copy of a source, artifact or dependency into the destination of a mapping.
+     */
+    private static final class StagingTask
+    {
+        final File src;
+
+        final String srcName;
+
+        final File dest;
+
+        final List<String> includes;
+
+        final List<String> excludes;
+
+        final boolean filter;
+
+        final boolean noDefaultExcludes;
+
+        final boolean hardLink;
+
+        /**
+         * The name recorded as copied for the mapping, {@code null} to record all {@link #copied} files.
+         */
+        final String copiedName;
+
+        /**
+         * The attributes of the copied files in the package if they are
+         * {@link FilteringDirectoryArchiver#setDeduplicationAttributes(String) deduplicated} (i.e. they are
+         * artifacts), {@code null} otherwise.
+         */
+        String deduplicationAttributes;
+
+        /**
+         * The archiver performing the copy, set while the task is planned.
+         */
+        FilteringDirectoryArchiver archiver;
+
+        /**
+         * The entries the archiver will copy, keyed by path relative to {@link #dest}.
+         */
+        Map<String, ArchiveEntry> files;
+
+        /**
+         * The names of the copied files, relative to {@link #dest}.
+         */
+        List<String> copied;
+
+        /**
+         * The number of files {@link FilteringDirectoryArchiver#getFilteredFileCount() filtered} by the copy.
+         */
+        int filteredFileCount;
+
+        /**
+         * The number of {@link FilteringDirectoryArchiver#getBinaryFileCount() binary files} the copy did not filter.
+         */
+        int binaryFileCount;
+
+        StagingTask( File src, String srcName, File dest, List<String> includes, List<String> excludes,
+                     boolean filter, boolean noDefaultExcludes, boolean hardLink, String copiedName )
+        {
+            this.src = src;
+            this.srcName = srcName;
+            this.dest = dest;
+            this.includes = includes;
+            this.excludes = excludes;
+            this.filter = filter;
+            this.noDefaultExcludes = noDefaultExcludes;
+            this.hardLink = hardLink;
+            this.copiedName = copiedName;
+        }
+
+        /**
+         * @return The names, relative to {@link #dest}, the task writes to.
+         */
+        List<String> getDestinations()
+        {
+            if ( hardLink )
+            {
+                return Collections.singletonList( srcName );
+            }
+
+            final List<String> names = new ArrayList<String>( files.size() );
+            for ( String key : files.keySet() )
+            {
+                if ( key != null && key.length() > 0 )
+                {
+                    names.add( key );
+                }
+            }
+            return names;
+        }
+    }
+
+
     /**
      * @param mojo
      * @param copier
      */
     public FileHelper( AbstractRPMMojo mojo, FilteringDirectoryArchiver copier )
+    {
+        this( mojo, copier, Scope.ALL );
+    }
+
+    /**
+     * @param mojo
+     * @param copier
+     * @param scope The sources to stage.
+     * @since 2.3.1
+     */
+    FileHelper( AbstractRPMMojo mojo, FilteringDirectoryArchiver copier, Scope scope )
     {
         super();
         this.mojo = mojo;
         this.copier = copier;
+        this.scope = scope;
     }
 
     /**
      * Copy the files from the various mapping sources into the build root.
+     * <p>
+     * With more than one {@link AbstractRPMMojo#getStagingThreads() staging thread} the mappings are staged
+     * concurrently. Mappings which share a destination are staged by the same thread in the order they are configured,
+     * so the content of the build root is the same as if all mappings were staged one after another.
+     * </p>
      *
      * @throws MojoExecutionException if a problem occurs
      * @throws MojoFailureException
@@ -95,7 +232,6 @@ final class FileHelper
         throws MojoExecutionException, MojoFailureException
     {
         final File workarea = mojo.getWorkarea();
-        final File buildroot = mojo.getBuildroot();
 
         final File icon = mojo.getIcon();
         // Copy icon, if specified
@@ -107,71 +243,401 @@ final class FileHelper
 
         final Log log = mojo.getLog();
 
-        // Process each mapping
-        for ( Mapping map : mojo.getMappings() )
+        final int threads = mojo.getStagingThreads();
+        if ( threads > 1 )
+        {
+            installFilesInParallel( threads );
+        }
+        else
         {
-            final String destinationString = map.getDestination();
-            final String macroEvaluatedDestination = evaluateMacros( destinationString );
+            // Process each mapping
+            for ( Mapping map : mojo.getMappings() )
+            {
+                final List<StagingTask> tasks = prepareMapping( map );
+                for ( StagingTask task : tasks )
+                {
+                    plan( task, copier );
+                    execute( task );
+                }
+                completeMapping( map, tasks );
+            }
+        }
 
-            File dest = new File( buildroot, macroEvaluatedDestination );
-            map.setAbsoluteDestination( dest );
+        final StagingLinker stagingLinker = mojo.getStagingLinker();
+        if ( stagingLinker != null )
+        {
+            stagingLinker.logSummary( log );
+        }
+
+        final StagedContentRegistry stagedContentRegistry = mojo.getStagedContentRegistry();
+        if ( stagedContentRegistry != null )
+        {
+            stagedContentRegistry.logSummary( log );
+        }
 
-            if ( map.isDirOnly() )
+        final FilterPipeline filterPipeline = copier.getFilterPipeline();
+        if ( filterPipeline != null )
+        {
+            filterPipeline.logSummary( log );
+        }
+
+        final FilterCache filterCache = copier.getFilterCache();
+        if ( filterCache != null )
+        {
+            filterCache.trim();
+        }
+
+        final StagingManifest stagingManifest = mojo.getStagingManifest();
+        final Date reproducibleTimestamp = mojo.getReproducibleTimestamp();
+        if ( reproducibleTimestamp != null && mojo.getBuildroot().isDirectory() )
+        {
+            try
             {
-                // Build the output directory if it doesn't exist
-                if ( !dest.exists() )
+                final int clamped =
+                    SourceDateEpoch.clamp( mojo.getBuildroot(), reproducibleTimestamp, stagingManifest );
+                log.info( "Clamped the modification time of " + clamped + " files to " + reproducibleTimestamp );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to clamp the modification times of the build root: "
+                    + e.getMessage(), e );
+            }
+        }
+        if ( stagingManifest != null )
+        {
+            stagingManifest.removeStale( log );
+            try
+            {
+                stagingManifest.save();
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to write the staging manifest: " + e.getMessage(), e );
+            }
+        }
+
+        final VirtualBuildroot virtualBuildroot = mojo.getVirtualBuildroot();
+        if ( virtualBuildroot != null )
+        {
+            log.info( "Virtual buildroot contains " + virtualBuildroot.size() + " files ("
+                + virtualBuildroot.getLength() + " bytes) which were not copied" );
+        }
+    }
+
+    /**
+     * Stages all mappings using <i>threads</i> threads. Each task gets its own archiver. All tasks are scanned before
+     * anything is copied, so that mappings writing to the same destination can be grouped and staged in order.
+     *
+     * @param threads The number of threads to use.
+     * @throws MojoExecutionException if a problem occurs
+     * @throws MojoFailureException
+     */
+    private void installFilesInParallel( int threads )
+        throws MojoExecutionException, MojoFailureException
+    {
+        final List<Mapping> mappings = mojo.getMappings();
+        final int mappingCount = mappings.size();
+
+        // everything depending on the order of the mappings (macros, soft links, selection) is done up front
+        final List<List<StagingTask>> mappingTasks = new ArrayList<List<StagingTask>>( mappingCount );
+        for ( Mapping map : mappings )
+        {
+            mappingTasks.add( prepareMapping( map ) );
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            final List<Callable<Void>> planning = new ArrayList<Callable<Void>>();
+            for ( List<StagingTask> tasks : mappingTasks )
+            {
+                for ( final StagingTask task : tasks )
                 {
-                    log.info( "Creating empty directory " + dest.getAbsolutePath() );
-                    if ( !dest.mkdirs() )
+                    planning.add( new Callable<Void>()
                     {
-                        throw new MojoExecutionException( "Unable to create " + dest.getAbsolutePath() );
-                    }
+                        public Void call()
+                            throws MojoExecutionException
+                        {
+                            plan( task, newCopier() );
+                            return null;
+                        }
+                    } );
                 }
             }
-            else
-            {
-                processSources( map, dest );
+            invokeAll( executor, planning );
 
-                ArtifactMap art = map.getArtifact();
-                if ( art != null )
+            // union the mappings sharing a destination, the lowest index of a group is its root
+            final int[] groups = new int[mappingCount];
+            for ( int i = 0; i < mappingCount; ++i )
+            {
+                groups[i] = i;
+            }
+            final Map<String, Integer> owners = new HashMap<String, Integer>();
+            for ( int i = 0; i < mappingCount; ++i )
+            {
+                for ( StagingTask task : mappingTasks.get( i ) )
                 {
-                    List<Artifact> artlist = selectArtifacts( art );
-                    for ( Artifact artifactInstance : artlist )
+                    for ( String name : task.getDestinations() )
                     {
-                        copyArtifact( artifactInstance, dest, false, false);
-                        map.addCopiedFileNameRelativeToDestination( artifactInstance.getFile().getName() );
+                        final String destination = new File( task.dest, name ).getAbsolutePath();
+                        final Integer owner = owners.put( destination, i );
+                        if ( owner != null && owner != i )
+                        {
+                            mojo.getLog().debug( "Destination " + destination + " is shared by mappings " + owner
+                                + " and " + i + ", staging them in order" );
+                            union( groups, owner, i );
+                        }
                     }
                 }
+            }
 
-                Dependency dep = map.getDependency();
-                if ( dep != null )
+            final Map<Integer, List<StagingTask>> groupTasks = new LinkedHashMap<Integer, List<StagingTask>>();
+            for ( int i = 0; i < mappingCount; ++i )
+            {
+                final Integer root = find( groups, i );
+                List<StagingTask> tasks = groupTasks.get( root );
+                if ( tasks == null )
                 {
-                    List<Artifact> deplist = selectDependencies( dep );
-                    for ( Artifact artifactInstance : deplist )
-                    {
-                        // pass in dependency stripVersion parameter
-                        String outputFileName = copyArtifact( artifactInstance, dest, dep.getStripVersion(), mojo.isHardLinkDependencies());
-                        map.addCopiedFileNameRelativeToDestination( outputFileName );
-                    }
+                    tasks = new ArrayList<StagingTask>();
+                    groupTasks.put( root, tasks );
                 }
+                tasks.addAll( mappingTasks.get( i ) );
+            }
+
+            mojo.getLog().info( "Staging " + mappingCount + " mappings in " + groupTasks.size()
+                + " independent groups using " + threads + " threads" );
 
-                if ( map.getCopiedFileNamesRelativeToDestination().isEmpty() )
+            final List<Callable<Void>> staging = new ArrayList<Callable<Void>>( groupTasks.size() );
+            for ( final List<StagingTask> tasks : groupTasks.values() )
+            {
+                staging.add( new Callable<Void>()
                 {
-                    log.info( "Mapping empty with destination: " + dest.getName() );
-                    // Build the output directory if it doesn't exist
-                    if ( !dest.exists() )
+                    public Void call()
+                        throws MojoExecutionException
                     {
-                        log.info( "Creating empty directory " + dest.getAbsolutePath() );
-                        if ( !dest.mkdirs() )
+                        for ( StagingTask task : tasks )
                         {
-                            throw new MojoExecutionException( "Unable to create " + dest.getAbsolutePath() );
+                            execute( task );
                         }
+                        return null;
                     }
+                } );
+            }
+            invokeAll( executor, staging );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        for ( int i = 0; i < mappingCount; ++i )
+        {
+            completeMapping( mappings.get( i ), mappingTasks.get( i ) );
+        }
+    }
+
+    private static int find( int[] groups, int index )
+    {
+        while ( groups[index] != index )
+        {
+            index = groups[index];
+        }
+        return index;
+    }
+
+    private static void union( int[] groups, int first, int second )
+    {
+        final int firstRoot = find( groups, first );
+        final int secondRoot = find( groups, second );
+        groups[Math.max( firstRoot, secondRoot )] = Math.min( firstRoot, secondRoot );
+    }
+
+    /**
+     * Runs all <i>tasks</i> and waits for their completion.
+     *
+     * @param executor The executor to run the tasks with.
+     * @param tasks The tasks to run.
+     * @throws MojoExecutionException if a task fails
+     */
+    private static void invokeAll( ExecutorService executor, List<Callable<Void>> tasks )
+        throws MojoExecutionException
+    {
+        try
+        {
+            for ( Future<Void> future : executor.invokeAll( tasks ) )
+            {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException( "Interrupted while copying files for packaging", e );
+        }
+        catch ( ExecutionException e )
+        {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) cause;
+            }
+            throw new MojoExecutionException( "Unable to copy files for packaging: " + cause.getMessage(), cause );
+        }
+    }
+
+    /**
+     * @return A new archiver configured the same as {@link #copier}.
+     */
+    private FilteringDirectoryArchiver newCopier()
+    {
+        final FilteringDirectoryArchiver archiver = new FilteringDirectoryArchiver();
+        archiver.setMavenFileFilter( copier.getMavenFileFilter() );
+        archiver.setIncludeEmptyDirs( copier.getIncludeEmptyDirs() );
+        archiver.setStagingManifest( copier.getStagingManifest() );
+        archiver.setStagingLinker( copier.getStagingLinker() );
+        archiver.setStagedFileIndex( copier.getStagedFileIndex() );
+        archiver.setStagedContentRegistry( copier.getStagedContentRegistry() );
+        archiver.setFilterPipeline( copier.getFilterPipeline() );
+        archiver.setBinaryFileDetector( copier.getBinaryFileDetector() );
+        archiver.setFilterCache( copier.getFilterCache() );
+        archiver.setReplaceStagedFiles( copier.isReplaceStagedFiles() );
+        return archiver;
+    }
+
+    /**
+     * Sets the {@link Mapping#setAbsoluteDestination(File) absolute destination} of <i>map</i> and determines what has
+     * to be copied to it.
+     *
+     * @param map The mapping to prepare.
+     * @return The copies to perform, in order.
+     * @throws MojoExecutionException if a problem occurs
+     * @throws MojoFailureException
+     */
+    private List<StagingTask> prepareMapping( Mapping map )
+        throws MojoExecutionException, MojoFailureException
+    {
+        final List<StagingTask> tasks = new ArrayList<StagingTask>();
+
+        final String destinationString = map.getDestination();
+        final String macroEvaluatedDestination = mojo.evaluateMacros( destinationString );
+
+        File dest = new File( mojo.getBuildroot(), macroEvaluatedDestination );
+        map.setAbsoluteDestination( dest );
+
+        final StagingManifest stagingManifest = mojo.getStagingManifest();
+        if ( stagingManifest != null )
+        {
+            stagingManifest.recordStaged( dest );
+        }
+
+        if ( map.isDirOnly() )
+        {
+            // Build the output directory if it doesn't exist
+            if ( !dest.exists() )
+            {
+                mojo.getLog().info( "Creating empty directory " + dest.getAbsolutePath() );
+                // another mapping staged concurrently may create it meanwhile
+                if ( !dest.mkdirs() && !dest.isDirectory() )
+                {
+                    throw new MojoExecutionException( "Unable to create " + dest.getAbsolutePath() );
+                }
+            }
+            mojo.getStagedFileIndex().addDirectory( dest, -1 );
+        }
+        else
+        {
+            processSources( map, dest, tasks );
+
+            final String attributes = mojo.getStagedContentRegistry() == null ? null
+                            : map.getAttrString( mojo.getDefaultFilemode(), mojo.getDefaultDirmode(),
+                                                 mojo.getDefaultGroupname(), mojo.getDefaultUsername() );
+
+            ArtifactMap art = scope != Scope.ARCHITECTURE ? map.getArtifact() : null;
+            if ( art != null )
+            {
+                List<Artifact> artlist = selectArtifacts( art );
+                for ( Artifact artifactInstance : artlist )
+                {
+                    tasks.add( copyArtifact( artifactInstance, dest, false, false, attributes ) );
+                }
+            }
+
+            Dependency dep = scope != Scope.ARCHITECTURE ? map.getDependency() : null;
+            if ( dep != null )
+            {
+                List<Artifact> deplist = selectDependencies( dep );
+                for ( Artifact artifactInstance : deplist )
+                {
+                    // pass in dependency stripVersion parameter
+                    tasks.add( copyArtifact( artifactInstance, dest, dep.getStripVersion(),
+                                             mojo.isHardLinkDependencies(), attributes ) );
                 }
             }
         }
+
+        return tasks;
     }
-    
+
+    /**
+     * Records the files copied by the <i>tasks</i> of <i>map</i>, in the order the tasks were created.
+     *
+     * @param map The mapping the tasks were {@link #prepareMapping(Mapping) prepared} for.
+     * @param tasks The executed tasks.
+     * @throws MojoExecutionException if the destination directory cannot be created
+     */
+    private void completeMapping( Mapping map, List<StagingTask> tasks )
+        throws MojoExecutionException
+    {
+        if ( map.isDirOnly() )
+        {
+            return;
+        }
+
+        int filteredFileCount = 0;
+        int binaryFileCount = 0;
+        for ( StagingTask task : tasks )
+        {
+            if ( task.copiedName != null )
+            {
+                map.addCopiedFileNameRelativeToDestination( task.copiedName );
+            }
+            else
+            {
+                map.addCopiedFileNamesRelativeToDestination( task.copied );
+            }
+            filteredFileCount += task.filteredFileCount;
+            binaryFileCount += task.binaryFileCount;
+        }
+
+        if ( binaryFileCount > 0 )
+        {
+            mojo.getLog().info( "Mapping " + map.getDirectory() + ": filtered " + filteredFileCount + " files, copied "
+                + binaryFileCount + " binary files unfiltered" );
+        }
+        else if ( filteredFileCount > 0 )
+        {
+            mojo.getLog().debug( "Mapping " + map.getDirectory() + ": filtered " + filteredFileCount + " files" );
+        }
+
+        if ( map.getCopiedFileNamesRelativeToDestination().isEmpty() )
+        {
+            final Log log = mojo.getLog();
+            final File dest = map.getAbsoluteDestination();
+            log.info( "Mapping empty with destination: " + dest.getName() );
+            // Build the output directory if it doesn't exist
+            if ( !dest.exists() )
+            {
+                log.info( "Creating empty directory " + dest.getAbsolutePath() );
+                // another mapping staged concurrently may create it meanwhile
+                if ( !dest.mkdirs() && !dest.isDirectory() )
+                {
+                    throw new MojoExecutionException( "Unable to create " + dest.getAbsolutePath() );
+                }
+            }
+            mojo.getStagedFileIndex().addDirectory( dest, -1 );
+        }
+    }
+
     /**
     * 
     * @param src The source directory/file
@@ -180,6 +646,17 @@ final class FileHelper
     */
     private void hardLinkSource(File src, Path outputFileName) throws MojoExecutionException {
         try {
+            final StagingManifest stagingManifest = mojo.getStagingManifest();
+            if ( stagingManifest != null )
+            {
+                stagingManifest.recordStaged( outputFileName.toFile() );
+                if ( Files.exists( outputFileName ) && Files.isSameFile( outputFileName, src.toPath() ) )
+                {
+                    mojo.getLog().debug( "Hard link " + outputFileName + " is up to date." );
+                    mojo.getStagedFileIndex().addFile( outputFileName.toFile(), -1, src.length() );
+                    return;
+                }
+            }
             //Delete existing file always, previous file may be different version with same filename
             if(Files.exists(outputFileName)) {
                 mojo.getLog().debug("Deleting previous file for ensuring hard link points to right target.");
@@ -187,6 +664,7 @@ final class FileHelper
             }
             mojo.getLog().debug("Creating hard link from "+ src.getAbsolutePath() + " to " + outputFileName);
             Files.createLink(outputFileName, src.toPath());
+            mojo.getStagedFileIndex().addFile( outputFileName.toFile(), -1, src.length() );
         } catch (IOException e) {
             throw new MojoExecutionException("Unable to hard link source (" + src.getAbsolutePath() +"): " + e.getMessage(), e);
         }
@@ -208,69 +686,212 @@ final class FileHelper
                                      boolean filter, boolean dontUseDefaultExcludes )
         throws MojoExecutionException
     {
+        final StagingTask task = new StagingTask( src, srcName, dest, incl, excl, filter, dontUseDefaultExcludes,
+                                                  false, null );
+        plan( task, copier );
+        execute( task );
+        return task.copied;
+    }
+
+    /**
+     * Configures <i>archiver</i> for the copy described by <i>task</i> and determines the files it will copy.
+     *
+     * @param task The copy to plan.
+     * @param archiver The archiver to perform the copy with. It must not be used for anything else until the task has
+     *            been {@link #execute(StagingTask) executed}.
+     * @throws MojoExecutionException if a problem occurs
+     */
+    private void plan( StagingTask task, FilteringDirectoryArchiver archiver )
+        throws MojoExecutionException
+    {
+        if ( task.hardLink )
+        {
+            return;
+        }
+
         try
         {
             // Set the destination
-            copier.setDestFile( dest );
+            archiver.setDestFile( task.dest );
 
             // Set the source
-            if ( src.isDirectory() )
+            if ( task.src.isDirectory() )
             {
                 String[] ia = null;
-                if ( incl != null )
+                if ( task.includes != null )
                 {
-                    ia = incl.toArray( new String[0] );
+                    ia = task.includes.toArray( new String[0] );
                 }
 
                 String[] ea = null;
-                if ( excl != null )
+                if ( task.excludes != null )
                 {
-                    ea = excl.toArray( new String[0] );
+                    ea = task.excludes.toArray( new String[0] );
                 }
 
                 // same as copier.addDirectory( src, "", ia, ea ) with dontUseDefaultExcludes
-                DefaultFileSet fileset = new DefaultFileSet( src );
+                DefaultFileSet fileset = new DefaultFileSet( task.src );
                 fileset.setPrefix( "" );
                 fileset.setIncludes( ia );
                 fileset.setExcludes( ea );
-                fileset.setIncludingEmptyDirectories( copier.getIncludeEmptyDirs() );
-                fileset.setUsingDefaultExcludes( !dontUseDefaultExcludes );
+                fileset.setIncludingEmptyDirectories( archiver.getIncludeEmptyDirs() );
+                fileset.setUsingDefaultExcludes( !task.noDefaultExcludes );
 
-                copier.addFileSet( fileset );
+                archiver.addFileSet( fileset );
             }
             else
             {
                 // set srcName to default if null
-                srcName = srcName != null ? srcName : src.getName();
-                copier.addFile( src, srcName );
+                archiver.addFile( task.src, task.srcName != null ? task.srcName : task.src.getName() );
             }
 
-            copier.setFilter( filter );
-            copier.setFilterWrappers( mojo.getFilterWrappers() );
+            archiver.setFilter( task.filter );
+            archiver.setFilterWrappers( mojo.getFilterWrappers() );
+            archiver.setDeduplicationAttributes( task.deduplicationAttributes );
 
-            Map<String, ArchiveEntry> copiedFilesMap = copier.getFiles();
+            task.archiver = archiver;
+            task.files = archiver.getFiles();
+        }
+        catch ( Throwable t )
+        {
+            throw new MojoExecutionException( "Unable to copy files for packaging: " + t.getMessage(), t );
+        }
+    }
 
-            // Perform the copy
-            copier.createArchive();
+    /**
+     * Performs the copy of a {@link #plan(StagingTask, FilteringDirectoryArchiver) planned} <i>task</i>.
+     *
+     * @param task The copy to perform.
+     * @throws MojoExecutionException if a problem occurs
+     */
+    private void execute( StagingTask task )
+        throws MojoExecutionException
+    {
+        if ( task.hardLink )
+        {
+            hardLinkSource( task.src, task.dest.toPath().resolve( task.srcName ) );
+            task.copied = Collections.singletonList( task.srcName );
+            return;
+        }
+
+        final FilteringDirectoryArchiver archiver = task.archiver;
+        try
+        {
+            final Map<String, ArchiveEntry> copiedFilesMap = task.files;
 
-            List<String> copiedFiles = new ArrayList<String>( copiedFilesMap.size() );
-            for ( String key : copiedFilesMap.keySet() )
+            final VirtualBuildroot virtualBuildroot = mojo.getVirtualBuildroot();
+            if ( virtualBuildroot != null && !task.filter && isVirtualizable( copiedFilesMap ) )
             {
-                if ( key != null && key.length() > 0 )
+                // only record the files, their content is read when the payload is written
+                recordVirtualFiles( virtualBuildroot, mojo.getStagingManifest(), mojo.getStagedFileIndex(), task.dest,
+                                    copiedFilesMap );
+            }
+            else
+            {
+                // Perform the copy, the directory may be shared with a mapping staged concurrently, which
+                // DirectoryArchiver would fail to create as well
+                Files.createDirectories( task.dest.toPath() );
+                archiver.createArchive();
+                archiver.completePendingCopies();
+
+                if ( virtualBuildroot != null )
                 {
-                    copiedFiles.add( key );
+                    for ( String key : copiedFilesMap.keySet() )
+                    {
+                        virtualBuildroot.remove( new File( task.dest, key ) );
+                    }
                 }
             }
 
-            // Clear the list for the next mapping
-            copier.resetArchiver();
+            task.copied = task.getDestinations();
+            task.filteredFileCount = archiver.getFilteredFileCount();
+            task.binaryFileCount = archiver.getBinaryFileCount();
 
-            return copiedFiles;
+            // Clear the list for the next mapping
+            archiver.resetArchiver();
         }
         catch ( Throwable t )
         {
             throw new MojoExecutionException( "Unable to copy files for packaging: " + t.getMessage(), t );
         }
+        finally
+        {
+            task.archiver = null;
+            task.files = null;
+        }
+    }
+
+    /**
+     * Determines if the <i>files</i> can be recorded in the virtual buildroot, which is the case when they consist of
+     * plain files and directories only (soft links are staged).
+     *
+     * @param files The files of the archiver.
+     * @return {@code true} if all <i>files</i> can be recorded.
+     */
+    private static boolean isVirtualizable( Map<String, ArchiveEntry> files )
+    {
+        for ( ArchiveEntry entry : files.values() )
+        {
+            if ( entry.getType() == ArchiveEntry.FILE )
+            {
+                if ( !( entry.getResource() instanceof PlexusIoFileResource )
+                    || entry.getResource() instanceof PlexusIoSymlinkResource )
+                {
+                    return false;
+                }
+            }
+            else if ( entry.getType() != ArchiveEntry.DIRECTORY )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the files of the archiver in the <i>virtualBuildroot</i> instead of copying them. Directories are still
+     * created.
+     *
+     * @param virtualBuildroot The manifest to record the files in.
+     * @param stagingManifest The manifest to record the directories in, {@code null} if the staging is not
+     *            incremental.
+     * @param stagedFileIndex The index to record the files and directories in.
+     * @param dest The destination directory.
+     * @param files The files of the archiver, keyed by path relative to <i>dest</i>.
+     * @throws IOException if a directory cannot be created
+     */
+    private static void recordVirtualFiles( VirtualBuildroot virtualBuildroot, StagingManifest stagingManifest,
+                                            StagedFileIndex stagedFileIndex, File dest,
+                                            Map<String, ArchiveEntry> files )
+        throws IOException
+    {
+        for ( Map.Entry<String, ArchiveEntry> entry : files.entrySet() )
+        {
+            final String key = entry.getKey();
+            if ( key == null || key.length() == 0 )
+            {
+                continue;
+            }
+
+            final File destination = new File( dest, key );
+            final ArchiveEntry archiveEntry = entry.getValue();
+            if ( archiveEntry.getType() == ArchiveEntry.DIRECTORY )
+            {
+                Files.createDirectories( destination.toPath() );
+                if ( stagingManifest != null )
+                {
+                    stagingManifest.recordStaged( destination );
+                }
+                stagedFileIndex.addDirectory( destination, archiveEntry.getMode() );
+            }
+            else
+            {
+                Files.createDirectories( destination.getParentFile().toPath() );
+                final File origin = ( (PlexusIoFileResource) archiveEntry.getResource() ).getFile();
+                virtualBuildroot.add( destination, origin, archiveEntry.getMode() & 07777 );
+                stagedFileIndex.addFile( destination, archiveEntry.getMode(), origin.length() );
+            }
+        }
     }
 
     public static DefaultFileSet fileSet( File directory )
@@ -280,15 +901,18 @@ final class FileHelper
     }
 
     /**
-     * Copy an artifact.
+     * Prepares the copy of an artifact.
      *
      * @param art The artifact to copy
      * @param dest The destination directory
      * @param stripVersion Whether or not to strip the artifact version from the filename
-     * @return Artifact file name
+     * @param hardLinkOnly Whether the artifact should be hard linked instead of copied
+     * @param attributes The attributes of the artifact in the package, {@code null} to not deduplicate it
+     * @return The copy to perform, the artifact file name is its {@link StagingTask#copiedName}
      * @throws MojoExecutionException if a problem occurs
      */
-    private String copyArtifact( Artifact art, File dest, boolean stripVersion, boolean hardLinkOnly )
+    private StagingTask copyArtifact( Artifact art, File dest, boolean stripVersion, boolean hardLinkOnly,
+                                      String attributes )
         throws MojoExecutionException
     {
         if ( art.getFile() == null )
@@ -317,12 +941,11 @@ final class FileHelper
         {
             outputFileName = art.getFile().getName();
         }
-        if(hardLinkOnly) {
-            hardLinkSource(art.getFile(), dest.toPath().resolve(outputFileName));
-        } else {
-            copySource( art.getFile(), outputFileName, dest, null, null, false, false );
-        }
-        return outputFileName;
+        final boolean hardLink = hardLinkOnly && mojo.getVirtualBuildroot() == null;
+        final StagingTask task = new StagingTask( art.getFile(), outputFileName, dest, null, null, false, false,
+                                                  hardLink, outputFileName );
+        task.deduplicationAttributes = attributes;
+        return task;
     }
 
 
@@ -372,8 +995,6 @@ final class FileHelper
     private List<Artifact> selectDependencies( Dependency d )
     {
         List<Artifact> retval = new ArrayList<Artifact>();
-        List<Artifact> inc = d.getIncludes();
-        List<Artifact> exc = d.getExcludes();
 
         @SuppressWarnings( "unchecked" )
         Set<Artifact> deps = mojo.project.getArtifacts();
@@ -383,18 +1004,17 @@ final class FileHelper
         }
 
         final Log log = mojo.getLog();
+        final DependencySelector selector = new DependencySelector( d );
 
         for ( Artifact pdep : deps )
         {
-            log.debug( "Dependency is " + pdep + " at " + pdep.getFile() );
-            if ( !depMatcher( pdep, exc ) )
+            if ( selector.isSelected( pdep ) )
             {
-                log.debug( "--> not excluded" );
-                if ( ( inc == null ) || ( depMatcher( pdep, inc ) ) )
+                if ( log.isDebugEnabled() )
                 {
-                    log.debug( "--> included" );
-                    retval.add( pdep );
+                    log.debug( "Dependency " + pdep + " at " + pdep.getFile() + " is included" );
                 }
+                retval.add( pdep );
             }
         }
 
@@ -402,19 +1022,21 @@ final class FileHelper
     }
 
     /**
-     * Installs the {@link Mapping#getSources() sources} to <i>dest</i>
+     * Prepares the installation of the {@link Mapping#getSources() sources} to <i>dest</i>
      *
      * @param map The <tt>Mapping</tt> to process the {@link Source sources} for.
      * @param dest The destination directory for the sources.
+     * @param tasks The list to add the copies to perform to.
      * @throws MojoExecutionException
      * @throws MojoFailureException
      */
-    private void processSources( Mapping map, File dest )
+    private void processSources( Mapping map, File dest, List<StagingTask> tasks )
         throws MojoExecutionException, MojoFailureException
     {
         if ( !dest.exists() )
         {
-            if ( !dest.mkdirs() )
+            // another mapping staged concurrently may create it meanwhile
+            if ( !dest.mkdirs() && !dest.isDirectory() )
             {
                 throw new MojoExecutionException( "unable to create directory: " + dest.getAbsolutePath() );
             }
@@ -440,6 +1062,11 @@ final class FileHelper
             // it is important that for each Source we set the files that are "installed".
             for ( Source src : srcs )
             {
+                if ( scope != Scope.ALL && ( src.getTargetArchitecture() == null ) != ( scope == Scope.SHARED ) )
+                {
+                    continue;
+                }
+
                 if ( !src.matchesArchitecture( targetArchComparison ) )
                 {
                     mojo.getLog().debug( "Source does not match target architecture: " + src.toString() );
@@ -452,7 +1079,7 @@ final class FileHelper
                     continue;
                 }
 
-                final File macroEvaluatedLocation = new File( evaluateMacros( src.getLocation() ) );
+                final File macroEvaluatedLocation = new File( mojo.evaluateMacros( src.getLocation() ) );
                 src.setMacroEvaluatedLocation( macroEvaluatedLocation.getPath() );
 
                 final File locationFile =
@@ -482,10 +1109,8 @@ final class FileHelper
                     final String destination = src.getDestination();
                     if ( destination == null )
                     {
-                        map.addCopiedFileNamesRelativeToDestination( copySource( locationFile, null, dest,
-                                                                                 src.getIncludes(), src.getExcludes(),
-                                                                                 src.isFilter(),
-                                                                                 src.getNoDefaultExcludes() ) );
+                        tasks.add( new StagingTask( locationFile, null, dest, src.getIncludes(), src.getExcludes(),
+                                                    src.isFilter(), src.getNoDefaultExcludes(), false, null ) );
                     }
                     else
                     {
@@ -496,10 +1121,9 @@ final class FileHelper
                                                                                         macroEvaluatedLocation } ) );
                         }
 
-                        copySource( locationFile, destination, dest, EMPTY_STRING_LIST, EMPTY_STRING_LIST,
-                                    src.isFilter(), src.getNoDefaultExcludes() );
-
-                        map.addCopiedFileNameRelativeToDestination( destination );
+                        tasks.add( new StagingTask( locationFile, destination, dest, EMPTY_STRING_LIST,
+                                                    EMPTY_STRING_LIST, src.isFilter(), src.getNoDefaultExcludes(),
+                                                    false, destination ) );
                     }
                 }
                 else if ( !src.getFailIfLocationNotExists() )
@@ -515,100 +1139,6 @@ final class FileHelper
         }
     }
 
-    /**
-     * Determine if there are any macros in the <i>value</i> and replace any/all occurrences with the
-     * {@link AbstractRPMMojo#evaluateMacro(String) evaluated} value.
-     *
-     * @param value String to replace macros in.
-     * @return Result of evaluating all macros in <i>value</i>.
-     * @throws MojoExecutionException
-     * @since 2.1-alpha-1
-     */
-    private String evaluateMacros( String value )
-        throws MojoExecutionException
-    {
-        final Matcher matcher = MACRO_PATTERN.matcher( value );
-
-        final StringBuffer newValue = new StringBuffer( value.length() );
-        while ( matcher.find() )
-        {
-            final String macro = matcher.group( 1 );
-            final String evaluatedValue = mojo.evaluateMacro( macro );
-            matcher.appendReplacement( newValue, evaluatedValue.replaceAll( "\\\\", "\\\\\\\\" ) );
-        }
-
-        matcher.appendTail( newValue );
-        return newValue.toString();
-    }
-
-    /**
-     * Determine if the dependency matches an include or exclude list.
-     *
-     * @param dep The dependency to check
-     * @param list The list to check against
-     * @return <code>true</code> if the dependency was found on the list
-     */
-    private boolean depMatcher( Artifact dep, List<Artifact> list )
-    {
-        if ( list == null )
-        {
-            // No list, not possible to match
-            return false;
-        }
-
-        final Log log = mojo.getLog();
-
-        for ( Artifact item : list )
-        {
-            log.debug( "Compare " + dep + " to " + item );
-            final String groupId = item.getGroupId();
-            if ( StringUtils.isEmpty( groupId ) || "*".equals( groupId ) || groupId.equals( dep.getGroupId() ) )
-            {
-                log.debug( "... Group matches" );
-                final String artifactId = item.getArtifactId();
-                if ( StringUtils.isEmpty( artifactId ) || "*".equals( artifactId )
-                    || artifactId.equals( dep.getArtifactId() ) )
-                {
-                    log.debug( "... Artifact matches" );
-                    // ArtifactVersion av = item.getVersionRange().matchVersion( dep.getAvailableVersions() );
-                    try
-                    {
-                        if ( item.getVersionRange().containsVersion( dep.getSelectedVersion() ) )
-                        {
-                            log.debug( "... Version matches" );
-                            if( item.getType().isEmpty() )
-                            {
-                                log.debug( "... Type is empty" );
-                                return true;
-                            }
-                            else if( item.getType().equals( dep.getType() ))
-                            {
-                                log.debug( "... Type matches" );
-                                if( item.getClassifier().isEmpty() )
-                                {
-                                    log.debug( "... Classifier is empty" );
-                                    return true;
-                                }
-                                else if( item.getClassifier().equals( dep.getClassifier() ))
-                                {
-                                    log.debug( "... Classifier matches" );
-                                    return true;
-                                }
-                            }
-                        }
-                    }
-                    catch ( OverConstrainedVersionException ocve )
-                    {
-                        log.debug( "... caught OverConstrainedVersionException" );
-                    }
-                }
-            }
-        }
-
-        // Not found
-        return false;
-    }
-
     //
     // Convenient utils to convert to cygwin if needed
     //
@@ -0,0 +1,351 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reduces the paths of a mapping listed in the <i>%files</i> section, without changing what the package contains.
+ * <ul>
+ * <li>A directory listed without <i>%dir</i> owns everything below it. So a directory of the mapping is listed as a
+ * <i>tree</i> if everything below it in the build root is listed by the mapping as well and directories and files of
+ * the mapping have the same attributes.</li>
+ * <li>A <i>glob</i> <code>directory/*</code> matches every file in a directory except hidden ones. So the files of a
+ * directory are listed with a glob if it holds at least two files, nothing but files listed by the mapping and no
+ * hidden files.</li>
+ * </ul>
+ * Soft links created during the build are not in the build root yet, so a directory which is to receive one is never
+ * collapsed.
+ *
+ * @since 2.3.1
+ */
+final class FileListCollapser
+{
+    /**
+     * The paths to list for a mapping. Paths are relative to the destination of the mapping and use '/' as separator,
+     * the destination itself is the empty string.
+     */
+    static final class Listing
+    {
+        private final List<String> directories = new ArrayList<String>();
+
+        private final List<String> trees = new ArrayList<String>();
+
+        private final List<String> globs = new ArrayList<String>();
+
+        private final List<String> files = new ArrayList<String>();
+
+        private int collapsed;
+
+        /**
+         * @return The directories to list with <i>%dir</i>.
+         */
+        List<String> getDirectories()
+        {
+            return directories;
+        }
+
+        /**
+         * @return The directories to list with everything below them.
+         */
+        List<String> getTrees()
+        {
+            return trees;
+        }
+
+        /**
+         * @return The directories whose files are listed with a glob.
+         */
+        List<String> getGlobs()
+        {
+            return globs;
+        }
+
+        /**
+         * @return The files to list individually.
+         */
+        List<String> getFiles()
+        {
+            return files;
+        }
+
+        /**
+         * @return The number of paths no longer listed individually, less the trees and globs listing them.
+         */
+        int getCollapsed()
+        {
+            return collapsed;
+        }
+    }
+
+    private final StagedFileIndex index;
+
+    /**
+     * The absolute paths of the soft links created during the build.
+     */
+    private final Set<String> links = new HashSet<String>();
+
+    /**
+     * @param index The index of the build root.
+     * @param mappings All mappings of the package, with their linked files {@link LinkHelper#resolveLinks()
+     *            resolved}.
+     */
+    FileListCollapser( StagedFileIndex index, List<Mapping> mappings )
+    {
+        this.index = index;
+        for ( Mapping map : mappings )
+        {
+            final File destination = map.getAbsoluteDestination();
+            if ( map.hasSoftLinks() && !destination.exists() )
+            {
+                links.add( destination.getAbsolutePath() );
+            }
+            for ( String link : map.getLinkedFileNamesRelativeToDestination() )
+            {
+                links.add( new File( destination, link ).getAbsolutePath() );
+            }
+        }
+    }
+
+    /**
+     * Collapses the paths of a mapping.
+     *
+     * @param basedir The absolute destination of the mapping.
+     * @param scan The paths of the mapping below <i>basedir</i>.
+     * @param listDirectories Indicates if the directories of the mapping are listed.
+     * @param listBasedir Indicates if <i>basedir</i> itself is listed, if <i>listDirectories</i>.
+     * @param listFiles Indicates if the files of the mapping are listed.
+     * @param sameAttributes Indicates if directories and files of the mapping have the same attributes.
+     * @return The paths to list.
+     */
+    Listing collapse( File basedir, StagedFileIndex.Scan scan, boolean listDirectories, boolean listBasedir,
+                      boolean listFiles, boolean sameAttributes )
+    {
+        final List<String> ownedDirectories = new ArrayList<String>();
+        if ( listDirectories )
+        {
+            if ( listBasedir )
+            {
+                ownedDirectories.add( "" );
+            }
+            for ( String dir : scan.getIncludedDirectories() )
+            {
+                if ( dir.length() > 0 )
+                {
+                    ownedDirectories.add( toSlashes( dir ) );
+                }
+            }
+        }
+        final List<String> ownedFiles = new ArrayList<String>();
+        if ( listFiles )
+        {
+            for ( String file : scan.getIncludedFiles() )
+            {
+                ownedFiles.add( toSlashes( file ) );
+            }
+        }
+
+        final Tree tree = new Tree( new HashSet<String>( ownedDirectories ), new HashSet<String>( ownedFiles ),
+                                    listDirectories && listFiles && sameAttributes );
+        final StagedFileIndex.Scan all = index.scan( basedir, null, null );
+        for ( String dir : all.getIncludedDirectories() )
+        {
+            if ( dir.length() > 0 )
+            {
+                tree.addDirectory( toSlashes( dir ) );
+            }
+        }
+        for ( String file : all.getIncludedFiles() )
+        {
+            tree.addFile( toSlashes( file ) );
+        }
+        final String prefix = basedir.getAbsolutePath() + File.separatorChar;
+        for ( String link : links )
+        {
+            if ( link.startsWith( prefix ) )
+            {
+                tree.addForeign( toSlashes( link.substring( prefix.length() ) ) );
+            }
+        }
+
+        final Listing listing = new Listing();
+        for ( String dir : ownedDirectories )
+        {
+            if ( tree.isCovered( dir ) )
+            {
+                if ( dir.length() == 0 || !tree.isCovered( getParent( dir ) ) )
+                {
+                    listing.trees.add( dir );
+                }
+            }
+            else
+            {
+                listing.directories.add( dir );
+            }
+        }
+
+        final Set<String> globbed = new HashSet<String>();
+        for ( String file : ownedFiles )
+        {
+            final String parent = getParent( file );
+            if ( globbed.contains( parent ) || tree.isCovered( parent ) )
+            {
+                continue;
+            }
+            if ( tree.getFileCount( parent ) >= 2 )
+            {
+                globbed.add( parent );
+                listing.globs.add( parent );
+                continue;
+            }
+            listing.files.add( file );
+        }
+
+        listing.collapsed = ownedDirectories.size() + ownedFiles.size() - listing.directories.size()
+            - listing.trees.size() - listing.globs.size() - listing.files.size();
+        return listing;
+    }
+
+    /**
+     * Everything below the destination of a mapping.
+     */
+    private static final class Tree
+    {
+        private final Set<String> ownedDirectories;
+
+        private final Set<String> ownedFiles;
+
+        private final boolean trees;
+
+        /**
+         * The directories with something below them which is not listed by the mapping.
+         */
+        private final Set<String> mixed = new HashSet<String>();
+
+        /**
+         * The directories with anything in them.
+         */
+        private final Set<String> nonEmpty = new HashSet<String>();
+
+        /**
+         * The number of files listed by the mapping in each directory, -1 if it holds anything else.
+         */
+        private final Map<String, Integer> fileCounts = new HashMap<String, Integer>();
+
+        /**
+         * @param trees Indicates if directories may be listed as trees.
+         */
+        Tree( Set<String> ownedDirectories, Set<String> ownedFiles, boolean trees )
+        {
+            this.ownedDirectories = ownedDirectories;
+            this.ownedFiles = ownedFiles;
+            this.trees = trees;
+        }
+
+        void addDirectory( String path )
+        {
+            add( path, ownedDirectories.contains( path ), false );
+        }
+
+        void addFile( String path )
+        {
+            add( path, ownedFiles.contains( path ), true );
+        }
+
+        void addForeign( String path )
+        {
+            add( path, false, false );
+        }
+
+        private void add( String path, boolean owned, boolean file )
+        {
+            final String parent = getParent( path );
+            nonEmpty.add( parent );
+
+            final Integer count = fileCounts.get( parent );
+            if ( owned && file && !path.substring( path.lastIndexOf( '/' ) + 1 ).startsWith( "." ) )
+            {
+                if ( count == null || count.intValue() >= 0 )
+                {
+                    fileCounts.put( parent, count == null ? 1 : count.intValue() + 1 );
+                }
+            }
+            else
+            {
+                fileCounts.put( parent, -1 );
+            }
+
+            if ( !owned )
+            {
+                for ( String ancestor = parent; mixed.add( ancestor ) && ancestor.length() > 0; )
+                {
+                    ancestor = getParent( ancestor );
+                }
+            }
+        }
+
+        /**
+         * @return Indicates if <i>dir</i> is listed by the mapping with everything below it, either as a tree of its
+         *         own or as part of the tree of a parent directory.
+         */
+        boolean isCovered( String dir )
+        {
+            if ( !trees )
+            {
+                return false;
+            }
+            for ( String ancestor = dir;; ancestor = getParent( ancestor ) )
+            {
+                if ( ownedDirectories.contains( ancestor ) && !mixed.contains( ancestor )
+                    && nonEmpty.contains( ancestor ) )
+                {
+                    return true;
+                }
+                if ( ancestor.length() == 0 )
+                {
+                    return false;
+                }
+            }
+        }
+
+        int getFileCount( String dir )
+        {
+            final Integer count = fileCounts.get( dir );
+            return count == null ? 0 : count.intValue();
+        }
+    }
+
+    private static String getParent( String path )
+    {
+        final int slash = path.lastIndexOf( '/' );
+        return slash < 0 ? "" : path.substring( 0, slash );
+    }
+
+    private static String toSlashes( String path )
+    {
+        return path.replace( File.separatorChar, '/' );
+    }
+}
@@ -0,0 +1,573 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Determines the complete list of {@link PackageFile}s contained in the package from the {@link Mapping}s, using the
+ * same rules as the <i>%files</i> section written by {@link SpecWriter}: a directory listed without <i>%dir</i> owns
+ * everything below it, attributes given with <i>%attr</i> win over <i>%defattr</i>, and anything not specified is
+ * taken from the staged file.
+ *
+ * @since 2.3.1
+ */
+final class FileListHelper
+{
+    /**
+     * Orders paths the same way rpm does (by code point, which matches the byte order of the UTF-8 encoding).
+     */
+    static final Comparator<String> PATH_ORDER = new Comparator<String>()
+    {
+        public int compare( String s1, String s2 )
+        {
+            final int length1 = s1.length();
+            final int length2 = s2.length();
+            int i1 = 0;
+            int i2 = 0;
+            while ( i1 < length1 && i2 < length2 )
+            {
+                final int c1 = s1.codePointAt( i1 );
+                final int c2 = s2.codePointAt( i2 );
+                if ( c1 != c2 )
+                {
+                    return c1 < c2 ? -1 : 1;
+                }
+                i1 += Character.charCount( c1 );
+                i2 += Character.charCount( c2 );
+            }
+            return ( length1 - i1 ) - ( length2 - i2 );
+        }
+    };
+
+    /**
+     * The (possibly partial) attributes of one <i>%files</i> line. A {@code null} value corresponds to <i>-</i>.
+     */
+    private static final class Attributes
+    {
+        final String mode;
+
+        final String username;
+
+        final String groupname;
+
+        final int flags;
+
+        Attributes( String mode, String username, String groupname, int flags )
+        {
+            this.mode = mode;
+            this.username = username;
+            this.groupname = groupname;
+            this.flags = flags;
+        }
+    }
+
+    private final AbstractRPMMojo mojo;
+
+    private final File buildroot;
+
+    private final VirtualBuildroot virtualBuildroot;
+
+    /**
+     * Soft links to be part of the package, keyed by installed path. The value is the link target.
+     */
+    private final SortedMap<String, String> links = new TreeMap<String, String>( PATH_ORDER );
+
+    private final SortedMap<String, PackageFile> files = new TreeMap<String, PackageFile>( PATH_ORDER );
+
+    /**
+     * @param mojo The mojo with the {@link AbstractRPMMojo#getMappings() mappings} to list the files of.
+     */
+    FileListHelper( AbstractRPMMojo mojo )
+    {
+        this.mojo = mojo;
+        this.buildroot = mojo.getBuildroot();
+        this.virtualBuildroot = mojo.getVirtualBuildroot();
+    }
+
+    /**
+     * Determines the files of the package.
+     *
+     * @param resolvedLinks The {@link LinkHelper#resolveLinks() resolved} soft links.
+     * @return The files, sorted by path.
+     * @throws MojoExecutionException if a file cannot be read or an attribute is invalid.
+     */
+    Collection<PackageFile> listFiles( List<LinkHelper.Link> resolvedLinks )
+        throws MojoExecutionException
+    {
+        for ( LinkHelper.Link link : resolvedLinks )
+        {
+            links.put( '/' + stripSlashes( mojo.evaluateMacros( link.getPath() ) ),
+                       mojo.evaluateMacros( link.getTarget() ) );
+        }
+
+        final String defaultFilemode = mojo.getDefaultFilemode();
+        final String defaultDirmode = mojo.getDefaultDirmode();
+        final String defaultUsername = mojo.getDefaultUsername();
+        final String defaultGroupname = mojo.getDefaultGroupname();
+
+        for ( Mapping map : mojo.getMappings() )
+        {
+            final File absoluteDestination = map.getAbsoluteDestination();
+            final int flags = getFlags( map );
+
+            final Attributes fileAttributes;
+            final Attributes dirAttributes;
+            if ( map.getFilemode() == null && map.getUsername() == null && map.getGroupname() == null )
+            {
+                fileAttributes = new Attributes( null, null, null, flags );
+                dirAttributes = fileAttributes;
+            }
+            else
+            {
+                final String filemode;
+                if ( map.isDirOnly() )
+                {
+                    filemode = firstNonNull( map.getDirmode(), map.getFilemode(), defaultDirmode, defaultFilemode );
+                }
+                else
+                {
+                    filemode = firstNonNull( map.getFilemode(), defaultFilemode );
+                }
+                final String username = firstNonNull( map.getUsername(), defaultUsername );
+                final String groupname = firstNonNull( map.getGroupname(), defaultGroupname );
+
+                fileAttributes = new Attributes( filemode, username, groupname, flags );
+                dirAttributes =
+                    new Attributes( firstNonNull( map.getDirmode(), map.getFilemode(), defaultDirmode ), username,
+                                    groupname, flags );
+            }
+
+            if ( map.hasSoftLinks() && !absoluteDestination.exists() )
+            {
+                // the destination itself is replaced by a soft link
+                addTree( absoluteDestination, fileAttributes, true );
+                continue;
+            }
+
+            final List<String> linkNames = map.getLinkedFileNamesRelativeToDestination();
+
+            if ( map.isSoftLinkOnly() )
+            {
+                for ( String link : linkNames )
+                {
+                    addTree( new File( absoluteDestination, link ), fileAttributes, true );
+                }
+                continue;
+            }
+
+            if ( map.isSourceDirsOnly() && map.isDirectoryIncluded() && !map.isRecurseDirectories() )
+            {
+                boolean simpleDir = true;
+                for ( Source source : map.getSources() )
+                {
+                    if ( !source.isSingleDir() )
+                    {
+                        simpleDir = false;
+                        break;
+                    }
+                }
+
+                if ( simpleDir )
+                {
+                    addTree( absoluteDestination, fileAttributes, true );
+                    continue;
+                }
+            }
+
+            final StagedFileIndex.Scan scanner = mojo.getStagedFileIndex().scan(
+                absoluteDestination, map.getCopiedFileNamesRelativeToDestination(), null );
+
+            final boolean noFiles = map.getSources() == null || map.getSources().isEmpty()
+                || ( scanner.isEverythingIncluded() && linkNames.isEmpty() );
+            if ( noFiles && map.isDirectoryIncluded() && !map.isRecurseDirectories() )
+            {
+                // a directory only mapping is written with %dir, so it does not own its content
+                addTree( absoluteDestination, fileAttributes, !map.isDirOnly() );
+            }
+            else
+            {
+                if ( map.isRecurseDirectories() )
+                {
+                    if ( map.isDirectoryIncluded() )
+                    {
+                        addTree( absoluteDestination, dirAttributes, false );
+                    }
+
+                    for ( String dir : scanner.getIncludedDirectories() )
+                    {
+                        if ( dir.length() > 0 )
+                        {
+                            addTree( new File( absoluteDestination, dir ), dirAttributes, false );
+                        }
+                    }
+                }
+
+                if ( !map.isDirectoryIncluded() || !noFiles )
+                {
+                    for ( String file : scanner.getIncludedFiles() )
+                    {
+                        addTree( new File( absoluteDestination, file ), fileAttributes, true );
+                    }
+                }
+
+                for ( String link : linkNames )
+                {
+                    addTree( new File( absoluteDestination, link ), fileAttributes, true );
+                }
+            }
+        }
+
+        return new ArrayList<PackageFile>( files.values() );
+    }
+
+    /**
+     * Adds the file at <i>location</i> and, if <i>recursive</i>, everything below it.
+     *
+     * @param location The location in the {@link AbstractRPMMojo#getBuildroot() build root}.
+     * @param attributes The attributes of the <i>%files</i> line.
+     * @param recursive Indicates if the content of a directory is included.
+     * @throws MojoExecutionException if the file system cannot be read.
+     */
+    private void addTree( File location, final Attributes attributes, boolean recursive )
+        throws MojoExecutionException
+    {
+        final String path = toPackagePath( location );
+
+        final String linkTarget = links.get( path );
+        if ( linkTarget != null )
+        {
+            addLink( path, linkTarget, attributes );
+            return;
+        }
+
+        if ( virtualBuildroot != null )
+        {
+            final VirtualBuildroot.Entry entry = virtualBuildroot.get( location );
+            if ( entry != null )
+            {
+                addVirtual( path, entry, attributes );
+                return;
+            }
+        }
+
+        final Path start = location.toPath();
+        if ( !Files.exists( start, LinkOption.NOFOLLOW_LINKS ) )
+        {
+            throw new MojoExecutionException( "File listed in the package does not exist: " + location );
+        }
+
+        try
+        {
+            if ( !recursive )
+            {
+                add( start, Files.readAttributes( start, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS ),
+                     attributes );
+                return;
+            }
+
+            Files.walkFileTree( start, new SimpleFileVisitor<Path>()
+            {
+                public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs )
+                    throws IOException
+                {
+                    add( dir, attrs, attributes );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+                    throws IOException
+                {
+                    add( file, attrs, attributes );
+                    return FileVisitResult.CONTINUE;
+                }
+            } );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to list files for packaging: " + e.getMessage(), e );
+        }
+
+        if ( virtualBuildroot != null )
+        {
+            for ( String file : virtualBuildroot.getFiles( location ) )
+            {
+                final File virtualFile = new File( location, file );
+                addVirtual( toPackagePath( virtualFile ), virtualBuildroot.get( virtualFile ), attributes );
+            }
+        }
+
+        // links created by the package inside of this directory are owned by it as well
+        for ( Map.Entry<String, String> link : links.subMap( path + '/', path + "/￿" ).entrySet() )
+        {
+            addLink( link.getKey(), link.getValue(), attributes );
+        }
+    }
+
+    private void add( Path file, BasicFileAttributes attrs, Attributes attributes )
+        throws IOException
+    {
+        final String path = toPackagePath( file.toFile() );
+
+        if ( attrs.isSymbolicLink() )
+        {
+            addLink( path, Files.readSymbolicLink( file ).toString(), attributes );
+            return;
+        }
+
+        final boolean directory = attrs.isDirectory();
+
+        String mode = attributes.mode;
+        if ( mode == null )
+        {
+            mode = directory ? mojo.getDefaultDirmode() : mojo.getDefaultFilemode();
+        }
+
+        final int permissions;
+        if ( mode == null || "-".equals( mode ) )
+        {
+            permissions = getPermissions( file, attrs );
+        }
+        else
+        {
+            permissions = parseMode( mode, path );
+        }
+
+        final PackageFile packageFile =
+            new PackageFile( path, directory ? null : file.toFile(), null,
+                             ( directory ? PackageFile.S_IFDIR : PackageFile.S_IFREG ) | permissions,
+                             getUsername( attributes ), getGroupname( attributes ),
+                             directory ? 0 : attributes.flags, directory ? 0 : attrs.size(),
+                             clamp( attrs.lastModifiedTime().toMillis() ) );
+        put( packageFile );
+    }
+
+    private void addVirtual( String path, VirtualBuildroot.Entry entry, Attributes attributes )
+        throws MojoExecutionException
+    {
+        final String mode = attributes.mode != null ? attributes.mode : mojo.getDefaultFilemode();
+
+        final int permissions;
+        try
+        {
+            permissions = mode == null || "-".equals( mode ) ? entry.getMode() : parseMode( mode, path );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( e.getMessage(), e );
+        }
+
+        final File origin = entry.getOrigin();
+        put( new PackageFile( path, origin, null, PackageFile.S_IFREG | permissions, getUsername( attributes ),
+                              getGroupname( attributes ), attributes.flags, origin.length(),
+                              clamp( origin.lastModified() ) ) );
+    }
+
+    /**
+     * @param lastModified A modification time in milliseconds.
+     * @return The modification time in seconds, no later than the timestamp of a reproducible build.
+     */
+    private long clamp( long lastModified )
+    {
+        final Date reproducibleTimestamp = mojo.getReproducibleTimestamp();
+        if ( reproducibleTimestamp != null && lastModified > reproducibleTimestamp.getTime() )
+        {
+            return reproducibleTimestamp.getTime() / 1000;
+        }
+        return lastModified / 1000;
+    }
+
+    private void addLink( String path, String target, Attributes attributes )
+    {
+        // rpm ignores the mode of soft links
+        final PackageFile packageFile =
+            new PackageFile( path, null, target, PackageFile.S_IFLNK | 0777, getUsername( attributes ),
+                             getGroupname( attributes ), 0, target.getBytes( StandardCharsets.UTF_8 ).length,
+                             mojo.getBuildTimestamp().getTime() / 1000 );
+        put( packageFile );
+    }
+
+    /**
+     * Adds the <i>packageFile</i>. A file listed more than once keeps the attributes of the last listing, but
+     * accumulates the flags of all of them (the same as rpmbuild).
+     */
+    private void put( PackageFile packageFile )
+    {
+        final PackageFile previous = files.get( packageFile.getPath() );
+        if ( previous != null && previous.getFlags() != 0 )
+        {
+            packageFile =
+                new PackageFile( packageFile.getPath(), packageFile.getSource(), packageFile.getLinkTarget(),
+                                 packageFile.getMode(), packageFile.getUsername(), packageFile.getGroupname(),
+                                 packageFile.getFlags() | previous.getFlags(), packageFile.getSize(),
+                                 packageFile.getMtime() );
+        }
+        files.put( packageFile.getPath(), packageFile );
+    }
+
+    private String getUsername( Attributes attributes )
+    {
+        return firstNonNull( dash( attributes.username ), dash( mojo.getDefaultUsername() ), "root" );
+    }
+
+    private String getGroupname( Attributes attributes )
+    {
+        return firstNonNull( dash( attributes.groupname ), dash( mojo.getDefaultGroupname() ), "root" );
+    }
+
+    /**
+     * Converts the <i>location</i> in the build root to the path it will be installed to.
+     */
+    private String toPackagePath( File location )
+    {
+        final String root = buildroot.getAbsolutePath();
+        final String absolute = location.getAbsolutePath();
+        if ( !absolute.startsWith( root ) )
+        {
+            throw new IllegalArgumentException( location + " is not within " + buildroot );
+        }
+        final String relative = stripSlashes( absolute.substring( root.length() ).replace( File.separatorChar, '/' ) );
+        return '/' + relative.replaceAll( "/{2,}", "/" );
+    }
+
+    private static String stripSlashes( String path )
+    {
+        int begin = 0;
+        int end = path.length();
+        while ( begin < end && path.charAt( begin ) == '/' )
+        {
+            ++begin;
+        }
+        while ( end > begin && path.charAt( end - 1 ) == '/' )
+        {
+            --end;
+        }
+        return path.substring( begin, end );
+    }
+
+    private static int getFlags( Mapping map )
+    {
+        int flags = 0;
+
+        final String configuration = map.getConfiguration();
+        if ( configuration != null && !"FALSE".equalsIgnoreCase( configuration ) )
+        {
+            flags |= RPMTag.FILE_CONFIG;
+
+            final String modifiers = configuration.toLowerCase( Locale.ENGLISH );
+            if ( modifiers.contains( "noreplace" ) )
+            {
+                flags |= RPMTag.FILE_NOREPLACE;
+            }
+            if ( modifiers.contains( "missingok" ) )
+            {
+                flags |= RPMTag.FILE_MISSINGOK;
+            }
+        }
+
+        if ( map.isDocumentation() )
+        {
+            flags |= RPMTag.FILE_DOC;
+        }
+
+        return flags;
+    }
+
+    private static int getPermissions( Path file, BasicFileAttributes attrs )
+        throws IOException
+    {
+        if ( attrs instanceof PosixFileAttributes )
+        {
+            return toMode( ( (PosixFileAttributes) attrs ).permissions() );
+        }
+
+        try
+        {
+            return toMode( Files.readAttributes( file, PosixFileAttributes.class,
+                                                 LinkOption.NOFOLLOW_LINKS ).permissions() );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            return attrs.isDirectory() || Files.isExecutable( file ) ? 0755 : 0644;
+        }
+    }
+
+    static int toMode( Collection<PosixFilePermission> permissions )
+    {
+        int mode = 0;
+        for ( PosixFilePermission permission : permissions )
+        {
+            // the enum is declared in order from owner read (0400) to others execute (0001)
+            mode |= 0400 >> permission.ordinal();
+        }
+        return mode;
+    }
+
+    private static int parseMode( String mode, String path )
+        throws IOException
+    {
+        try
+        {
+            return Integer.parseInt( mode, 8 ) & 07777;
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IOException( "Invalid file mode '" + mode + "' for " + path );
+        }
+    }
+
+    private static String dash( String value )
+    {
+        return "-".equals( value ) ? null : value;
+    }
+
+    private static String firstNonNull( String... values )
+    {
+        for ( String value : values )
+        {
+            if ( value != null )
+            {
+                return value;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,245 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A persistent cache of filtered files, so that a source which has been filtered with the same filter settings before
+ * is not filtered again.
+ * <p>
+ * An entry is keyed by the sha256 of the content of the source, the fingerprint of the filter settings (the escape
+ * string, the content of the filter files and of the pom, the project and its properties and the user and system
+ * properties including the environment, as for the {@link StagingManifest staging manifest}) and the platform
+ * encoding. Each entry is a file in the cache directory holding the filtered content. The modification time of an
+ * entry is updated whenever it is used and the least recently used entries are {@link #trim() removed} once the
+ * cache exceeds its maximum size.
+ * </p>
+ * <p>
+ * The cache is safe for use by concurrent threads and builds. Entries are written to a temporary file first and
+ * moved into place atomically.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class FilterCache
+{
+    private final File directory;
+
+    private final long maximumSize;
+
+    private final String fingerprint;
+
+    private final Log log;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param directory The directory the entries are stored in.
+     * @param maximumSize The maximum total size of the entries in bytes.
+     * @param filterFingerprint The fingerprint of the filter settings of the build.
+     * @param log The log to report to.
+     */
+    FilterCache( File directory, long maximumSize, String filterFingerprint, Log log )
+    {
+        this.directory = directory;
+        this.maximumSize = maximumSize;
+        this.log = log;
+        this.fingerprint = filterFingerprint + '\n' + Charset.defaultCharset().name() + '\n';
+    }
+
+    /**
+     * Writes the cached result of filtering <i>source</i> to <i>target</i>, if there is one. An existing
+     * <i>target</i> is replaced. The permissions of <i>source</i> are copied.
+     *
+     * @param entry The {@link #getEntry(File) entry} of <i>source</i>.
+     * @param source The file to filter.
+     * @param target The file to write.
+     * @return {@code true} if <i>target</i> has been written, {@code false} if <i>source</i> has to be filtered.
+     * @throws IOException if <i>target</i> cannot be written
+     */
+    boolean restore( File entry, File source, File target )
+        throws IOException
+    {
+        try
+        {
+            Files.copy( entry.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+        catch ( NoSuchFileException e )
+        {
+            if ( entry.exists() )
+            {
+                throw e;
+            }
+            misses.incrementAndGet();
+            return false;
+        }
+
+        // keep recently used entries from being trimmed
+        entry.setLastModified( System.currentTimeMillis() );
+        FilterPipeline.copyPermissions( source, target );
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores <i>filtered</i> as the result of filtering the source of <i>entry</i>. A failure is only logged, as it
+     * just costs filtering the source again.
+     *
+     * @param entry The {@link #getEntry(File) entry} of the filtered file.
+     * @param filtered The result of filtering it.
+     */
+    void store( File entry, File filtered )
+    {
+        try
+        {
+            final File parent = entry.getParentFile();
+            if ( !parent.isDirectory() && !parent.mkdirs() )
+            {
+                throw new IOException( "Unable to create directory " + parent.getAbsolutePath() );
+            }
+
+            final File tmp = File.createTempFile( entry.getName(), ".tmp", parent );
+            try
+            {
+                Files.copy( filtered.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING );
+                Files.move( tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE );
+            }
+            finally
+            {
+                tmp.delete();
+            }
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Unable to write the filter cache entry " + entry + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache does not exceed its maximum size and logs how many
+     * files were taken from the cache.
+     */
+    void trim()
+    {
+        // the modification times change while concurrent builds use entries, so they are read once before sorting
+        final List<Entry> entries = new ArrayList<Entry>();
+        final File[] buckets = directory.listFiles();
+        if ( buckets != null )
+        {
+            for ( File bucket : buckets )
+            {
+                final File[] files = bucket.listFiles();
+                if ( files != null )
+                {
+                    for ( File file : files )
+                    {
+                        entries.add( new Entry( file ) );
+                    }
+                }
+            }
+        }
+
+        long size = 0;
+        for ( Entry entry : entries )
+        {
+            size += entry.length;
+        }
+
+        int removed = 0;
+        if ( size > maximumSize )
+        {
+            Collections.sort( entries, new Comparator<Entry>()
+            {
+                public int compare( Entry first, Entry second )
+                {
+                    return Long.compare( first.lastModified, second.lastModified );
+                }
+            } );
+            for ( Entry entry : entries )
+            {
+                if ( size <= maximumSize )
+                {
+                    break;
+                }
+                if ( entry.file.delete() )
+                {
+                    size -= entry.length;
+                    ++removed;
+                }
+            }
+        }
+
+        log.info( "Filter cache: " + hits.get() + " files restored, " + misses.get() + " files filtered, " + removed
+            + " entries removed" );
+    }
+
+    /**
+     * An entry of the cache with its size and modification time when the cache was listed.
+     */
+    private static final class Entry
+    {
+        final File file;
+
+        final long length;
+
+        final long lastModified;
+
+        Entry( File file )
+        {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    /**
+     * @param source The file to filter.
+     * @return The entry holding the result of filtering <i>source</i>, which may not exist.
+     * @throws IOException if <i>source</i> cannot be read
+     */
+    File getEntry( File source )
+        throws IOException
+    {
+        final MessageDigest digest = FileDigest.newDigest();
+        digest.update( fingerprint.getBytes( StandardCharsets.UTF_8 ) );
+        FileDigest.update( digest, source );
+
+        final String key = RPMPackageWriter.hex( digest.digest() );
+        return new File( new File( directory, key.substring( 0, 2 ) ), key );
+    }
+}
@@ -0,0 +1,181 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.shared.filtering.FilterWrapper;
+
+/**
+ * Filters files on a pool of worker threads, so that the filtered files of a mapping are not filtered one after
+ * another by the thread staging the mapping.
+ * <p>
+ * A file is filtered the same way <code>MavenFileFilter.copyFile</code> does: it is read with the platform encoding,
+ * passed through the reader of each {@link FilterWrapper} and written with the platform encoding, and the permissions
+ * of the source are copied. The wrappers are the ones {@link AbstractRPMMojo#getFilterWrappers() created once} for the
+ * whole build, so all files share the same interpolation properties. Each worker reuses its copy buffer for all files
+ * it filters. An existing target is replaced.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class FilterPipeline
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService executor;
+
+    private final int threads;
+
+    private final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>()
+    {
+        protected char[] initialValue()
+        {
+            return new char[BUFFER_SIZE];
+        }
+    };
+
+    private final AtomicInteger filtered = new AtomicInteger();
+
+    /**
+     * @param threads The number of worker threads.
+     */
+    FilterPipeline( int threads )
+    {
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool( threads );
+    }
+
+    /**
+     * Starts filtering <i>source</i> into <i>target</i>. The parent directory of <i>target</i> has to exist.
+     *
+     * @param source The file to filter.
+     * @param target The file to write.
+     * @param filterWrappers The filters to apply.
+     * @return The result of the copy, which throws the {@link IOException} of a failed copy.
+     */
+    Future<Void> submit( final File source, final File target, final List<FilterWrapper> filterWrappers )
+    {
+        return executor.submit( new Callable<Void>()
+        {
+            public Void call()
+                throws IOException
+            {
+                filter( source, target, filterWrappers );
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * Logs how many files have been filtered.
+     *
+     * @param log The log to report to.
+     */
+    void logSummary( Log log )
+    {
+        log.info( "Filtered " + filtered.get() + " files using " + threads + " threads" );
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private void filter( File source, File target, List<FilterWrapper> filterWrappers )
+        throws IOException
+    {
+        final Path targetPath = target.toPath();
+        Files.deleteIfExists( targetPath );
+
+        final Charset charset = Charset.defaultCharset();
+        Reader reader = Files.newBufferedReader( source.toPath(), charset );
+        try
+        {
+            if ( filterWrappers != null )
+            {
+                for ( FilterWrapper filterWrapper : filterWrappers )
+                {
+                    reader = filterWrapper.getReader( reader );
+                }
+            }
+
+            final Writer writer = Files.newBufferedWriter( targetPath, charset );
+            try
+            {
+                final char[] buffer = buffers.get();
+                int read;
+                while ( ( read = reader.read( buffer ) ) != -1 )
+                {
+                    writer.write( buffer, 0, read );
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        copyPermissions( source, target );
+        filtered.incrementAndGet();
+    }
+
+    /**
+     * Copies the permissions of <i>source</i> to <i>target</i>, as <code>MavenFileFilter.copyFile</code> does.
+     *
+     * @param source The file to copy the permissions of.
+     * @param target The file to set the permissions of.
+     * @throws IOException if the permissions cannot be read or set
+     */
+    static void copyPermissions( File source, File target )
+        throws IOException
+    {
+        try
+        {
+            Files.setPosixFilePermissions( target.toPath(), Files.getPosixFilePermissions( source.toPath() ) );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            target.setExecutable( source.canExecute() );
+            target.setReadable( source.canRead() );
+            target.setWritable( source.canWrite() );
+        }
+    }
+}
@@ -20,8 +20,19 @@ package org.codehaus.mojo.rpm;
  */
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.maven.shared.filtering.FilterWrapper;
 import org.apache.maven.shared.filtering.MavenFileFilter;
@@ -29,11 +40,14 @@ import org.apache.maven.shared.filtering.MavenFilteringException;
 import org.codehaus.plexus.archiver.ArchiveEntry;
 import org.codehaus.plexus.archiver.dir.DirectoryArchiver;
 import org.codehaus.plexus.archiver.util.ArchiveEntryUtils;
+import org.codehaus.plexus.archiver.util.ResourceUtils;
 import org.codehaus.plexus.components.io.resources.PlexusIoFileResource;
+import org.codehaus.plexus.components.io.resources.PlexusIoSymlinkResource;
 
 /**
  * Extends the DirectoryArchiver and adds the ability to filter each file that is
- * {@link #copyFile(ArchiveEntry, String) copied}.
+ * {@link #copyFile(ArchiveEntry, String) copied}. Files which are not filtered are copied by the kernel
+ * ({@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}).
  *
  * @author Brett Okken
  * @since 2.0
@@ -41,12 +55,85 @@ import org.codehaus.plexus.components.io.resources.PlexusIoFileResource;
 final class FilteringDirectoryArchiver
     extends DirectoryArchiver
 {
+    /**
+     * A file being filtered by the {@link #filterPipeline}, with what remains to be done once it has been written.
+     */
+    private static final class PendingCopy
+    {
+        final ArchiveEntry entry;
+
+        final File inFile;
+
+        final File outFile;
+
+        final Future<Void> copy;
+
+        /**
+         * The {@link FilterCache#getEntry(File) entry} to store the filtered file in, {@code null} if there is no
+         * {@link #filterCache}.
+         */
+        File cacheEntry;
+
+        /**
+         * Indicates if the copy has to be {@link StagingManifest#recordFile(File, File, int, boolean) recorded} in the
+         * {@link #stagingManifest}.
+         */
+        boolean record;
+
+        /**
+         * Indicates if the copy has to be {@link #index(ArchiveEntry, File, boolean) indexed}.
+         */
+        boolean index;
+
+        PendingCopy( ArchiveEntry entry, File inFile, File outFile, Future<Void> copy )
+        {
+            this.entry = entry;
+            this.inFile = inFile;
+            this.outFile = outFile;
+            this.copy = copy;
+        }
+    }
+
     private MavenFileFilter mavenFileFilter;
 
     private List<FilterWrapper> filterWrappers;
 
     private boolean filter;
 
+    private StagingManifest stagingManifest;
+
+    private StagingLinker stagingLinker;
+
+    private StagedFileIndex stagedFileIndex;
+
+    private StagedContentRegistry stagedContentRegistry;
+
+    private String deduplicationAttributes;
+
+    private boolean replaceStagedFiles;
+
+    private FilterPipeline filterPipeline;
+
+    private BinaryFileDetector binaryFileDetector;
+
+    private FilterCache filterCache;
+
+    private int filteredFileCount;
+
+    private int binaryFileCount;
+
+    /**
+     * The copies started on the {@link #filterPipeline} which have not been completed yet, in the order they were
+     * started.
+     */
+    private final List<PendingCopy> pendingCopies = new ArrayList<PendingCopy>();
+
+    /**
+     * The directories created while there is a {@link #filterPipeline}, whose modes are set once the
+     * {@link #pendingCopies} are complete (a read-only directory would keep them from being written).
+     */
+    private final Map<File, ArchiveEntry> pendingDirectories = new LinkedHashMap<File, ArchiveEntry>();
+
     /**
      * @return Returns the {@link #mavenFileFilter}.
      */
@@ -95,6 +182,181 @@ final class FilteringDirectoryArchiver
         this.filter = filter;
     }
 
+    /**
+     * @return Returns the {@link #stagingManifest}.
+     */
+    public StagingManifest getStagingManifest()
+    {
+        return this.stagingManifest;
+    }
+
+    /**
+     * @param stagingManifest The {@link #stagingManifest} to set. When set, files which are
+     *            {@link StagingManifest#isUpToDate(File, File, int, boolean) up to date} are not copied again.
+     */
+    public void setStagingManifest( StagingManifest stagingManifest )
+    {
+        this.stagingManifest = stagingManifest;
+    }
+
+    /**
+     * @return Returns the {@link #stagingLinker}.
+     */
+    public StagingLinker getStagingLinker()
+    {
+        return this.stagingLinker;
+    }
+
+    /**
+     * @param stagingLinker The {@link #stagingLinker} to set. When set, files which are not filtered are
+     *            {@link StagingLinker#link(File, File, int) linked} instead of copied where possible.
+     */
+    public void setStagingLinker( StagingLinker stagingLinker )
+    {
+        this.stagingLinker = stagingLinker;
+    }
+
+    /**
+     * @return Returns the {@link #stagedFileIndex}.
+     */
+    public StagedFileIndex getStagedFileIndex()
+    {
+        return this.stagedFileIndex;
+    }
+
+    /**
+     * @param stagedFileIndex The {@link #stagedFileIndex} to set. When set, every staged file and directory is
+     *            recorded in it.
+     */
+    public void setStagedFileIndex( StagedFileIndex stagedFileIndex )
+    {
+        this.stagedFileIndex = stagedFileIndex;
+    }
+
+    /**
+     * @return Returns the {@link #stagedContentRegistry}.
+     */
+    public StagedContentRegistry getStagedContentRegistry()
+    {
+        return this.stagedContentRegistry;
+    }
+
+    /**
+     * @param stagedContentRegistry The {@link #stagedContentRegistry} to set. When set, files are
+     *            {@link #setDeduplicationAttributes(String) deduplicated} against it and staged files are always
+     *            replaced instead of overwritten, as they may be shared.
+     */
+    public void setStagedContentRegistry( StagedContentRegistry stagedContentRegistry )
+    {
+        this.stagedContentRegistry = stagedContentRegistry;
+    }
+
+    /**
+     * @return Returns the {@link #replaceStagedFiles}.
+     */
+    public boolean isReplaceStagedFiles()
+    {
+        return this.replaceStagedFiles;
+    }
+
+    /**
+     * @param replaceStagedFiles The {@link #replaceStagedFiles} to set. When set, files already in the build root are
+     *            always replaced instead of overwritten, as they may be linked from the build root of another
+     *            architecture.
+     */
+    public void setReplaceStagedFiles( boolean replaceStagedFiles )
+    {
+        this.replaceStagedFiles = replaceStagedFiles;
+    }
+
+    /**
+     * @return Returns the {@link #deduplicationAttributes}.
+     */
+    public String getDeduplicationAttributes()
+    {
+        return this.deduplicationAttributes;
+    }
+
+    /**
+     * @param deduplicationAttributes The {@link #deduplicationAttributes} to set: the attributes the copied files get
+     *            in the package, {@code null} to not deduplicate them. When set, files which are not filtered are
+     *            {@link StagedContentRegistry#link(File, File, int, String) linked} to a staged copy of the same
+     *            content if there is one, and registered with the {@link #stagedContentRegistry} otherwise.
+     */
+    public void setDeduplicationAttributes( String deduplicationAttributes )
+    {
+        this.deduplicationAttributes = deduplicationAttributes;
+    }
+
+    /**
+     * @return Returns the {@link #filterPipeline}.
+     */
+    public FilterPipeline getFilterPipeline()
+    {
+        return this.filterPipeline;
+    }
+
+    /**
+     * @param filterPipeline The {@link #filterPipeline} to set. When set, filtered files are filtered on its worker
+     *            threads while the following entries are copied. {@link #completePendingCopies()} has to be called
+     *            after {@link #createArchive()}, it completes the copies and sets the modes of the directories.
+     */
+    public void setFilterPipeline( FilterPipeline filterPipeline )
+    {
+        this.filterPipeline = filterPipeline;
+    }
+
+    /**
+     * @return Returns the {@link #binaryFileDetector}.
+     */
+    public BinaryFileDetector getBinaryFileDetector()
+    {
+        return this.binaryFileDetector;
+    }
+
+    /**
+     * @param binaryFileDetector The {@link #binaryFileDetector} to set. When set, files which are
+     *            {@link BinaryFileDetector#isBinary(File) binary} are copied unchanged even if {@link #filter} is set.
+     */
+    public void setBinaryFileDetector( BinaryFileDetector binaryFileDetector )
+    {
+        this.binaryFileDetector = binaryFileDetector;
+    }
+
+    /**
+     * @return Returns the {@link #filterCache}.
+     */
+    public FilterCache getFilterCache()
+    {
+        return this.filterCache;
+    }
+
+    /**
+     * @param filterCache The {@link #filterCache} to set. When set, filtered files are restored from it if they have
+     *            been filtered before and stored in it otherwise.
+     */
+    public void setFilterCache( FilterCache filterCache )
+    {
+        this.filterCache = filterCache;
+    }
+
+    /**
+     * @return The number of files filtered since the archiver has been {@link #resetArchiver() reset}.
+     */
+    public int getFilteredFileCount()
+    {
+        return this.filteredFileCount;
+    }
+
+    /**
+     * @return The number of binary files copied unchanged although {@link #filter} is set since the archiver has been
+     *         {@link #resetArchiver() reset}.
+     */
+    public int getBinaryFileCount()
+    {
+        return this.binaryFileCount;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -105,6 +367,15 @@ final class FilteringDirectoryArchiver
     {
         filterWrappers = null;
         filter = false;
+        deduplicationAttributes = null;
+        filteredFileCount = 0;
+        binaryFileCount = 0;
+        for ( PendingCopy pendingCopy : pendingCopies )
+        {
+            pendingCopy.copy.cancel( true );
+        }
+        pendingCopies.clear();
+        pendingDirectories.clear();
 
         super.resetArchiver();
     }
@@ -114,17 +385,227 @@ final class FilteringDirectoryArchiver
      */
     protected void copyFile( ArchiveEntry entry, String vPath )
         throws IOException
+    {
+        final boolean filtered = isFiltered( entry );
+        PendingCopy pendingCopy = null;
+        // don't add "" to the archive
+        if ( stagingManifest == null || vPath.length() <= 0
+            || !( entry.getResource() instanceof PlexusIoFileResource ) )
+        {
+            pendingCopy = copyEntry( entry, vPath, filtered );
+        }
+        else
+        {
+            final File inFile = ( (PlexusIoFileResource) entry.getResource() ).getFile();
+            final File outFile = new File( vPath );
+
+            if ( entry.getType() != ArchiveEntry.FILE || entry.getResource() instanceof PlexusIoSymlinkResource )
+            {
+                pendingCopy = copyEntry( entry, vPath, filtered );
+                stagingManifest.recordStaged( outFile );
+            }
+            else if ( !stagingManifest.isUpToDate( inFile, outFile, entry.getMode(), filtered ) )
+            {
+                // never write through a hard link staged by a previous execution
+                if ( outFile.isFile() && !outFile.delete() )
+                {
+                    throw new IOException( "Unable to delete " + outFile.getAbsolutePath() );
+                }
+                pendingCopy = copyEntry( entry, vPath, filtered );
+                if ( pendingCopy == null )
+                {
+                    stagingManifest.recordFile( inFile, outFile, entry.getMode(), filtered );
+                }
+                else
+                {
+                    pendingCopy.record = true;
+                }
+            }
+        }
+
+        if ( stagedFileIndex != null && vPath.length() > 0 )
+        {
+            if ( pendingCopy == null )
+            {
+                index( entry, new File( vPath ), filtered );
+            }
+            else
+            {
+                pendingCopy.index = true;
+            }
+        }
+    }
+
+    /**
+     * Waits for the {@link #pendingCopies} and completes them in the order they were started, then sets the modes of
+     * the {@link #pendingDirectories}. Does nothing without a {@link #filterPipeline}.
+     *
+     * @throws IOException if a copy failed
+     */
+    public void completePendingCopies()
+        throws IOException
+    {
+        try
+        {
+            for ( PendingCopy pendingCopy : pendingCopies )
+            {
+                try
+                {
+                    pendingCopy.copy.get();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "Interrupted while filtering " + pendingCopy.inFile );
+                }
+                catch ( ExecutionException e )
+                {
+                    throw new IOException( "Unable to filter " + pendingCopy.inFile + ": "
+                        + e.getCause().getMessage(), e.getCause() );
+                }
+
+                final ArchiveEntry entry = pendingCopy.entry;
+                if ( !isIgnorePermissions() )
+                {
+                    ArchiveEntryUtils.chmod( pendingCopy.outFile, entry.getMode() );
+                }
+                if ( pendingCopy.cacheEntry != null )
+                {
+                    filterCache.store( pendingCopy.cacheEntry, pendingCopy.outFile );
+                }
+                if ( pendingCopy.record )
+                {
+                    stagingManifest.recordFile( pendingCopy.inFile, pendingCopy.outFile, entry.getMode(), true );
+                }
+                if ( pendingCopy.index )
+                {
+                    index( entry, pendingCopy.outFile, true );
+                }
+            }
+
+            for ( Map.Entry<File, ArchiveEntry> directory : pendingDirectories.entrySet() )
+            {
+                setModes( directory.getValue(), directory.getKey(),
+                          directory.getValue().getResource().getLastModified() );
+            }
+        }
+        finally
+        {
+            for ( PendingCopy pendingCopy : pendingCopies )
+            {
+                pendingCopy.copy.cancel( true );
+            }
+            pendingCopies.clear();
+            pendingDirectories.clear();
+        }
+    }
+
+    /**
+     * Records the staged <i>entry</i> in the {@link #stagedFileIndex}.
+     */
+    private void index( ArchiveEntry entry, File outFile, boolean filtered )
+    {
+        if ( entry.getType() == ArchiveEntry.DIRECTORY )
+        {
+            stagedFileIndex.addDirectory( outFile, entry.getMode() );
+        }
+        else if ( entry.getType() == ArchiveEntry.SYMLINK || entry.getResource() instanceof PlexusIoSymlinkResource )
+        {
+            stagedFileIndex.addSymlink( outFile );
+        }
+        else
+        {
+            stagedFileIndex.addFile( outFile, entry.getMode(),
+                                     filtered ? outFile.length() : entry.getResource().getSize() );
+        }
+    }
+
+    /**
+     * Determines whether <i>entry</i> is filtered and counts the filtered and binary files.
+     *
+     * @return {@code true} if {@link #filter} is set and <i>entry</i> is not a binary file.
+     */
+    private boolean isFiltered( ArchiveEntry entry )
+        throws IOException
     {
         if ( !filter || mavenFileFilter == null )
         {
-            super.copyFile( entry, vPath );
+            return false;
+        }
+        if ( entry.getType() != ArchiveEntry.FILE || !( entry.getResource() instanceof PlexusIoFileResource ) )
+        {
+            return true;
+        }
+
+        if ( binaryFileDetector != null
+            && binaryFileDetector.isBinary( ( (PlexusIoFileResource) entry.getResource() ).getFile() ) )
+        {
+            ++binaryFileCount;
+            return false;
+        }
+        ++filteredFileCount;
+        return true;
+    }
+
+    /**
+     * Copies <i>entry</i>, filtering it if <i>filtered</i> is set.
+     *
+     * @return The copy started on the {@link #filterPipeline}, {@code null} if the entry has been copied.
+     */
+    private PendingCopy copyEntry( ArchiveEntry entry, String vPath, boolean filtered )
+        throws IOException
+    {
+        if ( filterPipeline != null && vPath.length() > 0 && entry.getType() == ArchiveEntry.DIRECTORY )
+        {
+            copyDirectory( entry, new File( vPath ) );
+            return null;
+        }
+        if ( replaceStagedFiles && vPath.length() > 0 && entry.getType() == ArchiveEntry.FILE )
+        {
+            final File outFile = new File( vPath );
+            if ( outFile.isFile() && !outFile.delete() )
+            {
+                throw new IOException( "Unable to delete " + outFile.getAbsolutePath() );
+            }
+        }
+        if ( !filtered )
+        {
+            if ( vPath.length() <= 0 || entry.getType() != ArchiveEntry.FILE
+                || !( entry.getResource() instanceof PlexusIoFileResource )
+                || entry.getResource() instanceof PlexusIoSymlinkResource )
+            {
+                super.copyFile( entry, vPath );
+                return null;
+            }
+
+            final File inFile = ( (PlexusIoFileResource) entry.getResource() ).getFile();
+            final File outFile = new File( vPath );
+            if ( stagingLinker != null && stagingLinker.link( inFile, outFile, entry.getMode() ) )
+            {
+                return null;
+            }
+            final boolean register = deduplicationAttributes != null && stagedContentRegistry != null;
+            if ( register && stagedContentRegistry.link( inFile, outFile, entry.getMode(), deduplicationAttributes ) )
+            {
+                return null;
+            }
+            // never write through a link staged by a previous mapping
+            if ( ( stagingLinker != null || stagedContentRegistry != null ) && outFile.isFile() && !outFile.delete() )
+            {
+                throw new IOException( "Unable to delete " + outFile.getAbsolutePath() );
+            }
+            transferFile( entry, inFile, outFile );
+            if ( register )
+            {
+                stagedContentRegistry.register( inFile, outFile, entry.getMode(), deduplicationAttributes );
+            }
         }
         else
         {
             // don't add "" to the archive
             if ( vPath.length() <= 0 )
             {
-                return;
+                return null;
             }
 
             File inFile = ( (PlexusIoFileResource) entry.getResource() ).getFile();
@@ -132,12 +613,48 @@ final class FilteringDirectoryArchiver
 
             if ( !inFile.isDirectory() )
             {
+                // never write through a link staged by a previous mapping
+                if ( ( stagingLinker != null || stagedContentRegistry != null ) && outFile.isFile()
+                    && !outFile.delete() )
+                {
+                    throw new IOException( "Unable to delete " + outFile.getAbsolutePath() );
+                }
+                File cacheEntry = null;
+                if ( filterPipeline != null || filterCache != null )
+                {
+                    Files.createDirectories( outFile.getAbsoluteFile().getParentFile().toPath() );
+                }
+                if ( filterCache != null )
+                {
+                    cacheEntry = filterCache.getEntry( inFile );
+                    if ( filterCache.restore( cacheEntry, inFile, outFile ) )
+                    {
+                        if ( !isIgnorePermissions() )
+                        {
+                            ArchiveEntryUtils.chmod( outFile, entry.getMode() );
+                        }
+                        return null;
+                    }
+                }
+                if ( filterPipeline != null )
+                {
+                    final PendingCopy pendingCopy =
+                        new PendingCopy( entry, inFile, outFile, filterPipeline.submit( inFile, outFile,
+                                                                                        filterWrappers ) );
+                    pendingCopy.cacheEntry = cacheEntry;
+                    pendingCopies.add( pendingCopy );
+                    return pendingCopy;
+                }
                 try
                 {
                     mavenFileFilter.copyFile( inFile, outFile, true, filterWrappers, null );
+                    if ( cacheEntry != null )
+                    {
+                        filterCache.store( cacheEntry, outFile );
+                    }
                     if ( !isIgnorePermissions() )
                     {
-                        ArchiveEntryUtils.chmod( outFile, entry.getMode(), getLogger(), isUseJvmChmod() );
+                        ArchiveEntryUtils.chmod( outFile, entry.getMode() );
                     }
                 }
                 catch ( MavenFilteringException e )
@@ -153,5 +670,94 @@ final class FilteringDirectoryArchiver
                 super.copyFile( entry, vPath );
             }
         }
+        return null;
+    }
+
+    /**
+     * Copies the unfiltered file <i>entry</i> like {@link DirectoryArchiver#copyFile(ArchiveEntry, String)} does (an
+     * up to date <i>outFile</i> is kept, the mode of the entry and the modification time of the source or archiver are
+     * applied), but lets the kernel transfer the content from <i>inFile</i> instead of streaming it through the heap.
+     * This matters for large binaries, which make up most of the bytes staged.
+     */
+    private void transferFile( ArchiveEntry entry, File inFile, File outFile )
+        throws IOException
+    {
+        final long lastModified = entry.getResource().getLastModified();
+        if ( ResourceUtils.isUptodate( lastModified, outFile.lastModified() ) )
+        {
+            return;
+        }
+
+        Files.createDirectories( outFile.getAbsoluteFile().getParentFile().toPath() );
+
+        final FileChannel in = new FileInputStream( inFile ).getChannel();
+        try
+        {
+            final FileChannel out = new FileOutputStream( outFile ).getChannel();
+            try
+            {
+                final long size = in.size();
+                long position = 0;
+                while ( position < size )
+                {
+                    final long transferred = in.transferTo( position, size - position, out );
+                    if ( transferred <= 0 )
+                    {
+                        // the source has been truncated meanwhile, a partial copy would be taken as up to date
+                        out.close();
+                        if ( !outFile.delete() )
+                        {
+                            throw new IOException( "Unable to delete " + outFile.getAbsolutePath() );
+                        }
+                        throw new IOException( "File size changed while copying " + inFile.getAbsolutePath() );
+                    }
+                    position += transferred;
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        setModes( entry, outFile, lastModified );
+    }
+
+    /**
+     * Creates the directory <i>entry</i> like {@link DirectoryArchiver#copyFile(ArchiveEntry, String)} does, but leaves
+     * setting its mode to {@link #completePendingCopies()}.
+     */
+    private void copyDirectory( ArchiveEntry entry, File outFile )
+        throws IOException
+    {
+        if ( ResourceUtils.isUptodate( entry.getResource().getLastModified(), outFile.lastModified() ) )
+        {
+            return;
+        }
+        Files.createDirectories( outFile.toPath() );
+        pendingDirectories.put( outFile, entry );
+    }
+
+    /**
+     * Applies the mode of <i>entry</i> and the modification time of the archiver or <i>lastModified</i> to
+     * <i>outFile</i>, like {@link DirectoryArchiver} does.
+     */
+    private void setModes( ArchiveEntry entry, File outFile, long lastModified )
+        throws IOException
+    {
+        if ( !isIgnorePermissions() )
+        {
+            ArchiveEntryUtils.chmod( outFile, entry.getMode() );
+        }
+        FileTime time = getLastModifiedTime();
+        if ( time == null )
+        {
+            time = FileTime.fromMillis( lastModified == 0 ? System.currentTimeMillis() : lastModified );
+        }
+        Files.setLastModifiedTime( outFile.toPath(), time );
     }
 }
@@ -0,0 +1,243 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Resolves the {@link SoftlinkSource}s of all mappings into the individual soft links to create in the buildroot.
+ * <p>
+ * Resolving registers the linked file names with the {@link Mapping}s, so it must happen exactly once per execution
+ * and before the list of files is determined.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class LinkHelper
+{
+    /**
+     * A single soft link to be created in the buildroot.
+     */
+    static final class Link
+    {
+        private final String path;
+
+        private final String target;
+
+        Link( String path, String target )
+        {
+            this.path = path;
+            this.target = target;
+        }
+
+        /**
+         * @return The path of the link, relative to the buildroot (no leading slash). May contain macros.
+         */
+        String getPath()
+        {
+            return path;
+        }
+
+        /**
+         * @return The target the link points to. May contain macros.
+         */
+        String getTarget()
+        {
+            return target;
+        }
+    }
+
+    private final AbstractRPMMojo mojo;
+
+    /**
+     * @param mojo The mojo with the {@link AbstractRPMMojo#getLinkTargetToSources() link sources} to resolve.
+     */
+    LinkHelper( AbstractRPMMojo mojo )
+    {
+        this.mojo = mojo;
+    }
+
+    /**
+     * Resolves all soft links.
+     *
+     * @return The links to create, in the order they should be created.
+     */
+    List<Link> resolveLinks()
+    {
+        final List<Link> links = new ArrayList<Link>();
+
+        for ( Map.Entry<String, List<SoftlinkSource>> directoryToSourcesEntry : mojo.getLinkTargetToSources().entrySet() )
+        {
+            String directory = directoryToSourcesEntry.getKey();
+            if ( directory.startsWith( "/" ) )
+            {
+                directory = directory.substring( 1 );
+            }
+            if ( directory.endsWith( "/" ) )
+            {
+                directory = directory.substring( 0, directory.length() - 1 );
+            }
+
+            final List<SoftlinkSource> sources = directoryToSourcesEntry.getValue();
+            final int sourceCnt = sources.size();
+
+            if ( sourceCnt == 1 )
+            {
+                final SoftlinkSource linkSource = sources.get( 0 );
+
+                final File buildSourceLocation = getBuildSourceLocation( directory, linkSource );
+
+                if ( buildSourceLocation.isDirectory() )
+                {
+                    final StagedFileIndex.Scan scanner = scanLinkSource( linkSource, buildSourceLocation );
+
+                    if ( scanner.isEverythingIncluded() )
+                    {
+                        final File destinationFile = linkSource.getSourceMapping().getAbsoluteDestination();
+                        if ( destinationFile.delete() )
+                        {
+                            mojo.getStagedFileIndex().remove( destinationFile );
+                        }
+
+                        String path = directory;
+
+                        final String dest = linkSource.getDestination();
+                        if ( dest != null )
+                        {
+                            path += '/' + dest;
+                            linkSource.getSourceMapping().addLinkedFileNameRelativeToDestination( dest );
+                        }
+
+                        links.add( new Link( path, linkSource.getLocation() ) );
+                    }
+                    else
+                    {
+                        linkScannedFiles( links, directory, linkSource, scanner );
+                    }
+                }
+                else
+                {
+                    linkSingleFile( links, directory, linkSource );
+                }
+            }
+            else
+            {
+                for ( SoftlinkSource linkSource : sources )
+                {
+                    final File buildSourceLocation = getBuildSourceLocation( directory, linkSource );
+
+                    if ( buildSourceLocation.isDirectory() )
+                    {
+                        final StagedFileIndex.Scan scanner = scanLinkSource( linkSource, buildSourceLocation );
+
+                        linkScannedFiles( links, directory, linkSource, scanner );
+                    }
+                    else
+                    {
+                        linkSingleFile( links, directory, linkSource );
+                    }
+                }
+            }
+        }
+
+        return links;
+    }
+
+    /**
+     * Determines where the content linked to by <i>linkSource</i> exists in the build root.
+     *
+     * @param directory Directory to link to.
+     * @param linkSource Source to link from.
+     * @return The location of the linked content in the build root.
+     */
+    private File getBuildSourceLocation( String directory, SoftlinkSource linkSource )
+    {
+        final String macroEvaluatedLocation = linkSource.getMacroEvaluatedLocation();
+
+        if ( macroEvaluatedLocation.startsWith( "/" ) )
+        {
+            return new File( mojo.getBuildroot(), macroEvaluatedLocation );
+        }
+        return new File( mojo.getBuildroot(), directory + '/' + macroEvaluatedLocation );
+    }
+
+    /**
+     * Links all files in the <i>scanner</i> from <i>linkSource</i> to <i>directory</i>.
+     *
+     * @param links The list to add the links to.
+     * @param directory Directory to link to.
+     * @param linkSource Source to link from. {@link SoftlinkSource#getLocation()} must be a {@link File#isDirectory()
+     *            directory}.
+     * @param scanner Result of scanning the {@link SoftlinkSource#getLocation() linkSource location}.
+     */
+    private static void linkScannedFiles( List<Link> links, String directory, final SoftlinkSource linkSource,
+                                          final StagedFileIndex.Scan scanner )
+    {
+        final List<String> files = scanner.getIncludedFiles();
+        final String sourceLocation = linkSource.getLocation();
+
+        final String targetPrefix = sourceLocation + FileHelper.UNIX_FILE_SEPARATOR;
+        final String sourcePrefix = directory + FileHelper.UNIX_FILE_SEPARATOR;
+
+        for ( String file : files )
+        {
+            links.add( new Link( sourcePrefix + file, targetPrefix + file ) );
+
+            linkSource.getSourceMapping().addLinkedFileNameRelativeToDestination( file );
+        }
+    }
+
+    /**
+     * Scans the <i>buildSourceLocation</i> in the {@link AbstractRPMMojo#getStagedFileIndex() staged file index} using
+     * the {@link SoftlinkSource#getIncludes()} and {@link SoftlinkSource#getExcludes()} from <i>linkSource</i>.
+     *
+     * @param linkSource Source
+     * @param buildSourceLocation Build location where content exists.
+     * @return The included files.
+     */
+    private StagedFileIndex.Scan scanLinkSource( final SoftlinkSource linkSource, final File buildSourceLocation )
+    {
+        return mojo.getStagedFileIndex().scan( buildSourceLocation, linkSource.getIncludes(),
+                                               linkSource.getExcludes() );
+    }
+
+    /**
+     * Links <i>linkSource</i> to <i>directory</i> using optional {@link SoftlinkSource#getDestination()} as the name
+     * of the link in <i>directory</i> if present.
+     *
+     * @param links The list to add the link to.
+     * @param directory Directory to link to.
+     * @param linkSource Source to link from.
+     */
+    private static void linkSingleFile( List<Link> links, String directory, final SoftlinkSource linkSource )
+    {
+        final String destination = linkSource.getDestination();
+        final String linkedFileName =
+            destination == null ? new File( linkSource.getMacroEvaluatedLocation() ).getName() : destination;
+
+        links.add( new Link( directory + '/' + linkedFileName, linkSource.getLocation() ) );
+
+        linkSource.getSourceMapping().addLinkedFileNameRelativeToDestination( linkedFileName );
+    }
+}
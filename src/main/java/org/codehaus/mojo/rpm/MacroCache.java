@@ -0,0 +1,307 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A persistent cache of the values determined by executing rpm: the {@link RPMHelper#evaluateMacro(String) evaluated
+ * macros}, including the {@link RPMHelper#getArch() architecture} (<i>_arch</i>) and
+ * {@link RPMHelper#getHostVendor() vendor} (<i>_host_vendor</i>) of the host.
+ * <p>
+ * The cached values are only used as long as the fingerprint they were stored with still matches. It covers the rpm
+ * executable found on the path, every file below the rpm configuration directories (which hold the macro files rpm
+ * loads), the user's <i>.rpmmacros</i> and <i>.rpmrc</i> and the define statements of the build. Any change to these
+ * discards the whole cache.
+ * </p>
+ * <p>
+ * The cache is safe for use by concurrent threads. Concurrent builds may overwrite each other's additions, which only
+ * costs another execution of rpm.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class MacroCache
+{
+    private static final String FINGERPRINT = "fingerprint";
+
+    private static final String MACRO_PREFIX = "macro.";
+
+    /**
+     * The directories holding the macro and configuration files rpm loads.
+     */
+    private static final String[] CONFIGURATION_DIRECTORIES = { "/usr/lib/rpm", "/usr/lib64/rpm", "/etc/rpm" };
+
+    /**
+     * The maximum depth of files included in the fingerprint below each of the {@link #CONFIGURATION_DIRECTORIES}
+     * (e.g. <i>/usr/lib/rpm/platform/x86_64-linux/macros</i>).
+     */
+    private static final int CONFIGURATION_DEPTH = 3;
+
+    private final File file;
+
+    private final String fingerprint;
+
+    private final Log log;
+
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    private MacroCache( File file, String fingerprint, Log log )
+    {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.log = log;
+    }
+
+    /**
+     * Opens the cache stored in <i>file</i>.
+     *
+     * @param file The file the cache is stored in.
+     * @param defineStatements The define statements of the build.
+     * @param log The log to report to.
+     * @return The cache, {@code null} if there is no rpm executable on the path.
+     */
+    static MacroCache open( File file, List<String> defineStatements, Log log )
+    {
+        final File rpm = findExecutable( "rpm" );
+        if ( rpm == null )
+        {
+            log.debug( "No rpm executable found, not caching macros." );
+            return null;
+        }
+
+        final MacroCache cache = new MacroCache( file, computeFingerprint( rpm, defineStatements ), log );
+        cache.load();
+        return cache;
+    }
+
+    /**
+     * @param macro The macro.
+     * @return The cached value of <i>macro</i>, {@code null} if it is not cached.
+     */
+    synchronized String get( String macro )
+    {
+        return values.get( macro );
+    }
+
+    /**
+     * Adds <i>macros</i> to the cache and stores it.
+     *
+     * @param macros The evaluated values, keyed by macro.
+     */
+    synchronized void putAll( Map<String, String> macros )
+    {
+        values.putAll( macros );
+        save();
+    }
+
+    private void load()
+    {
+        if ( !file.isFile() )
+        {
+            return;
+        }
+
+        final Properties properties = new Properties();
+        try
+        {
+            final InputStream in = new FileInputStream( file );
+            try
+            {
+                properties.load( in );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            log.debug( "Unable to read the macro cache " + file + ": " + e.getMessage() );
+            return;
+        }
+
+        if ( !fingerprint.equals( properties.getProperty( FINGERPRINT ) ) )
+        {
+            log.debug( "The rpm installation has changed, discarding the macro cache " + file );
+            return;
+        }
+
+        for ( String name : properties.stringPropertyNames() )
+        {
+            if ( name.startsWith( MACRO_PREFIX ) )
+            {
+                values.put( name.substring( MACRO_PREFIX.length() ), properties.getProperty( name ) );
+            }
+        }
+        log.debug( "Loaded " + values.size() + " macros from " + file );
+    }
+
+    private void save()
+    {
+        final Properties properties = new Properties();
+        properties.setProperty( FINGERPRINT, fingerprint );
+        for ( Map.Entry<String, String> entry : values.entrySet() )
+        {
+            properties.setProperty( MACRO_PREFIX + entry.getKey(), entry.getValue() );
+        }
+
+        try
+        {
+            final File directory = file.getAbsoluteFile().getParentFile();
+            if ( !directory.isDirectory() && !directory.mkdirs() )
+            {
+                throw new IOException( "Unable to create " + directory );
+            }
+
+            // replace the file atomically, concurrent builds may be reading it
+            final File tmp = File.createTempFile( file.getName(), ".tmp", directory );
+            try
+            {
+                final OutputStream out = new FileOutputStream( tmp );
+                try
+                {
+                    properties.store( out, "rpm-maven-plugin macro cache" );
+                }
+                finally
+                {
+                    out.close();
+                }
+                Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE );
+            }
+            finally
+            {
+                tmp.delete();
+            }
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Unable to write the macro cache " + file + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * @return The executable <i>name</i> on the path, {@code null} if there is none.
+     */
+    private static File findExecutable( String name )
+    {
+        final String path = System.getenv( "PATH" );
+        if ( path == null )
+        {
+            return null;
+        }
+
+        for ( String directory : path.split( File.pathSeparator ) )
+        {
+            final File executable = new File( directory, name );
+            if ( executable.isFile() && executable.canExecute() )
+            {
+                return executable;
+            }
+        }
+        return null;
+    }
+
+    private static String computeFingerprint( File rpm, List<String> defineStatements )
+    {
+        final SortedSet<String> stamps = new TreeSet<String>();
+        stamps.add( stamp( rpm ) );
+        for ( String directory : CONFIGURATION_DIRECTORIES )
+        {
+            addStamps( new File( directory ), CONFIGURATION_DEPTH, stamps );
+        }
+
+        final String home = System.getProperty( "user.home" );
+        stamps.add( "home:" + home );
+        stamps.add( stamp( new File( home, ".rpmmacros" ) ) );
+        stamps.add( stamp( new File( home, ".rpmrc" ) ) );
+
+        final StringBuilder fingerprint = new StringBuilder();
+        for ( String stamp : stamps )
+        {
+            fingerprint.append( stamp ).append( '\n' );
+        }
+        if ( defineStatements != null )
+        {
+            for ( String define : defineStatements )
+            {
+                fingerprint.append( "define:" ).append( define ).append( '\n' );
+            }
+        }
+
+        try
+        {
+            final MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+            return RPMPackageWriter.hex( digest.digest( fingerprint.toString().getBytes( StandardCharsets.UTF_8 ) ) );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static void addStamps( File directory, int depth, SortedSet<String> stamps )
+    {
+        final File[] files = directory.listFiles();
+        if ( files == null )
+        {
+            return;
+        }
+
+        for ( File child : files )
+        {
+            if ( child.isDirectory() )
+            {
+                if ( depth > 1 )
+                {
+                    addStamps( child, depth - 1, stamps );
+                }
+            }
+            else
+            {
+                stamps.add( stamp( child ) );
+            }
+        }
+    }
+
+    private static String stamp( File file )
+    {
+        return file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+    }
+}
@@ -0,0 +1,461 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Evaluates macros without executing rpm, from the macro files of the rpm installation, the user's
+ * <i>.rpmmacros</i> and the define statements of the build.
+ * <p>
+ * Only what can be determined with certainty is evaluated: plain macros, which may reference other macros
+ * (<i>%name</i> or <i>%{name}</i>) and test whether they are defined (<i>%{?name}</i>, <i>%{?name:value}</i>,
+ * <i>%{!?name:value}</i>). A macro is left to rpm if its expansion involves a shell command (<i>%(...)</i>), an
+ * expression (<i>%[...]</i>), a built-in (e.g. <i>%{lua:...}</i> or <i>%{expand:...}</i>), a parametric macro or a
+ * macro none of the files defines, which may be defined by rpm itself (e.g. <i>_host_vendor</i>). The platform
+ * specific macro files are only read to determine which macros depend on the target platform, these are left to rpm
+ * as well.
+ * </p>
+ * <p>
+ * The files are read in the order rpm reads them, later definitions replacing earlier ones, and the define statements
+ * replace all of them, as they do in the spec file.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class MacroEvaluator
+{
+    /**
+     * The default location of the macro files of the rpm installation.
+     */
+    private static final File RPM_CONFIGURATION = new File( "/usr/lib/rpm" );
+
+    /**
+     * The system wide configuration of rpm.
+     */
+    private static final File SYSTEM_CONFIGURATION = new File( "/etc/rpm" );
+
+    /**
+     * The maximum nesting of macros, the same limit rpm uses.
+     */
+    private static final int MAXIMUM_DEPTH = 64;
+
+    private static final Pattern DEFINITION = Pattern.compile( "%([A-Za-z_][A-Za-z0-9_]*)(\\([^)]*\\))?\\s*(.*)",
+                                                               Pattern.DOTALL );
+
+    /**
+     * Thrown if a macro cannot be evaluated with certainty, it is left to rpm then.
+     */
+    private static final class UnknownMacroException
+        extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        UnknownMacroException( String message )
+        {
+            super( message );
+        }
+    }
+
+    /**
+     * The bodies of the macros which can be evaluated, keyed by name.
+     */
+    private final Map<String, String> macros = new HashMap<String, String>();
+
+    private final Log log;
+
+    private MacroEvaluator( Log log )
+    {
+        this.log = log;
+    }
+
+    /**
+     * Reads the macro files of the rpm installation.
+     *
+     * @param defineStatements The define statements of the build, may be {@code null}.
+     * @param log The log to report to.
+     * @return The evaluator, {@code null} if there are no macro files at the default location (i.e. rpm is not
+     *         installed or configured differently).
+     */
+    static MacroEvaluator load( List<String> defineStatements, Log log )
+    {
+        final File defaults = new File( RPM_CONFIGURATION, "macros" );
+        if ( !defaults.isFile() )
+        {
+            log.debug( "No rpm macros found at " + defaults + ", macros are evaluated by rpm." );
+            return null;
+        }
+
+        final MacroEvaluator evaluator = new MacroEvaluator( log );
+        try
+        {
+            evaluator.read( defaults, false );
+            for ( File file : list( new File( RPM_CONFIGURATION, "macros.d" ), "macros." ) )
+            {
+                evaluator.read( file, false );
+            }
+            for ( File directory : list( new File( RPM_CONFIGURATION, "platform" ), "" ) )
+            {
+                evaluator.read( new File( directory, "macros" ), true );
+            }
+            for ( File directory : list( RPM_CONFIGURATION, "" ) )
+            {
+                // the vendor specific macros, e.g. redhat/macros
+                if ( !"platform".equals( directory.getName() ) )
+                {
+                    evaluator.read( new File( directory, "macros" ), false );
+                }
+            }
+            for ( File file : list( SYSTEM_CONFIGURATION, "macros." ) )
+            {
+                evaluator.read( file, false );
+            }
+            evaluator.read( new File( SYSTEM_CONFIGURATION, "macros" ), false );
+            for ( File directory : list( SYSTEM_CONFIGURATION, "" ) )
+            {
+                evaluator.read( new File( directory, "macros" ), true );
+            }
+            evaluator.read( new File( System.getProperty( "user.home" ), ".rpmmacros" ), false );
+        }
+        catch ( IOException e )
+        {
+            log.debug( "Unable to read the rpm macros, macros are evaluated by rpm: " + e.getMessage() );
+            return null;
+        }
+
+        if ( defineStatements != null )
+        {
+            for ( String define : defineStatements )
+            {
+                evaluator.define( define.trim(), false );
+            }
+        }
+        return evaluator;
+    }
+
+    /**
+     * Evaluates <i>%{macro}</i>.
+     *
+     * @param macro The macro, as found between <i>%{</i> and <i>}</i>.
+     * @return The value, {@code null} if it cannot be determined without rpm.
+     */
+    String evaluate( String macro )
+    {
+        try
+        {
+            return expandBraces( macro, 0 ).trim();
+        }
+        catch ( UnknownMacroException e )
+        {
+            if ( log.isDebugEnabled() )
+            {
+                log.debug( "Leaving %{" + macro + "} to rpm: " + e.getMessage() );
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads the definitions of <i>file</i>, if it exists.
+     *
+     * @param platform Indicates if the file is specific to a target platform.
+     */
+    private void read( File file, boolean platform )
+        throws IOException
+    {
+        if ( !file.isFile() )
+        {
+            return;
+        }
+
+        final BufferedReader reader =
+            new BufferedReader( new InputStreamReader( new FileInputStream( file ), StandardCharsets.UTF_8 ) );
+        try
+        {
+            final StringBuilder definition = new StringBuilder();
+            int depth = 0;
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                if ( definition.length() == 0 && !line.startsWith( "%" ) )
+                {
+                    // comments and empty lines
+                    continue;
+                }
+
+                final boolean continued = line.endsWith( "\\" );
+                if ( continued )
+                {
+                    line = line.substring( 0, line.length() - 1 );
+                }
+                if ( definition.length() > 0 )
+                {
+                    definition.append( '\n' );
+                }
+                definition.append( line );
+
+                depth += count( line, '{' ) - count( line, '}' );
+                if ( !continued && depth <= 0 )
+                {
+                    define( definition.toString(), platform );
+                    definition.setLength( 0 );
+                    depth = 0;
+                }
+            }
+            if ( definition.length() > 0 )
+            {
+                define( definition.toString(), platform );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records a definition, either from a file (<i>%name body</i>) or a define statement (<i>name body</i>).
+     */
+    private void define( String definition, boolean platform )
+    {
+        final Matcher matcher = DEFINITION.matcher( definition.startsWith( "%" ) ? definition : '%' + definition );
+        if ( !matcher.matches() )
+        {
+            return;
+        }
+
+        final String name = matcher.group( 1 );
+        if ( platform || matcher.group( 2 ) != null )
+        {
+            // cannot be evaluated, the same as if it was not defined at all
+            macros.remove( name );
+        }
+        else
+        {
+            macros.put( name, matcher.group( 3 ).trim() );
+        }
+    }
+
+    /**
+     * Expands all macros in <i>value</i>.
+     */
+    private String expand( String value, int depth )
+        throws UnknownMacroException
+    {
+        if ( value.indexOf( '%' ) < 0 )
+        {
+            return value;
+        }
+        if ( depth > MAXIMUM_DEPTH )
+        {
+            throw new UnknownMacroException( "too many levels of recursion" );
+        }
+
+        final StringBuilder result = new StringBuilder( value.length() );
+        int i = 0;
+        while ( i < value.length() )
+        {
+            final char c = value.charAt( i );
+            if ( c != '%' || i + 1 == value.length() )
+            {
+                result.append( c );
+                ++i;
+                continue;
+            }
+
+            final char next = value.charAt( i + 1 );
+            if ( next == '%' )
+            {
+                result.append( '%' );
+                i += 2;
+            }
+            else if ( next == '{' )
+            {
+                final int end = findClosingBrace( value, i + 2 );
+                result.append( expandBraces( value.substring( i + 2, end ), depth ) );
+                i = end + 1;
+            }
+            else if ( Character.isLetter( next ) || next == '_' )
+            {
+                int end = i + 2;
+                while ( end < value.length()
+                    && ( Character.isLetterOrDigit( value.charAt( end ) ) || value.charAt( end ) == '_' ) )
+                {
+                    ++end;
+                }
+                result.append( lookup( value.substring( i + 1, end ), depth ) );
+                i = end;
+            }
+            else
+            {
+                // shell commands, expressions and the arguments of parametric macros
+                throw new UnknownMacroException( "unsupported %" + next );
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Expands <i>%{content}</i>.
+     */
+    private String expandBraces( String content, int depth )
+        throws UnknownMacroException
+    {
+        boolean negate = false;
+        boolean conditional = false;
+        int start = 0;
+        while ( start < content.length() && ( content.charAt( start ) == '!' || content.charAt( start ) == '?' ) )
+        {
+            if ( content.charAt( start ) == '!' )
+            {
+                negate = !negate;
+            }
+            else
+            {
+                conditional = true;
+            }
+            ++start;
+        }
+
+        final int colon = content.indexOf( ':', start );
+        final String name = colon < 0 ? content.substring( start ) : content.substring( start, colon );
+        if ( !isName( name ) )
+        {
+            throw new UnknownMacroException( "unsupported %{" + content + "}" );
+        }
+
+        if ( !conditional )
+        {
+            if ( negate || colon >= 0 )
+            {
+                // built-ins such as %{expand:...} or %{lua:...}
+                throw new UnknownMacroException( "unsupported %{" + content + "}" );
+            }
+            return lookup( name, depth );
+        }
+
+        // only known macros are evaluated, so the macro tested is defined
+        requireKnown( name );
+        if ( negate )
+        {
+            return "";
+        }
+        return colon < 0 ? lookup( name, depth ) : expand( content.substring( colon + 1 ), depth + 1 );
+    }
+
+    private void requireKnown( String name )
+        throws UnknownMacroException
+    {
+        if ( !macros.containsKey( name ) )
+        {
+            // rpm may define it itself, or it depends on the platform
+            throw new UnknownMacroException( "%" + name + " is not known" );
+        }
+    }
+
+    private String lookup( String name, int depth )
+        throws UnknownMacroException
+    {
+        requireKnown( name );
+        return expand( macros.get( name ), depth + 1 );
+    }
+
+    private static int findClosingBrace( String value, int start )
+        throws UnknownMacroException
+    {
+        int depth = 1;
+        for ( int i = start; i < value.length(); ++i )
+        {
+            final char c = value.charAt( i );
+            if ( c == '{' )
+            {
+                ++depth;
+            }
+            else if ( c == '}' && --depth == 0 )
+            {
+                return i;
+            }
+        }
+        throw new UnknownMacroException( "unterminated %{" );
+    }
+
+    private static boolean isName( String name )
+    {
+        if ( name.length() == 0 || !( Character.isLetter( name.charAt( 0 ) ) || name.charAt( 0 ) == '_' ) )
+        {
+            return false;
+        }
+        for ( int i = 1; i < name.length(); ++i )
+        {
+            if ( !Character.isLetterOrDigit( name.charAt( i ) ) && name.charAt( i ) != '_' )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int count( String line, char c )
+    {
+        int count = 0;
+        for ( int i = line.indexOf( c ); i >= 0; i = line.indexOf( c, i + 1 ) )
+        {
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * @return The entries of <i>directory</i> whose name starts with <i>prefix</i>, sorted by name.
+     */
+    private static List<File> list( File directory, String prefix )
+    {
+        final File[] files = directory.listFiles();
+        if ( files == null )
+        {
+            return new ArrayList<File>();
+        }
+
+        Arrays.sort( files );
+        final List<File> result = new ArrayList<File>( files.length );
+        for ( File file : files )
+        {
+            if ( file.getName().startsWith( prefix ) )
+            {
+                result.add( file );
+            }
+        }
+        return result;
+    }
+}
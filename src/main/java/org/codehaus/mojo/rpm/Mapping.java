@@ -675,6 +675,22 @@ public class Mapping
         this.hasSoftLinks = hasSoftLinks;
     }
 
+    /**
+     * Replaces the names of the files copied and linked to the {@link #getDestination() destination}, to stage the
+     * mapping again into another build root.
+     *
+     * @param copied The names of the copied files.
+     * @param linked The names of the linked files.
+     * @param softLinks The {@link #hasSoftLinks}.
+     * @since 2.3.1
+     */
+    void restoreStagedFileNames( List<String> copied, List<String> linked, boolean softLinks )
+    {
+        this.copiedFileNamesRelativeToDestination = copied.isEmpty() ? null : new ArrayList<String>( copied );
+        this.linkedFileNamesRelativeToDestination = linked.isEmpty() ? null : new LinkedList<String>( linked );
+        this.hasSoftLinks = softLinks;
+    }
+
     /**
      * @return Returns the {@link #absoluteDestination}.
      * @since 2.1-alpha-1
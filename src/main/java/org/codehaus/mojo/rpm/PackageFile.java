@@ -0,0 +1,148 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+
+/**
+ * A single file, directory or soft link contained in a package built by the {@link RPMPackageWriter}.
+ *
+ * @since 2.3.1
+ */
+final class PackageFile
+{
+    /** File type bits of a regular file. */
+    static final int S_IFREG = 0100000;
+
+    /** File type bits of a directory. */
+    static final int S_IFDIR = 0040000;
+
+    /** File type bits of a soft link. */
+    static final int S_IFLNK = 0120000;
+
+    private final String path;
+
+    private final File source;
+
+    private final String linkTarget;
+
+    private final int mode;
+
+    private final String username;
+
+    private final String groupname;
+
+    private final int flags;
+
+    private final long size;
+
+    private final long mtime;
+
+    /**
+     * @param path The absolute path of the file once installed, e.g. <code>/usr/bin/tool</code>.
+     * @param source The file providing the content, or {@code null} for soft links.
+     * @param linkTarget The soft link target, or {@code null} if this is not a soft link.
+     * @param mode The complete mode, including the file type bits.
+     * @param username The owning user name.
+     * @param groupname The owning group name.
+     * @param flags The rpm file flags (see {@link RPMTag#FILE_CONFIG} and others).
+     * @param size The size of the content in bytes.
+     * @param mtime The modification time in seconds since the epoch.
+     */
+    PackageFile( String path, File source, String linkTarget, int mode, String username, String groupname,
+                 int flags, long size, long mtime )
+    {
+        this.path = path;
+        this.source = source;
+        this.linkTarget = linkTarget;
+        this.mode = mode;
+        this.username = username;
+        this.groupname = groupname;
+        this.flags = flags;
+        this.size = size;
+        this.mtime = mtime;
+    }
+
+    String getPath()
+    {
+        return path;
+    }
+
+    File getSource()
+    {
+        return source;
+    }
+
+    String getLinkTarget()
+    {
+        return linkTarget;
+    }
+
+    int getMode()
+    {
+        return mode;
+    }
+
+    String getUsername()
+    {
+        return username;
+    }
+
+    String getGroupname()
+    {
+        return groupname;
+    }
+
+    int getFlags()
+    {
+        return flags;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    long getMtime()
+    {
+        return mtime;
+    }
+
+    boolean isDirectory()
+    {
+        return ( mode & 0170000 ) == S_IFDIR;
+    }
+
+    boolean isLink()
+    {
+        return ( mode & 0170000 ) == S_IFLNK;
+    }
+
+    boolean isRegularFile()
+    {
+        return ( mode & 0170000 ) == S_IFREG;
+    }
+
+    /** {@inheritDoc} */
+    public String toString()
+    {
+        return Integer.toOctalString( mode ) + ' ' + username + ' ' + groupname + ' ' + path;
+    }
+}
@@ -0,0 +1,201 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * The compression of the payload selected by a {@link Profile}, for the version of rpm building the package.
+ * <ul>
+ * <li>rpm 4.16 and later compress zstd with several threads, 4.14 and later xz with several threads and zstd with a
+ * single one.</li>
+ * <li>Older versions only get gzip and single threaded xz.</li>
+ * <li>The <code>java</code> packaging engine only writes gzip, so it only gets the level of a profile.</li>
+ * </ul>
+ *
+ * @since 2.3.1
+ */
+final class PayloadCompression
+{
+    /**
+     * The named trade-offs between compression speed and package size.
+     */
+    enum Profile
+    {
+        /** Fast compression with all threads at a low level, for development builds. */
+        FAST_DEV( "fast-dev", 1 ),
+
+        /** Good compression with all threads, about as fast as the distribution defaults. */
+        BALANCED( "balanced", 6 ),
+
+        /** The smallest packages at the highest level, for release builds. */
+        MAX_RATIO( "max-ratio", 9 );
+
+        private final String name;
+
+        private final int gzipLevel;
+
+        Profile( String name, int gzipLevel )
+        {
+            this.name = name;
+            this.gzipLevel = gzipLevel;
+        }
+
+        /**
+         * @return The name used to configure the profile.
+         */
+        String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return The gzip level of the profile.
+         */
+        int getGzipLevel()
+        {
+            return gzipLevel;
+        }
+
+        /**
+         * @param name The name of a profile, case insensitive.
+         * @return The profile, {@code null} if there is none of that name.
+         */
+        static Profile forName( String name )
+        {
+            for ( Profile profile : values() )
+            {
+                if ( profile.name.equalsIgnoreCase( name.trim() ) )
+                {
+                    return profile;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Pattern VERSION = Pattern.compile( "(\\d+)\\.(\\d+)" );
+
+    private final String codec;
+
+    private final int level;
+
+    private final int threads;
+
+    private PayloadCompression( String codec, int level, int threads )
+    {
+        this.codec = codec;
+        this.level = level;
+        this.threads = threads;
+    }
+
+    /**
+     * Selects the compression of a profile.
+     *
+     * @param profile The profile.
+     * @param rpmVersion The output of <i>rpm --version</i>, e.g. <code>RPM version 4.18.1</code>.
+     * @param threads The number of threads to compress with, at least 1.
+     * @return The compression.
+     */
+    static PayloadCompression select( Profile profile, String rpmVersion, int threads )
+    {
+        final int version = parseVersion( rpmVersion );
+        final boolean zstd = version >= 414;
+        final boolean threadedXz = version >= 414;
+        final boolean threadedZstd = version >= 416;
+
+        switch ( profile )
+        {
+            case FAST_DEV:
+                if ( zstd )
+                {
+                    return new PayloadCompression( "zstd", 1, threadedZstd ? threads : 1 );
+                }
+                return new PayloadCompression( "gz", 1, 1 );
+            case BALANCED:
+                if ( threadedZstd )
+                {
+                    return new PayloadCompression( "zstd", 12, threads );
+                }
+                return new PayloadCompression( "xz", 6, threadedXz ? threads : 1 );
+            default:
+                return new PayloadCompression( "xz", 9, threadedXz ? threads : 1 );
+        }
+    }
+
+    /**
+     * @return The value of the <i>_binary_payload</i> macro, e.g. <code>w9T8.xzdio</code>.
+     */
+    String getBinaryPayload()
+    {
+        return "w" + level + ( threads > 1 ? "T" + threads : "" ) + '.' + codec + "dio";
+    }
+
+    /**
+     * @return A description for the log, e.g. <code>xz level 9 with 8 threads</code>.
+     */
+    String getDescription()
+    {
+        return describe( "gz".equals( codec ) ? "gzip" : codec, level, threads );
+    }
+
+    /**
+     * Logs the ratio of the compression and the throughput of the build.
+     *
+     * @param log The log.
+     * @param description The {@link #getDescription() compression}.
+     * @param uncompressed The size of the uncompressed payload.
+     * @param compressed The size of the packages.
+     * @param millis The duration of building the packages, of which compressing the payload is a part.
+     */
+    static void logResult( Log log, String description, long uncompressed, long compressed, long millis )
+    {
+        final double megabytes = uncompressed / ( 1024.0 * 1024.0 );
+        log.info( String.format( Locale.ENGLISH, "Compressed %.1f MB of payload with %s to %.1f MB "
+            + "(ratio %.2f), build throughput %.1f MB/s", megabytes, description, compressed / ( 1024.0 * 1024.0 ),
+                                 compressed > 0 ? (double) uncompressed / compressed : 0.0,
+                                 megabytes * 1000 / Math.max( millis, 1 ) ) );
+    }
+
+    /**
+     * @return A description of a compression for the log.
+     */
+    static String describe( String codec, int level, int threads )
+    {
+        return codec + " level " + level + ( threads > 1 ? " with " + threads + " threads" : "" );
+    }
+
+    /**
+     * @return The major version times 100 plus the minor version, 0 if there is none.
+     */
+    private static int parseVersion( String rpmVersion )
+    {
+        final Matcher matcher = VERSION.matcher( rpmVersion != null ? rpmVersion : "" );
+        if ( !matcher.find() )
+        {
+            return 0;
+        }
+        return Integer.parseInt( matcher.group( 1 ) ) * 100 + Integer.parseInt( matcher.group( 2 ) );
+    }
+}
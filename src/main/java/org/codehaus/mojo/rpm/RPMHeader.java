@@ -0,0 +1,261 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An rpm header structure (used for both the signature and the main header).
+ * <p>
+ * Entries are kept sorted by tag and the data store is written in the same order, which is what rpm expects when it
+ * verifies a header. The whole header is wrapped in an immutable region, as produced by rpmbuild.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class RPMHeader
+{
+    private static final int TYPE_INT16 = 3;
+
+    private static final int TYPE_INT32 = 4;
+
+    private static final int TYPE_INT64 = 5;
+
+    private static final int TYPE_STRING = 6;
+
+    private static final int TYPE_BIN = 7;
+
+    private static final int TYPE_STRING_ARRAY = 8;
+
+    private static final int TYPE_I18NSTRING = 9;
+
+    private static final byte[] MAGIC = { (byte) 0x8e, (byte) 0xad, (byte) 0xe8, 0x01, 0, 0, 0, 0 };
+
+    /**
+     * A single header entry.
+     */
+    private static final class Entry
+    {
+        final int type;
+
+        final int count;
+
+        final Object value;
+
+        Entry( int type, int count, Object value )
+        {
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    private final int regionTag;
+
+    private final Map<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+
+    /**
+     * @param regionTag The tag of the region enclosing all entries, either {@link RPMTag#HEADER_SIGNATURES} or
+     *            {@link RPMTag#HEADER_IMMUTABLE}.
+     */
+    RPMHeader( int regionTag )
+    {
+        this.regionTag = regionTag;
+    }
+
+    void addString( int tag, String value )
+    {
+        entries.put( tag, new Entry( TYPE_STRING, 1, new String[] { value } ) );
+    }
+
+    void addI18NString( int tag, String value )
+    {
+        entries.put( tag, new Entry( TYPE_I18NSTRING, 1, new String[] { value } ) );
+    }
+
+    void addStringArray( int tag, List<String> values )
+    {
+        entries.put( tag, new Entry( TYPE_STRING_ARRAY, values.size(), values.toArray( new String[values.size()] ) ) );
+    }
+
+    void addInt16( int tag, short[] values )
+    {
+        entries.put( tag, new Entry( TYPE_INT16, values.length, values ) );
+    }
+
+    void addInt32( int tag, int... values )
+    {
+        entries.put( tag, new Entry( TYPE_INT32, values.length, values ) );
+    }
+
+    void addInt64( int tag, long value )
+    {
+        entries.put( tag, new Entry( TYPE_INT64, 1, new long[] { value } ) );
+    }
+
+    void addBinary( int tag, byte[] value )
+    {
+        entries.put( tag, new Entry( TYPE_BIN, value.length, value ) );
+    }
+
+    /**
+     * Adds an unsigned 32 bit size, falling back to the 64 bit <i>longTag</i> if the value does not fit.
+     *
+     * @param tag The 32 bit tag.
+     * @param longTag The 64 bit variant of the tag.
+     * @param value The size to add.
+     */
+    void addSize( int tag, int longTag, long value )
+    {
+        if ( value > 0xffffffffL )
+        {
+            addInt64( longTag, value );
+        }
+        else
+        {
+            addInt32( tag, (int) value );
+        }
+    }
+
+    /**
+     * Serializes the header. The intro, index and data store are returned without trailing padding.
+     *
+     * @return The serialized header.
+     * @throws IOException if the header cannot be serialized.
+     */
+    byte[] toByteArray()
+        throws IOException
+    {
+        final int indexCount = entries.size() + 1;
+
+        final ByteArrayOutputStream storeBytes = new ByteArrayOutputStream( 4096 );
+        final DataOutputStream store = new DataOutputStream( storeBytes );
+
+        final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream( indexCount * 16 );
+        final DataOutputStream index = new DataOutputStream( indexBytes );
+
+        for ( Map.Entry<Integer, Entry> mapEntry : entries.entrySet() )
+        {
+            final Entry entry = mapEntry.getValue();
+
+            pad( store, alignment( entry.type ) );
+
+            index.writeInt( mapEntry.getKey() );
+            index.writeInt( entry.type );
+            index.writeInt( store.size() );
+            index.writeInt( entry.count );
+
+            writeValue( store, entry );
+        }
+
+        // the region trailer is the last thing in the store, its offset points back over the whole index
+        final int trailerOffset = store.size();
+        store.writeInt( regionTag );
+        store.writeInt( TYPE_BIN );
+        store.writeInt( -( indexCount * 16 ) );
+        store.writeInt( 16 );
+        store.flush();
+        index.flush();
+
+        final ByteArrayOutputStream result =
+            new ByteArrayOutputStream( 16 + indexCount * 16 + storeBytes.size() );
+        final DataOutputStream out = new DataOutputStream( result );
+        out.write( MAGIC );
+        out.writeInt( indexCount );
+        out.writeInt( storeBytes.size() );
+
+        out.writeInt( regionTag );
+        out.writeInt( TYPE_BIN );
+        out.writeInt( trailerOffset );
+        out.writeInt( 16 );
+
+        indexBytes.writeTo( out );
+        storeBytes.writeTo( out );
+        out.flush();
+
+        return result.toByteArray();
+    }
+
+    private static void writeValue( DataOutputStream store, Entry entry )
+        throws IOException
+    {
+        switch ( entry.type )
+        {
+            case TYPE_INT16:
+                for ( short value : (short[]) entry.value )
+                {
+                    store.writeShort( value );
+                }
+                break;
+            case TYPE_INT32:
+                for ( int value : (int[]) entry.value )
+                {
+                    store.writeInt( value );
+                }
+                break;
+            case TYPE_INT64:
+                for ( long value : (long[]) entry.value )
+                {
+                    store.writeLong( value );
+                }
+                break;
+            case TYPE_BIN:
+                store.write( (byte[]) entry.value );
+                break;
+            default:
+                for ( String value : (String[]) entry.value )
+                {
+                    store.write( value.getBytes( StandardCharsets.UTF_8 ) );
+                    store.write( 0 );
+                }
+                break;
+        }
+    }
+
+    private static int alignment( int type )
+    {
+        switch ( type )
+        {
+            case TYPE_INT16:
+                return 2;
+            case TYPE_INT32:
+                return 4;
+            case TYPE_INT64:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    private static void pad( DataOutputStream store, int alignment )
+        throws IOException
+    {
+        while ( store.size() % alignment != 0 )
+        {
+            store.write( 0 );
+        }
+    }
+}
@@ -20,6 +20,15 @@ package org.codehaus.mojo.rpm;
  */
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
@@ -31,12 +40,26 @@ import org.codehaus.plexus.util.cli.StreamConsumer;
 
 /**
  * Utility to interact with rpm and rpmbuild commands.
+ * <p>
+ * The host architecture and vendor and the evaluated macros are shared by all executions in the session (see
+ * {@link SessionMacros}), so rpm is only executed for values which no other execution has determined yet.
+ * </p>
  *
  * @author Brett Okken
  * @since 2.0
  */
 final class RPMHelper
 {
+    /**
+     * Separates the results of the macros {@link #evaluateMacros(Collection) evaluated} together.
+     */
+    private static final String MACRO_DELIMITER = "@@rpm-maven-plugin@@";
+
+    /**
+     * The key the output of <i>rpm --version</i> is shared and cached under, which no macro can have.
+     */
+    private static final String RPM_VERSION = "rpm --version";
+
     private final AbstractRPMMojo mojo;
 
     /**
@@ -54,34 +77,14 @@ final class RPMHelper
     public String getHostVendor()
         throws MojoExecutionException
     {
-        final Log log = mojo.getLog();
-
-        final Commandline cl = new Commandline();
-        cl.setExecutable( "rpm" );
-        cl.addArguments( new String[] { "-E", "%{_host_vendor}" } );
-
-        final StringStreamConsumer stdout = new StringStreamConsumer();
-        final StreamConsumer stderr = new LogStreamConsumer( LogStreamConsumer.INFO, log );
-        try
+        return evaluateShared( "_host_vendor", new SessionMacros.Evaluator()
         {
-            if ( log.isDebugEnabled() )
+            public Map<String, String> evaluate( List<String> macros )
+                throws MojoExecutionException
             {
-                log.debug( "About to execute \'" + cl.toString() + "\'" );
-            }
-
-            int result = CommandLineUtils.executeCommandLine( cl, stdout, stderr );
-            if ( result != 0 )
-            {
-                throw new MojoExecutionException( "RPM query for default vendor returned: \'" + result
-                    + "\' executing \'" + cl.toString() + "\'" );
+                return Collections.singletonMap( "_host_vendor", queryHostVendor() );
             }
-        }
-        catch ( CommandLineException e )
-        {
-            throw new MojoExecutionException( "Unable to query for default vendor from RPM", e );
-        }
-
-        return stdout.getOutput().trim();
+        } );
     }
 
     /**
@@ -105,6 +108,20 @@ final class RPMHelper
      */
     public void buildPackage()
         throws MojoExecutionException
+    {
+        prepareBuild().run();
+    }
+
+    /**
+     * Prepares the execution of rpmbuild for the current state of the {@link #mojo}, see {@link #buildPackage()}. The
+     * build can then run later, concurrently with the builds of other architectures.
+     *
+     * @return The build to run.
+     * @throws MojoExecutionException if the version of rpm cannot be determined
+     * @since 2.3.1
+     */
+    Build prepareBuild()
+        throws MojoExecutionException
     {
         final File workarea = mojo.getWorkarea();
         final File f = new File( workarea, "SPECS" );
@@ -133,31 +150,186 @@ final class RPMHelper
         cl.createArg().setValue( "_specdir %{_topdir}/SPECS" );
         cl.createArg().setValue( "--define" );
         cl.createArg().setValue( "_srcrpmdir %{_topdir}/SRPMS" );
+        if ( mojo.getBuildroot().equals( mojo.getRPMBuildroot() ) )
+        {
+            // the files are staged in the build root, which %install must not delete before the install scriptlet
+            cl.createArg().setValue( "--define" );
+            cl.createArg().setValue( "__spec_install_pre %{___build_pre}" );
+        }
+
+        final Date reproducibleTimestamp = mojo.getReproducibleTimestamp();
+        if ( reproducibleTimestamp != null )
+        {
+            cl.addEnvironment( SourceDateEpoch.VARIABLE, String.valueOf( reproducibleTimestamp.getTime() / 1000 ) );
+            cl.createArg().setValue( "--define" );
+            cl.createArg().setValue( "source_date_epoch_from_changelog 0" );
+            cl.createArg().setValue( "--define" );
+            cl.createArg().setValue( "use_source_date_epoch_as_buildtime 1" );
+            cl.createArg().setValue( "--define" );
+            cl.createArg().setValue( "clamp_mtime_to_source_date_epoch 1" );
+            cl.createArg().setValue( "--define" );
+            cl.createArg().setValue( "_buildhost reproducible" );
+        }
+
+        PayloadCompression compression = null;
+        if ( mojo.getPayloadCompression() != null )
+        {
+            compression = PayloadCompression.select( mojo.getPayloadCompression(), getRpmVersion(),
+                                                     mojo.getCompressionThreads() );
+            cl.createArg().setValue( "--define" );
+            cl.createArg().setValue( "_binary_payload " + compression.getBinaryPayload() );
+        }
 
         cl.createArg().setValue( mojo.getName() + ".spec" );
 
-        final Log log = mojo.getLog();
+        final List<File> packages = new ArrayList<File>();
+        packages.add( mojo.getRPMFile() );
+        for ( Subpackage subpackage : mojo.getSubpackages() )
+        {
+            packages.add( mojo.getRPMFile( subpackage ) );
+        }
+        return new Build( cl, workarea, packages, mojo.getStagedFileIndex().getFileSize(), compression );
+    }
 
-        final StreamConsumer stdout = new LogStreamConsumer( LogStreamConsumer.INFO, log );
-        final StreamConsumer stderr = new LogStreamConsumer( LogStreamConsumer.INFO, log );
-        try
+    /**
+     * An execution of rpmbuild {@link #prepareBuild() prepared} for one package.
+     *
+     * @since 2.3.1
+     */
+    final class Build
+    {
+        private final Commandline cl;
+
+        private final File workarea;
+
+        private final File rpm;
+
+        /**
+         * The package and the packages of the sub-packages.
+         */
+        private final List<File> packages;
+
+        /**
+         * The size of the staged files, i.e. of the uncompressed payload.
+         */
+        private final long stagedSize;
+
+        private final PayloadCompression compression;
+
+        private Build( Commandline cl, File workarea, List<File> packages, long stagedSize,
+                       PayloadCompression compression )
         {
-            if ( log.isDebugEnabled() )
+            this.cl = cl;
+            this.workarea = workarea;
+            this.rpm = packages.get( 0 );
+            this.packages = packages;
+            this.stagedSize = stagedSize;
+            this.compression = compression;
+        }
+
+        /**
+         * @return The package built.
+         */
+        File getRPMFile()
+        {
+            return rpm;
+        }
+
+        /**
+         * Executes rpmbuild and signs the package.
+         *
+         * @throws MojoExecutionException if rpmbuild fails or the package cannot be signed
+         */
+        void run()
+            throws MojoExecutionException
+        {
+            final Log log = mojo.getLog();
+
+            final File outputFile = mojo.isRpmbuildLog() ? new File( workarea, "rpmbuild.log" ) : null;
+            final RingBufferStreamConsumer output;
+            try
             {
-                log.debug( "About to execute \'" + cl.toString() + "\'" );
+                output = new RingBufferStreamConsumer( log, mojo.getRpmbuildOutputLines(), outputFile );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to create " + outputFile.getAbsolutePath(), e );
             }
+            try
+            {
+                if ( log.isDebugEnabled() )
+                {
+                    log.debug( "About to execute \'" + cl.toString() + "\'" );
+                }
 
-            int result = CommandLineUtils.executeCommandLine( cl, stdout, stderr );
-            if ( result != 0 )
+                final long start = System.currentTimeMillis();
+                int result = CommandLineUtils.executeCommandLine( cl, output, output );
+                output.close();
+                if ( result != 0 )
+                {
+                    output.logOutput();
+                    throw new MojoExecutionException( "RPM build execution returned: \'" + result + "\' executing \'"
+                        + cl.toString() + "\'" );
+                }
+                output.logSummary();
+                if ( compression != null )
+                {
+                    logCompression( System.currentTimeMillis() - start );
+                }
+            }
+            catch ( CommandLineException e )
             {
-                throw new MojoExecutionException( "RPM build execution returned: \'" + result + "\' executing \'"
-                    + cl.toString() + "\'" );
+                throw new MojoExecutionException( "Unable to build the RPM", e );
+            }
+            finally
+            {
+                output.close();
             }
+
+            signPackage( rpm );
         }
-        catch ( CommandLineException e )
+
+        /**
+         * Logs the ratio of the payload compression and the throughput of rpmbuild. The uncompressed size is the size
+         * of the staged files, which is known without querying the package.
+         *
+         * @param millis The duration of rpmbuild.
+         */
+        private void logCompression( long millis )
         {
-            throw new MojoExecutionException( "Unable to build the RPM", e );
+            long compressed = 0;
+            for ( File file : packages )
+            {
+                compressed += file.length();
+            }
+            PayloadCompression.logResult( mojo.getLog(), compression.getDescription(), stagedSize, compressed,
+                                          millis );
         }
+    }
+
+    /**
+     * Signs the {@link AbstractRPMMojo#getRPMFile() rpm} if a {@link AbstractRPMMojo#getKeyname() key name} has been
+     * provided.
+     *
+     * @throws MojoExecutionException if an error occurs
+     * @since 2.3.1
+     */
+    public void signPackage()
+        throws MojoExecutionException
+    {
+        signPackage( mojo.getRPMFile() );
+    }
+
+    /**
+     * Signs <i>rpm</i> if a {@link AbstractRPMMojo#getKeyname() key name} has been provided.
+     *
+     * @param rpm The package to sign.
+     * @throws MojoExecutionException if an error occurs
+     */
+    private void signPackage( File rpm )
+        throws MojoExecutionException
+    {
+        final Log log = mojo.getLog();
 
         // if the keyname has been provided, try to sign
         final String keyname = mojo.getKeyname();
@@ -171,7 +343,7 @@ final class RPMHelper
 
             try
             {
-                signer.sign( mojo.getRPMFile() );
+                signer.sign( rpm );
             }
             catch ( Exception e )
             {
@@ -181,20 +353,158 @@ final class RPMHelper
     }
 
     /**
-     * Evaluates the <i>macro</i> by executing <code>rpm --eval %<i>macro</i></code>.
+     * Evaluates the <i>macro</i> by executing <code>rpm --eval %{<i>macro</i>}</code>, the same form the macros
+     * {@link #evaluateMacros(Collection) evaluated together} take.
      *
      * @param macro The macro to evaluate.
      * @return The result of rpm --eval.
      * @throws MojoExecutionException
      * @since 2.1-alpha-1
      */
-    public String evaluateMacro( String macro )
+    public String evaluateMacro( final String macro )
+        throws MojoExecutionException
+    {
+        return evaluateShared( macro, new SessionMacros.Evaluator()
+        {
+            public Map<String, String> evaluate( List<String> macros )
+                throws MojoExecutionException
+            {
+                return Collections.singletonMap( macro, queryMacro( macro ) );
+            }
+        } );
+    }
+
+    /**
+     * Evaluates all <i>macros</i> with a single execution of <code>rpm --eval</code>. The macros are joined into one
+     * expression, separated by a delimiter which is used to split the output again.
+     *
+     * @param macros The macros to evaluate, as found between <i>%{</i> and <i>}</i>.
+     * @return The results of rpm --eval, keyed by macro.
+     * @throws MojoExecutionException if rpm cannot be executed or its output cannot be split
+     * @since 2.3.1
+     */
+    public Map<String, String> evaluateMacros( Collection<String> macros )
+        throws MojoExecutionException
+    {
+        return mojo.getSessionMacros().evaluate( macros, cached( new SessionMacros.Evaluator()
+        {
+            public Map<String, String> evaluate( List<String> uncached )
+                throws MojoExecutionException
+            {
+                return queryMacros( uncached );
+            }
+        } ) );
+    }
+
+    /**
+     * Gets the architecure for system by executing <i>rpm -E %{_arch}</i>.
+     */
+    public String getArch()
+        throws MojoExecutionException
+    {
+        return evaluateShared( "_arch", new SessionMacros.Evaluator()
+        {
+            public Map<String, String> evaluate( List<String> macros )
+                throws MojoExecutionException
+            {
+                return Collections.singletonMap( "_arch", queryArch() );
+            }
+        } );
+    }
+
+    /**
+     * Looks up <i>macro</i> in the {@link AbstractRPMMojo#getSessionMacros() macros of the session}, using
+     * <i>evaluator</i> if it has not been evaluated yet.
+     */
+    private String evaluateShared( String macro, SessionMacros.Evaluator evaluator )
+        throws MojoExecutionException
+    {
+        return mojo.getSessionMacros().evaluate( Collections.singletonList( macro ), cached( evaluator ) ).get( macro );
+    }
+
+    /**
+     * Wraps <i>evaluator</i> to look up the macros in the {@link AbstractRPMMojo#getMacroCache() macro cache} first
+     * and to store what it evaluates, if there is a cache.
+     */
+    private SessionMacros.Evaluator cached( final SessionMacros.Evaluator evaluator )
+    {
+        final MacroCache cache = mojo.getMacroCache();
+        if ( cache == null )
+        {
+            return evaluator;
+        }
+
+        return new SessionMacros.Evaluator()
+        {
+            public Map<String, String> evaluate( List<String> macros )
+                throws MojoExecutionException
+            {
+                final Map<String, String> results = new LinkedHashMap<String, String>();
+                final List<String> uncached = new ArrayList<String>();
+                for ( String macro : macros )
+                {
+                    final String value = cache.get( macro );
+                    if ( value != null )
+                    {
+                        results.put( macro, value );
+                    }
+                    else
+                    {
+                        uncached.add( macro );
+                    }
+                }
+
+                if ( !uncached.isEmpty() )
+                {
+                    final Map<String, String> evaluated = evaluator.evaluate( uncached );
+                    cache.putAll( evaluated );
+                    results.putAll( evaluated );
+                }
+                return results;
+            }
+        };
+    }
+
+    private String queryHostVendor()
+        throws MojoExecutionException
+    {
+        final Log log = mojo.getLog();
+
+        final Commandline cl = new Commandline();
+        cl.setExecutable( "rpm" );
+        cl.addArguments( new String[] { "-E", "%{_host_vendor}" } );
+
+        final StringStreamConsumer stdout = new StringStreamConsumer();
+        final StreamConsumer stderr = new LogStreamConsumer( LogStreamConsumer.INFO, log );
+        try
+        {
+            if ( log.isDebugEnabled() )
+            {
+                log.debug( "About to execute \'" + cl.toString() + "\'" );
+            }
+
+            int result = CommandLineUtils.executeCommandLine( cl, stdout, stderr );
+            if ( result != 0 )
+            {
+                throw new MojoExecutionException( "RPM query for default vendor returned: \'" + result
+                    + "\' executing \'" + cl.toString() + "\'" );
+            }
+        }
+        catch ( CommandLineException e )
+        {
+            throw new MojoExecutionException( "Unable to query for default vendor from RPM", e );
+        }
+
+        return stdout.getOutput().trim();
+    }
+
+    private String queryMacro( String macro )
         throws MojoExecutionException
     {
         final Commandline cl = new Commandline();
         cl.setExecutable( "rpm" );
         cl.createArg().setValue( "--eval" );
-        cl.createArg().setValue( '%' + macro );
+        cl.createArg().setValue( "%{" + macro + '}' );
 
         final Log log = mojo.getLog();
 
@@ -222,10 +532,108 @@ final class RPMHelper
         return stdout.getOutput().trim();
     }
 
+    private Map<String, String> queryMacros( List<String> uncached )
+        throws MojoExecutionException
+    {
+        final StringBuilder expression = new StringBuilder();
+        for ( String macro : uncached )
+        {
+            if ( expression.length() > 0 )
+            {
+                expression.append( MACRO_DELIMITER );
+            }
+            expression.append( "%{" ).append( macro ).append( '}' );
+        }
+
+        final Commandline cl = new Commandline();
+        cl.setExecutable( "rpm" );
+        cl.createArg().setValue( "--eval" );
+        cl.createArg().setValue( expression.toString() );
+
+        final Log log = mojo.getLog();
+
+        final StringStreamConsumer stdout = new StringStreamConsumer();
+        final StreamConsumer stderr = new LogStreamConsumer( LogStreamConsumer.INFO, log );
+        try
+        {
+            if ( log.isDebugEnabled() )
+            {
+                log.debug( "About to execute \'" + cl.toString() + "\'" );
+            }
+
+            int result = CommandLineUtils.executeCommandLine( cl, stdout, stderr );
+            if ( result != 0 )
+            {
+                throw new MojoExecutionException( "rpm --eval returned: \'" + result + "\' executing \'"
+                    + cl.toString() + "\'" );
+            }
+        }
+        catch ( CommandLineException e )
+        {
+            throw new MojoExecutionException( "Unable to evaluate macros: " + uncached, e );
+        }
+
+        final String[] values = stdout.getOutput().trim().split( Pattern.quote( MACRO_DELIMITER ), -1 );
+        if ( values.length != uncached.size() )
+        {
+            throw new MojoExecutionException( "rpm --eval returned " + values.length + " values for "
+                + uncached.size() + " macros" );
+        }
+
+        final Map<String, String> evaluated = new LinkedHashMap<String, String>();
+        int i = 0;
+        for ( String macro : uncached )
+        {
+            evaluated.put( macro, values[i++].trim() );
+        }
+        return evaluated;
+    }
+
     /**
-     * Gets the architecure for system by executing <i>rpm -E %{_arch}</i>.
+     * Gets the version of rpm by executing <i>rpm --version</i>.
+     *
+     * @return The output, e.g. <code>RPM version 4.18.1</code>.
+     * @throws MojoExecutionException if rpm cannot be executed
      */
-    public String getArch()
+    String getRpmVersion()
+        throws MojoExecutionException
+    {
+        return evaluateShared( RPM_VERSION, new SessionMacros.Evaluator()
+        {
+            public Map<String, String> evaluate( List<String> macros )
+                throws MojoExecutionException
+            {
+                return Collections.singletonMap( RPM_VERSION, queryRpmVersion() );
+            }
+        } );
+    }
+
+    private String queryRpmVersion()
+        throws MojoExecutionException
+    {
+        final Commandline cl = new Commandline();
+        cl.setExecutable( "rpm" );
+        cl.createArg().setValue( "--version" );
+
+        final StringStreamConsumer stdout = new StringStreamConsumer();
+        final StreamConsumer stderr = new LogStreamConsumer( LogStreamConsumer.INFO, mojo.getLog() );
+        try
+        {
+            final int result = CommandLineUtils.executeCommandLine( cl, stdout, stderr );
+            if ( result != 0 )
+            {
+                throw new MojoExecutionException( "rpm --version returned: \'" + result + "\' executing \'"
+                    + cl.toString() + "\'" );
+            }
+        }
+        catch ( CommandLineException e )
+        {
+            throw new MojoExecutionException( "Unable to determine the version of rpm", e );
+        }
+        return stdout.getOutput().trim();
+    }
+
+    private String queryArch()
         throws MojoExecutionException
     {
         final Commandline cl = new Commandline();
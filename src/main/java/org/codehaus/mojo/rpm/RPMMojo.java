@@ -20,6 +20,7 @@ package org.codehaus.mojo.rpm;
  */
 
 import java.io.File;
+import java.util.Map;
 
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
@@ -52,4 +53,21 @@ public class RPMMojo
             getLog().debug( "RPM not added as an artifact because project's packaging type is not 'rpm'" );
         }
     }
+
+    /**
+     * If the {@link org.apache.maven.project.MavenProject#getPackaging() packaging} is <i>rpm</i>, sets the package of
+     * the first architecture as the primary artifact instead of attaching it with its architecture as classifier.
+     */
+    protected void afterExecution( Map<String, File> packages )
+    {
+        if ( "rpm".equals( project.getPackaging() ) )
+        {
+            final File primaryArtifact = packages.values().iterator().next();
+            if ( getLog().isDebugEnabled() )
+            {
+                getLog().debug( "Adding RPM as primary artifact: " + primaryArtifact.getAbsolutePath() );
+            }
+            project.getArtifact().setFile( primaryArtifact );
+        }
+    }
 }
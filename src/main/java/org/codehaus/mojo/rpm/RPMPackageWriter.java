@@ -0,0 +1,899 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Writes a binary rpm directly from the content of the {@link AbstractRPMMojo#getBuildroot() build root}, without
+ * generating a spec file or executing rpmbuild.
+ * <p>
+ * The package consists of the lead, the signature header, the main header and a gzip compressed cpio payload. Only
+ * what can be expressed without rpmbuild is supported: {@link #checkSupported()} rejects the configuration elements
+ * which need a shell during the build (prepare, install and clean scriptlets), triggers, sub packages and icons.
+ * Automatic dependencies are not determined.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class RPMPackageWriter
+{
+    private static final byte[] LEAD_MAGIC = { (byte) 0xed, (byte) 0xab, (byte) 0xee, (byte) 0xdb };
+
+    private static final int LEAD_NAME_LENGTH = 66;
+
+    /**
+     * The gzip level without a {@link AbstractRPMMojo#getPayloadCompression() compression profile}.
+     */
+    private static final int DEFAULT_GZIP_LEVEL = 9;
+
+    private static final short SIGNATURE_TYPE_HEADER = 5;
+
+    private static final String DEFAULT_INTERPRETER = "/bin/sh";
+
+    private final AbstractRPMMojo mojo;
+
+    private final Log log;
+
+    /**
+     * @param mojo The mojo to write the package for.
+     */
+    RPMPackageWriter( AbstractRPMMojo mojo )
+    {
+        this.mojo = mojo;
+        this.log = mojo.getLog();
+    }
+
+    /**
+     * Verifies that the configuration of the mojo can be packaged without rpmbuild.
+     *
+     * @throws MojoFailureException if the configuration requires rpmbuild.
+     */
+    void checkSupported()
+        throws MojoFailureException
+    {
+        if ( !"-bb".equals( mojo.getRpmbuildStage() ) )
+        {
+            fail( "rpmbuildStage " + mojo.getRpmbuildStage() );
+        }
+        if ( mojo.getPrepareScriptlet() != null )
+        {
+            fail( "prepareScriptlet" );
+        }
+        if ( mojo.getInstallScriptlet() != null )
+        {
+            fail( "installScriptlet" );
+        }
+        if ( mojo.getCleanScriptlet() != null )
+        {
+            fail( "cleanScriptlet" );
+        }
+        if ( mojo.getTriggers() != null && !mojo.getTriggers().isEmpty() )
+        {
+            fail( "triggers" );
+        }
+        if ( mojo.getIcon() != null )
+        {
+            fail( "icon" );
+        }
+        if ( !mojo.getSubpackages().isEmpty() )
+        {
+            fail( "subpackages" );
+        }
+
+        final Scriptlet[] scriptlets =
+            { mojo.getPreinstallScriptlet(), mojo.getPostinstallScriptlet(), mojo.getPreremoveScriptlet(),
+                mojo.getPostremoveScriptlet(), mojo.getVerifyScriptlet(), mojo.getPretransScriptlet(),
+                mojo.getPosttransScriptlet() };
+        for ( Scriptlet scriptlet : scriptlets )
+        {
+            if ( scriptlet != null && scriptlet.getSubpackage() != null )
+            {
+                fail( "scriptlet subpackage " + scriptlet.getSubpackage() );
+            }
+        }
+
+        if ( mojo.isAutoProvides() || mojo.isAutoRequires() )
+        {
+            log.debug( "automatic provides and requires are not determined by the java packaging engine" );
+        }
+    }
+
+    private static void fail( String element )
+        throws MojoFailureException
+    {
+        throw new MojoFailureException( element + " is not supported by the java packaging engine, use rpmbuild" );
+    }
+
+    /**
+     * Writes the package to {@link AbstractRPMMojo#getRPMFile()}.
+     *
+     * @throws MojoExecutionException if the package cannot be written.
+     */
+    void writePackage()
+        throws MojoExecutionException
+    {
+        final Collection<PackageFile> fileList =
+            new FileListHelper( mojo ).listFiles( new LinkHelper( mojo ).resolveLinks() );
+        final PackageFile[] files = fileList.toArray( new PackageFile[fileList.size()] );
+
+        final File rpm = mojo.getRPMFile();
+        final File payload = new File( new File( mojo.getWorkarea(), "BUILD" ), mojo.getName() + ".payload" );
+
+        log.info( "Writing " + rpm.getAbsolutePath() + " (" + files.length + " files)" );
+
+        try
+        {
+            final String[] fileDigests = new String[files.length];
+            final MessageDigest payloadDigest = newDigest( "SHA-256" );
+            final PayloadCompression.Profile profile = mojo.getPayloadCompression();
+            final int level = profile != null ? profile.getGzipLevel() : DEFAULT_GZIP_LEVEL;
+            final long start = System.currentTimeMillis();
+            final long archiveSize = writePayload( files, fileDigests, payload, payloadDigest, level );
+            if ( profile != null )
+            {
+                PayloadCompression.logResult( log, PayloadCompression.describe( "gzip", level, 1 ), archiveSize,
+                                              payload.length(), System.currentTimeMillis() - start );
+            }
+
+            final byte[] header =
+                buildHeader( files, fileDigests, hex( payloadDigest.digest() ), level ).toByteArray();
+
+            final File dir = rpm.getParentFile();
+            if ( !dir.isDirectory() && !dir.mkdirs() )
+            {
+                throw new MojoExecutionException( "Unable to create directory " + dir.getAbsolutePath() );
+            }
+
+            final long size = header.length + payload.length();
+            final byte[] lead = buildLead();
+
+            // the md5 covers header and payload, so the signature is first written with a placeholder of equal size
+            final byte[] placeholder = buildSignature( header, size, archiveSize, new byte[16] );
+
+            final MessageDigest md5 = newDigest( "MD5" );
+            md5.update( header );
+
+            final OutputStream out = new BufferedOutputStream( new FileOutputStream( rpm ), 64 * 1024 );
+            try
+            {
+                out.write( lead );
+                out.write( placeholder );
+                out.write( header );
+
+                final InputStream in = new DigestInputStream( new FileInputStream( payload ), md5 );
+                try
+                {
+                    final byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ( ( read = in.read( buffer ) ) != -1 )
+                    {
+                        out.write( buffer, 0, read );
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            final byte[] signature = buildSignature( header, size, archiveSize, md5.digest() );
+
+            final RandomAccessFile file = new RandomAccessFile( rpm, "rw" );
+            try
+            {
+                file.seek( lead.length );
+                file.write( signature );
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write " + rpm.getAbsolutePath() + ": " + e.getMessage(), e );
+        }
+        finally
+        {
+            payload.delete();
+        }
+    }
+
+    /**
+     * Writes the gzip compressed cpio payload.
+     *
+     * @param files The files to write.
+     * @param fileDigests Receives the sha256 of each regular file.
+     * @param payload The file to write the payload to.
+     * @param payloadDigest Is updated with the compressed payload.
+     * @param level The gzip level.
+     * @return The size of the uncompressed archive.
+     * @throws IOException if the payload cannot be written.
+     */
+    private static long writePayload( PackageFile[] files, String[] fileDigests, File payload,
+                                      MessageDigest payloadDigest, final int level )
+        throws IOException
+    {
+        final MessageDigest fileDigest = newDigest( "SHA-256" );
+
+        final OutputStream out =
+            new GZIPOutputStream( new DigestOutputStream( new FileOutputStream( payload ), payloadDigest ), 64 * 1024 )
+            {
+                {
+                    def.setLevel( level );
+                }
+            };
+        try
+        {
+            final CpioWriter cpio = new CpioWriter( out );
+
+            for ( int i = 0; i < files.length; ++i )
+            {
+                final PackageFile file = files[i];
+                final String name = '.' + file.getPath();
+
+                if ( file.isRegularFile() )
+                {
+                    cpio.writeHeader( name, i + 1, file.getMode(), 1, file.getMtime(), file.getSize() );
+
+                    fileDigest.reset();
+                    final InputStream in = new DigestInputStream( new FileInputStream( file.getSource() ), fileDigest );
+                    try
+                    {
+                        cpio.writeContent( in, file.getSize() );
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                    fileDigests[i] = hex( fileDigest.digest() );
+                }
+                else if ( file.isLink() )
+                {
+                    final byte[] target = file.getLinkTarget().getBytes( StandardCharsets.UTF_8 );
+                    cpio.writeHeader( name, i + 1, file.getMode(), 1, file.getMtime(), target.length );
+                    cpio.writeContent( target );
+                    fileDigests[i] = "";
+                }
+                else
+                {
+                    cpio.writeHeader( name, i + 1, file.getMode(), 2, file.getMtime(), 0 );
+                    fileDigests[i] = "";
+                }
+            }
+
+            cpio.finish();
+            return cpio.getWritten();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private byte[] buildLead()
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 96 );
+        final DataOutputStream lead = new DataOutputStream( bytes );
+        lead.write( LEAD_MAGIC );
+        lead.writeByte( 3 );
+        lead.writeByte( 0 );
+        lead.writeShort( 0 ); // binary package
+        lead.writeShort( 1 ); // the arch number is not used by rpm anymore
+
+        final byte[] name = getNEVR( false ).getBytes( StandardCharsets.UTF_8 );
+        lead.write( name, 0, Math.min( name.length, LEAD_NAME_LENGTH - 1 ) );
+        for ( int i = Math.min( name.length, LEAD_NAME_LENGTH - 1 ); i < LEAD_NAME_LENGTH; ++i )
+        {
+            lead.writeByte( 0 );
+        }
+
+        lead.writeShort( 1 ); // linux
+        lead.writeShort( SIGNATURE_TYPE_HEADER );
+        lead.write( new byte[16] );
+        lead.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] buildSignature( byte[] header, long size, long archiveSize, byte[] md5 )
+        throws IOException
+    {
+        final RPMHeader signature = new RPMHeader( RPMTag.HEADER_SIGNATURES );
+        signature.addString( RPMTag.SIG_SHA1, hex( newDigest( "SHA-1" ).digest( header ) ) );
+        signature.addString( RPMTag.SIG_SHA256, hex( newDigest( "SHA-256" ).digest( header ) ) );
+        signature.addSize( RPMTag.SIG_SIZE, RPMTag.SIG_LONGSIZE, size );
+        signature.addBinary( RPMTag.SIG_MD5, md5 );
+        signature.addSize( RPMTag.SIG_PAYLOADSIZE, RPMTag.SIG_LONGARCHIVESIZE, archiveSize );
+
+        // the signature is padded to a multiple of 8 bytes
+        final byte[] bytes = signature.toByteArray();
+        return Arrays.copyOf( bytes, ( bytes.length + 7 ) & ~7 );
+    }
+
+    private RPMHeader buildHeader( PackageFile[] files, String[] fileDigests, String payloadDigest, int level )
+        throws MojoExecutionException
+    {
+        final RPMHeader header = new RPMHeader( RPMTag.HEADER_IMMUTABLE );
+
+        header.addStringArray( RPMTag.HEADER_I18NTABLE, Collections.singletonList( "C" ) );
+
+        header.addString( RPMTag.NAME, mojo.getName() );
+        header.addString( RPMTag.VERSION, mojo.getVersion() );
+        header.addString( RPMTag.RELEASE, mojo.getRelease() );
+        if ( mojo.getEpoch() != null )
+        {
+            header.addInt32( RPMTag.EPOCH, parseInt( "epoch", mojo.getEpoch() ) );
+        }
+
+        addI18NString( header, RPMTag.SUMMARY, mojo.getSummary() );
+        addI18NString( header, RPMTag.DESCRIPTION, mojo.getDescription() );
+        header.addInt32( RPMTag.BUILDTIME, (int) ( mojo.getBuildTimestamp().getTime() / 1000 ) );
+        header.addString( RPMTag.BUILDHOST,
+                          mojo.getReproducibleTimestamp() != null ? "reproducible" : getBuildHost() );
+
+        long installSize = 0;
+        for ( PackageFile file : files )
+        {
+            installSize += file.getSize();
+        }
+        header.addSize( RPMTag.SIZE, RPMTag.LONGSIZE, installSize );
+
+        addString( header, RPMTag.DISTRIBUTION, mojo.getDistribution() );
+        addString( header, RPMTag.VENDOR, mojo.getVendor() );
+        addString( header, RPMTag.LICENSE, mojo.getLicense() );
+        addString( header, RPMTag.PACKAGER, mojo.getPackager() );
+        addI18NString( header, RPMTag.GROUP, mojo.getGroup() != null ? mojo.getGroup() : "Unspecified" );
+        addString( header, RPMTag.URL, mojo.getUrl() );
+        header.addString( RPMTag.OS, mojo.getTargetOS().toLowerCase( Locale.ENGLISH ) );
+        header.addString( RPMTag.ARCH, mojo.getTargetArch() );
+
+        final Dependencies requires = new Dependencies();
+
+        addScript( header, requires, mojo.getPreinstallScriptlet(), RPMTag.PREIN, RPMTag.PREINPROG,
+                   RPMTag.SENSE_SCRIPT_PRE );
+        addScript( header, requires, mojo.getPostinstallScriptlet(), RPMTag.POSTIN, RPMTag.POSTINPROG,
+                   RPMTag.SENSE_SCRIPT_POST );
+        addScript( header, requires, mojo.getPreremoveScriptlet(), RPMTag.PREUN, RPMTag.PREUNPROG,
+                   RPMTag.SENSE_SCRIPT_PREUN );
+        addScript( header, requires, mojo.getPostremoveScriptlet(), RPMTag.POSTUN, RPMTag.POSTUNPROG,
+                   RPMTag.SENSE_SCRIPT_POSTUN );
+        addScript( header, null, mojo.getVerifyScriptlet(), RPMTag.VERIFYSCRIPT, RPMTag.VERIFYSCRIPTPROG, 0 );
+        addScript( header, null, mojo.getPretransScriptlet(), RPMTag.PRETRANS, RPMTag.PRETRANSPROG, 0 );
+        addScript( header, null, mojo.getPosttransScriptlet(), RPMTag.POSTTRANS, RPMTag.POSTTRANSPROG, 0 );
+
+        if ( files.length > 0 )
+        {
+            addFiles( header, files, fileDigests );
+        }
+
+        header.addString( RPMTag.SOURCERPM, getNEVR( false ) + ".src.rpm" );
+
+        final Dependencies provides = new Dependencies();
+        provides.addAll( mojo.getProvides(), 0 );
+        provides.add( mojo.getName(), RPMTag.SENSE_EQUAL, getNEVR( true ) );
+        provides.addTo( header, RPMTag.PROVIDENAME, RPMTag.PROVIDEFLAGS, RPMTag.PROVIDEVERSION );
+
+        requires.addAll( mojo.getRequires(), 0 );
+        requires.addAll( mojo.getRequiresPre(), RPMTag.SENSE_SCRIPT_PRE );
+        requires.addAll( mojo.getRequiresPost(), RPMTag.SENSE_SCRIPT_POST );
+        requires.addAll( mojo.getRequiresPreun(), RPMTag.SENSE_SCRIPT_PREUN );
+        requires.addAll( mojo.getPrereqs(), RPMTag.SENSE_PREREQ );
+        final int rpmlib = RPMTag.SENSE_RPMLIB | RPMTag.SENSE_LESS | RPMTag.SENSE_EQUAL;
+        requires.add( "rpmlib(CompressedFileNames)", rpmlib, "3.0.4-1" );
+        requires.add( "rpmlib(PayloadFilesHavePrefix)", rpmlib, "4.0-1" );
+        if ( files.length > 0 )
+        {
+            requires.add( "rpmlib(FileDigests)", rpmlib, "4.6.0-1" );
+        }
+        requires.addTo( header, RPMTag.REQUIRENAME, RPMTag.REQUIREFLAGS, RPMTag.REQUIREVERSION );
+
+        final Dependencies conflicts = new Dependencies();
+        conflicts.addAll( mojo.getConflicts(), 0 );
+        conflicts.addTo( header, RPMTag.CONFLICTNAME, RPMTag.CONFLICTFLAGS, RPMTag.CONFLICTVERSION );
+
+        final Dependencies obsoletes = new Dependencies();
+        obsoletes.addAll( mojo.getObsoletes(), 0 );
+        obsoletes.addTo( header, RPMTag.OBSOLETENAME, RPMTag.OBSOLETEFLAGS, RPMTag.OBSOLETEVERSION );
+
+        addChangelog( header );
+
+        if ( mojo.getPrefixes() != null && !mojo.getPrefixes().isEmpty() )
+        {
+            final List<String> prefixes = new ArrayList<String>();
+            for ( String prefix : mojo.getPrefixes() )
+            {
+                prefixes.add( expandMacros( prefix ) );
+            }
+            header.addStringArray( RPMTag.PREFIXES, prefixes );
+        }
+
+        header.addString( RPMTag.PAYLOADFORMAT, "cpio" );
+        header.addString( RPMTag.PAYLOADCOMPRESSOR, "gzip" );
+        header.addString( RPMTag.PAYLOADFLAGS, String.valueOf( level ) );
+        header.addString( RPMTag.PLATFORM, mojo.getTargetArch() + '-' + mojo.getTargetVendor() + '-'
+            + mojo.getTargetOS().toLowerCase( Locale.ENGLISH ) );
+        header.addInt32( RPMTag.FILEDIGESTALGO, RPMTag.DIGEST_ALGO_SHA256 );
+        header.addString( RPMTag.ENCODING, "utf-8" );
+        header.addStringArray( RPMTag.PAYLOADDIGEST, Collections.singletonList( payloadDigest ) );
+        header.addInt32( RPMTag.PAYLOADDIGESTALGO, RPMTag.DIGEST_ALGO_SHA256 );
+
+        return header;
+    }
+
+    private static void addFiles( RPMHeader header, PackageFile[] files, String[] fileDigests )
+    {
+        final int count = files.length;
+        final int[] sizes = new int[count];
+        final short[] modes = new short[count];
+        final short[] rdevs = new short[count];
+        final int[] mtimes = new int[count];
+        final int[] flags = new int[count];
+        final int[] verifyFlags = new int[count];
+        final int[] devices = new int[count];
+        final int[] inodes = new int[count];
+        final int[] dirIndexes = new int[count];
+        final List<String> linkTos = new ArrayList<String>( count );
+        final List<String> usernames = new ArrayList<String>( count );
+        final List<String> groupnames = new ArrayList<String>( count );
+        final List<String> langs = new ArrayList<String>( count );
+        final List<String> basenames = new ArrayList<String>( count );
+        final Map<String, Integer> dirnames = new LinkedHashMap<String, Integer>();
+
+        for ( int i = 0; i < count; ++i )
+        {
+            final PackageFile file = files[i];
+            sizes[i] = (int) file.getSize();
+            modes[i] = (short) file.getMode();
+            mtimes[i] = (int) file.getMtime();
+            flags[i] = file.getFlags();
+            verifyFlags[i] = -1;
+            devices[i] = 1;
+            inodes[i] = i + 1;
+            linkTos.add( file.isLink() ? file.getLinkTarget() : "" );
+            usernames.add( file.getUsername() );
+            groupnames.add( file.getGroupname() );
+            langs.add( "" );
+
+            final String path = file.getPath();
+            final int slash = path.lastIndexOf( '/' );
+            final String dirname = path.substring( 0, slash + 1 );
+            Integer dirIndex = dirnames.get( dirname );
+            if ( dirIndex == null )
+            {
+                dirIndex = dirnames.size();
+                dirnames.put( dirname, dirIndex );
+            }
+            dirIndexes[i] = dirIndex;
+            basenames.add( path.substring( slash + 1 ) );
+        }
+
+        header.addInt32( RPMTag.FILESIZES, sizes );
+        header.addInt16( RPMTag.FILEMODES, modes );
+        header.addInt16( RPMTag.FILERDEVS, rdevs );
+        header.addInt32( RPMTag.FILEMTIMES, mtimes );
+        header.addStringArray( RPMTag.FILEDIGESTS, Arrays.asList( fileDigests ) );
+        header.addStringArray( RPMTag.FILELINKTOS, linkTos );
+        header.addInt32( RPMTag.FILEFLAGS, flags );
+        header.addStringArray( RPMTag.FILEUSERNAME, usernames );
+        header.addStringArray( RPMTag.FILEGROUPNAME, groupnames );
+        header.addInt32( RPMTag.FILEVERIFYFLAGS, verifyFlags );
+        header.addInt32( RPMTag.FILEDEVICES, devices );
+        header.addInt32( RPMTag.FILEINODES, inodes );
+        header.addStringArray( RPMTag.FILELANGS, langs );
+        header.addInt32( RPMTag.DIRINDEXES, dirIndexes );
+        header.addStringArray( RPMTag.BASENAMES, basenames );
+        header.addStringArray( RPMTag.DIRNAMES, new ArrayList<String>( dirnames.keySet() ) );
+    }
+
+    /**
+     * Adds the script and interpreter of <i>scriptlet</i>, if present.
+     *
+     * @param requires The dependencies to add the interpreter to, or {@code null} if rpm does not track it.
+     */
+    private void addScript( RPMHeader header, Dependencies requires, Scriptlet scriptlet, int scriptTag, int progTag,
+                            int sense )
+        throws MojoExecutionException
+    {
+        if ( scriptlet == null )
+        {
+            return;
+        }
+
+        final File scriptFile = scriptlet.getScriptFile();
+        if ( scriptFile != null && !scriptFile.exists() )
+        {
+            throw new MojoExecutionException( "Invalid scriptlet declaration found - defined scriptFile does not exist: "
+                + scriptFile.getPath() );
+        }
+
+        if ( scriptlet.getScript() == null && scriptFile == null && scriptlet.getProgram() == null )
+        {
+            return;
+        }
+
+        if ( scriptlet.getScript() != null || scriptFile != null )
+        {
+            final StringWriter content = new StringWriter();
+            final PrintWriter writer = new UnixPrintWriter( content );
+            try
+            {
+                scriptlet.writeContent( writer, mojo.getFilterWrappers() );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to read scriptlet " + scriptlet + ": " + e.getMessage(), e );
+            }
+            writer.flush();
+            header.addString( scriptTag, expandMacros( content.toString() ) );
+        }
+
+        final String program = scriptlet.getProgram() != null ? scriptlet.getProgram() : DEFAULT_INTERPRETER;
+        header.addString( progTag, program );
+
+        // built-in interpreters (e.g. <lua>) are not packages
+        if ( requires != null && !program.startsWith( "<" ) )
+        {
+            requires.add( program.split( "\\s+" )[0], RPMTag.SENSE_INTERP | sense, "" );
+        }
+    }
+
+    /**
+     * Adds the entries of the changelog, which uses the same format as the <i>%changelog</i> section of a spec file.
+     */
+    private void addChangelog( RPMHeader header )
+        throws MojoExecutionException
+    {
+        final String changelog = mojo.getChangelog();
+        if ( changelog == null || changelog.trim().length() == 0 )
+        {
+            return;
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat( "EEE MMM d yyyy", Locale.ENGLISH );
+        format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+        format.setLenient( false );
+
+        final List<Integer> times = new ArrayList<Integer>();
+        final List<String> names = new ArrayList<String>();
+        final List<String> texts = new ArrayList<String>();
+
+        StringBuilder text = null;
+        for ( String line : changelog.split( "\r?\n" ) )
+        {
+            if ( line.startsWith( "*" ) )
+            {
+                if ( text != null )
+                {
+                    texts.add( text.toString().trim() );
+                }
+                text = new StringBuilder();
+
+                final String[] parts = line.substring( 1 ).trim().split( "\\s+", 5 );
+                if ( parts.length < 5 )
+                {
+                    throw new MojoExecutionException( "Invalid changelog entry: " + line );
+                }
+                try
+                {
+                    final long time = format.parse( parts[0] + ' ' + parts[1] + ' ' + parts[2] + ' ' + parts[3] )
+                        .getTime();
+                    // rpmbuild uses noon of the given day
+                    times.add( (int) ( time / 1000 ) + 12 * 60 * 60 );
+                }
+                catch ( ParseException e )
+                {
+                    throw new MojoExecutionException( "Invalid date in changelog entry: " + line, e );
+                }
+                names.add( parts[4] );
+            }
+            else if ( text != null )
+            {
+                text.append( line ).append( '\n' );
+            }
+            else if ( line.trim().length() > 0 )
+            {
+                throw new MojoExecutionException( "Changelog must start with an entry line: " + line );
+            }
+        }
+        texts.add( text.toString().trim() );
+
+        final int[] timeValues = new int[times.size()];
+        for ( int i = 0; i < timeValues.length; ++i )
+        {
+            timeValues[i] = times.get( i );
+        }
+        header.addInt32( RPMTag.CHANGELOGTIME, timeValues );
+        header.addStringArray( RPMTag.CHANGELOGNAME, names );
+        header.addStringArray( RPMTag.CHANGELOGTEXT, texts );
+    }
+
+    /**
+     * @param withEpoch Indicates if the epoch is included.
+     * @return <i>name-[epoch:]version-release</i> if <i>withEpoch</i>, otherwise <i>name-version-release</i>.
+     */
+    private String getNEVR( boolean withEpoch )
+    {
+        if ( withEpoch )
+        {
+            return ( mojo.getEpoch() != null ? mojo.getEpoch() + ':' : "" ) + mojo.getVersion() + '-'
+                + mojo.getRelease();
+        }
+        return mojo.getName() + '-' + mojo.getVersion() + '-' + mojo.getRelease();
+    }
+
+    /**
+     * Expands the macros in <i>value</i> the way rpmbuild expands them in the spec file: <code>%%</code> becomes
+     * <code>%</code> and each <code>%{<i>macro</i>}</code> is replaced by its
+     * {@link AbstractRPMMojo#evaluateMacro(String) value}, including the macros of the preamble (<i>name</i>,
+     * <i>version</i>, <i>release</i> and <i>epoch</i>).
+     *
+     * @param value The value to expand.
+     * @return The expanded value.
+     * @throws MojoExecutionException if a macro cannot be evaluated or stays unresolved
+     */
+    private String expandMacros( String value )
+        throws MojoExecutionException
+    {
+        final StringBuilder expanded = new StringBuilder( value.length() );
+        int i = 0;
+        while ( i < value.length() )
+        {
+            final char c = value.charAt( i );
+            if ( c != '%' || i + 1 == value.length() )
+            {
+                expanded.append( c );
+                ++i;
+                continue;
+            }
+
+            final char next = value.charAt( i + 1 );
+            if ( next == '%' )
+            {
+                expanded.append( '%' );
+                i += 2;
+                continue;
+            }
+            final int end = next == '{' ? value.indexOf( '}', i + 2 ) : -1;
+            if ( end < 0 )
+            {
+                expanded.append( c );
+                ++i;
+                continue;
+            }
+
+            final String macro = value.substring( i + 2, end );
+            final String evaluated = mojo.evaluateMacro( macro );
+            if ( evaluated.equals( "%{" + macro + '}' ) || evaluated.equals( '%' + macro ) )
+            {
+                throw new MojoExecutionException( "Unresolved macro %{" + macro + "} in: " + value );
+            }
+            expanded.append( evaluated );
+            i = end + 1;
+        }
+        return expanded.toString();
+    }
+
+    private void addString( RPMHeader header, int tag, String value )
+        throws MojoExecutionException
+    {
+        if ( value != null )
+        {
+            header.addString( tag, expandMacros( value ) );
+        }
+    }
+
+    private void addI18NString( RPMHeader header, int tag, String value )
+        throws MojoExecutionException
+    {
+        if ( value != null )
+        {
+            header.addI18NString( tag, expandMacros( value ) );
+        }
+    }
+
+    private static String getBuildHost()
+    {
+        try
+        {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch ( UnknownHostException e )
+        {
+            return "localhost";
+        }
+    }
+
+    private static int parseInt( String name, String value )
+        throws MojoExecutionException
+    {
+        try
+        {
+            return Integer.parseInt( value.trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new MojoExecutionException( "Invalid " + name + ": " + value, e );
+        }
+    }
+
+    private static MessageDigest newDigest( String algorithm )
+    {
+        try
+        {
+            return MessageDigest.getInstance( algorithm );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            // every java platform is required to support MD5, SHA-1 and SHA-256
+            throw new IllegalStateException( e );
+        }
+    }
+
+    static String hex( byte[] bytes )
+    {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] chars = new char[bytes.length * 2];
+        for ( int i = 0; i < bytes.length; ++i )
+        {
+            chars[i * 2] = digits[( bytes[i] >> 4 ) & 0xf];
+            chars[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String( chars );
+    }
+
+    /**
+     * A list of dependencies, parsed from the same notation used in spec files (<i>name [op version]</i>, multiple
+     * dependencies separated by whitespace or commas).
+     */
+    private final class Dependencies
+    {
+        private final List<String> names = new ArrayList<String>();
+
+        private final List<Integer> flags = new ArrayList<Integer>();
+
+        private final List<String> versions = new ArrayList<String>();
+
+        void add( String name, int sense, String version )
+        {
+            names.add( name );
+            flags.add( sense );
+            versions.add( version );
+        }
+
+        void addAll( Collection<String> dependencies, int sense )
+            throws MojoExecutionException
+        {
+            if ( dependencies == null )
+            {
+                return;
+            }
+
+            for ( String dependency : dependencies )
+            {
+                final String[] tokens = expandMacros( dependency ).trim().split( "[\\s,]+" );
+                for ( int i = 0; i < tokens.length; ++i )
+                {
+                    if ( tokens[i].length() == 0 )
+                    {
+                        continue;
+                    }
+
+                    final int operator = i + 2 < tokens.length ? parseOperator( tokens[i + 1] ) : -1;
+                    if ( operator != -1 )
+                    {
+                        add( tokens[i], sense | operator, tokens[i + 2] );
+                        i += 2;
+                    }
+                    else if ( parseOperator( tokens[i] ) != -1 )
+                    {
+                        throw new MojoExecutionException( "Invalid dependency: " + dependency );
+                    }
+                    else
+                    {
+                        add( tokens[i], sense, "" );
+                    }
+                }
+            }
+        }
+
+        void addTo( RPMHeader header, int nameTag, int flagsTag, int versionTag )
+        {
+            if ( names.isEmpty() )
+            {
+                return;
+            }
+
+            final int[] flagValues = new int[flags.size()];
+            for ( int i = 0; i < flagValues.length; ++i )
+            {
+                flagValues[i] = flags.get( i );
+            }
+
+            header.addStringArray( nameTag, names );
+            header.addInt32( flagsTag, flagValues );
+            header.addStringArray( versionTag, versions );
+        }
+
+        private int parseOperator( String token )
+        {
+            if ( "<".equals( token ) )
+            {
+                return RPMTag.SENSE_LESS;
+            }
+            if ( "<=".equals( token ) )
+            {
+                return RPMTag.SENSE_LESS | RPMTag.SENSE_EQUAL;
+            }
+            if ( "=".equals( token ) || "==".equals( token ) )
+            {
+                return RPMTag.SENSE_EQUAL;
+            }
+            if ( ">=".equals( token ) )
+            {
+                return RPMTag.SENSE_GREATER | RPMTag.SENSE_EQUAL;
+            }
+            if ( ">".equals( token ) )
+            {
+                return RPMTag.SENSE_GREATER;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * A {@link StreamConsumer} for the output of rpmbuild which does not log every line. It keeps the last lines in a ring
+ * buffer, the warnings and errors and the packages written, so a successful build only logs a summary and a failed one
+ * the end of the output. The whole output can be written to a file as well.
+ * <p>
+ * The consumer is shared by the threads reading stdout and stderr.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class RingBufferStreamConsumer
+    implements StreamConsumer
+{
+    private static final Pattern WARNING = Pattern.compile( "^\\s*warning:.*", Pattern.CASE_INSENSITIVE );
+
+    private static final Pattern ERROR =
+        Pattern.compile( "^\\s*error:.*|.*Bad exit status.*", Pattern.CASE_INSENSITIVE );
+
+    /**
+     * Starts the list of errors rpmbuild repeats at the end of a failed build, each on an indented line.
+     */
+    private static final String BUILD_ERRORS = "RPM build errors:";
+
+    private static final String WROTE = "Wrote: ";
+
+    private final Log log;
+
+    private final String[] tail;
+
+    private final File file;
+
+    private final Writer writer;
+
+    private final List<String> warnings = new ArrayList<String>();
+
+    private final List<String> errors = new ArrayList<String>();
+
+    private final List<String> written = new ArrayList<String>();
+
+    private long lines;
+
+    private int warningCount;
+
+    private int errorCount;
+
+    private boolean buildErrors;
+
+    private IOException writeError;
+
+    private boolean closed;
+
+    /**
+     * @param log The log, every line is logged at debug level if it is enabled.
+     * @param size The number of lines to keep, also the maximum number of warnings and of errors kept.
+     * @param file The file to write the whole output to, {@code null} to keep only the last lines.
+     * @throws IOException if <i>file</i> cannot be created
+     */
+    RingBufferStreamConsumer( Log log, int size, File file )
+        throws IOException
+    {
+        this.log = log;
+        this.tail = new String[Math.max( size, 1 )];
+        this.file = file;
+        this.writer = file != null ? Files.newBufferedWriter( file.toPath(), Charset.defaultCharset() ) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void consumeLine( String line )
+    {
+        if ( log.isDebugEnabled() )
+        {
+            log.debug( line );
+        }
+
+        tail[(int) ( lines++ % tail.length )] = line;
+
+        if ( line.startsWith( BUILD_ERRORS ) )
+        {
+            buildErrors = true;
+        }
+        else if ( buildErrors && line.length() > 0 && Character.isWhitespace( line.charAt( 0 ) ) )
+        {
+            // the errors are repeated, they have been counted already
+            addError( line.trim() );
+        }
+        else if ( ERROR.matcher( line ).matches() )
+        {
+            errorCount++;
+            addError( line );
+        }
+        else if ( WARNING.matcher( line ).matches() )
+        {
+            if ( ++warningCount <= tail.length )
+            {
+                warnings.add( line );
+            }
+        }
+        else if ( line.startsWith( WROTE ) )
+        {
+            written.add( line.substring( WROTE.length() ) );
+        }
+
+        if ( writer != null && writeError == null )
+        {
+            try
+            {
+                writer.write( line );
+                writer.write( '\n' );
+            }
+            catch ( IOException e )
+            {
+                writeError = e;
+            }
+        }
+    }
+
+    private void addError( String line )
+    {
+        if ( errors.size() < tail.length && !errors.contains( line ) )
+        {
+            errors.add( line );
+        }
+    }
+
+    /**
+     * Closes the file the output is written to, if any.
+     */
+    synchronized void close()
+    {
+        if ( closed )
+        {
+            return;
+        }
+        closed = true;
+        if ( writer != null )
+        {
+            try
+            {
+                writer.close();
+            }
+            catch ( IOException e )
+            {
+                if ( writeError == null )
+                {
+                    writeError = e;
+                }
+            }
+        }
+        if ( writeError != null )
+        {
+            log.warn( "Unable to write the output of rpmbuild to " + file.getAbsolutePath() + ": "
+                + writeError.getMessage() );
+        }
+    }
+
+    /**
+     * Logs the summary of a successful build: the number of lines, the warnings and the packages written.
+     */
+    synchronized void logSummary()
+    {
+        for ( String warning : warnings )
+        {
+            log.warn( warning );
+        }
+        for ( String error : errors )
+        {
+            log.warn( error );
+        }
+        for ( String rpm : written )
+        {
+            log.info( "Wrote: " + rpm );
+        }
+        log.info( "rpmbuild printed " + lines + " lines with " + warningCount + " warnings and " + errorCount
+            + " errors" + ( file != null ? ", see " + file.getAbsolutePath() : "" ) );
+    }
+
+    /**
+     * Logs the output of a failed build: the whole output if it has been written to a file, otherwise the last lines
+     * and the errors before them.
+     */
+    synchronized void logOutput()
+    {
+        if ( file != null && writeError == null )
+        {
+            try
+            {
+                final BufferedReader reader = Files.newBufferedReader( file.toPath(), Charset.defaultCharset() );
+                try
+                {
+                    for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+                    {
+                        log.error( line );
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+                return;
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Unable to read " + file.getAbsolutePath() + ": " + e.getMessage() );
+            }
+        }
+
+        final long first = Math.max( 0, lines - tail.length );
+        if ( first > 0 )
+        {
+            for ( String error : errors )
+            {
+                log.error( error );
+            }
+            log.error( "... " + first + " lines of output omitted ..." );
+        }
+        for ( long i = first; i < lines; ++i )
+        {
+            log.error( tail[(int) ( i % tail.length )] );
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.RepositorySystemSession;
+
+/**
+ * The values determined by executing rpm (the host architecture and vendor and any evaluated macros), shared by all
+ * executions of the plugin in one {@link MavenSession}. The values do not depend on the module, so each distinct macro
+ * is evaluated once per build, no matter how many modules are packaged.
+ * <p>
+ * Concurrent requests for the same macro (e.g. from modules built in parallel) are coalesced: the first request
+ * evaluates the macro and the others wait for its result. A failed evaluation is not remembered: the waiting requests
+ * (and any later one) evaluate the macro again themselves, so that each reports its own failure instead of the one of
+ * another module, whose batch may have failed for a macro they do not even use.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class SessionMacros
+{
+    /**
+     * Evaluates macros which are not known yet.
+     */
+    interface Evaluator
+    {
+        /**
+         * @param macros The macros to evaluate.
+         * @return The values, keyed by macro. Must contain every macro of <i>macros</i>.
+         * @throws MojoExecutionException if the macros cannot be evaluated
+         */
+        Map<String, String> evaluate( List<String> macros )
+            throws MojoExecutionException;
+    }
+
+    /**
+     * The key of the instance in the {@link RepositorySystemSession#getData() session data}. It includes the name of
+     * the class, as other versions of the plugin in the same build have other classes.
+     */
+    private static final String SESSION_KEY = SessionMacros.class.getName();
+
+    private final ConcurrentMap<String, CompletableFuture<String>> values =
+        new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    /**
+     * @param session The current session, may be {@code null}.
+     * @return The instance shared by the <i>session</i>, a new instance if there is no session.
+     */
+    static SessionMacros get( MavenSession session )
+    {
+        final RepositorySystemSession repositorySession = session == null ? null : session.getRepositorySession();
+        if ( repositorySession == null )
+        {
+            return new SessionMacros();
+        }
+
+        while ( true )
+        {
+            final Object shared = repositorySession.getData().get( SESSION_KEY );
+            if ( shared instanceof SessionMacros )
+            {
+                return (SessionMacros) shared;
+            }
+            if ( shared != null )
+            {
+                // stored by another version of the plugin
+                return new SessionMacros();
+            }
+
+            final SessionMacros created = new SessionMacros();
+            if ( repositorySession.getData().set( SESSION_KEY, null, created ) )
+            {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Determines the values of <i>macros</i>. Macros which have not been requested before are passed to
+     * <i>evaluator</i> together, macros which are being evaluated by another thread are waited for.
+     *
+     * @param macros The macros to evaluate.
+     * @param evaluator Evaluates the macros which are not known yet.
+     * @return The values, keyed by macro, in the order of <i>macros</i>.
+     * @throws MojoExecutionException if <i>evaluator</i> fails to evaluate any of the macros
+     */
+    Map<String, String> evaluate( Collection<String> macros, Evaluator evaluator )
+        throws MojoExecutionException
+    {
+        final Map<String, CompletableFuture<String>> futures =
+            new LinkedHashMap<String, CompletableFuture<String>>();
+        final Map<String, CompletableFuture<String>> owned = new LinkedHashMap<String, CompletableFuture<String>>();
+        for ( String macro : macros )
+        {
+            if ( futures.containsKey( macro ) )
+            {
+                continue;
+            }
+
+            final CompletableFuture<String> created = new CompletableFuture<String>();
+            final CompletableFuture<String> existing = values.putIfAbsent( macro, created );
+            if ( existing == null )
+            {
+                owned.put( macro, created );
+                futures.put( macro, created );
+            }
+            else
+            {
+                futures.put( macro, existing );
+            }
+        }
+
+        if ( !owned.isEmpty() )
+        {
+            complete( owned, evaluator );
+        }
+
+        final Map<String, String> results = new LinkedHashMap<String, String>();
+        final List<String> failed = new ArrayList<String>();
+        for ( Map.Entry<String, CompletableFuture<String>> entry : futures.entrySet() )
+        {
+            final String value = await( entry.getValue() );
+            if ( value == null )
+            {
+                failed.add( entry.getKey() );
+            }
+            // a placeholder for a failed macro, which keeps the order
+            results.put( entry.getKey(), value );
+        }
+
+        if ( !failed.isEmpty() )
+        {
+            // the other thread failed to evaluate these, try again with the evaluator of this request
+            results.putAll( evaluate( failed, evaluator ) );
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates the <i>owned</i> macros and completes their futures.
+     */
+    private void complete( Map<String, CompletableFuture<String>> owned, Evaluator evaluator )
+        throws MojoExecutionException
+    {
+        final Map<String, String> evaluated;
+        try
+        {
+            evaluated = evaluator.evaluate( new ArrayList<String>( owned.keySet() ) );
+        }
+        catch ( MojoExecutionException e )
+        {
+            release( owned );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            release( owned );
+            throw e;
+        }
+
+        for ( String macro : owned.keySet() )
+        {
+            if ( evaluated.get( macro ) == null )
+            {
+                release( owned );
+                throw new MojoExecutionException( "No value for macro " + macro );
+            }
+        }
+        for ( Map.Entry<String, CompletableFuture<String>> entry : owned.entrySet() )
+        {
+            entry.getValue().complete( evaluated.get( entry.getKey() ) );
+        }
+    }
+
+    /**
+     * Forgets the <i>owned</i> macros and completes their futures without a value, which tells the threads waiting
+     * for them to evaluate the macros themselves.
+     */
+    private void release( Map<String, CompletableFuture<String>> owned )
+    {
+        for ( Map.Entry<String, CompletableFuture<String>> entry : owned.entrySet() )
+        {
+            values.remove( entry.getKey(), entry.getValue() );
+            entry.getValue().complete( null );
+        }
+    }
+
+    private static String await( CompletableFuture<String> future )
+        throws MojoExecutionException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException( "Interrupted while waiting for a macro to be evaluated", e );
+        }
+        catch ( ExecutionException e )
+        {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) cause;
+            }
+            throw new MojoExecutionException( cause.getMessage(), cause );
+        }
+    }
+}
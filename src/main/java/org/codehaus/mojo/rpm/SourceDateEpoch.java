@@ -0,0 +1,171 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.MojoFailureException;
+
+/**
+ * The timestamp of a reproducible build, following the
+ * <a href="https://reproducible-builds.org/specs/source-date-epoch/">SOURCE_DATE_EPOCH</a> specification: it replaces
+ * the time of the build and no file of the package may be newer.
+ *
+ * @since 2.3.1
+ */
+final class SourceDateEpoch
+{
+    /**
+     * The environment variable holding the timestamp in seconds since the epoch.
+     */
+    static final String VARIABLE = "SOURCE_DATE_EPOCH";
+
+    private SourceDateEpoch()
+    {
+    }
+
+    /**
+     * Determines the timestamp from the {@value #VARIABLE} environment variable or, if it is not set, from
+     * <i>outputTimestamp</i>.
+     *
+     * @param outputTimestamp The value of <code>project.build.outputTimestamp</code>: seconds since the epoch or an
+     *            ISO 8601 date and time with offset, e.g. <code>2023-01-01T00:00:00Z</code>. A single character
+     *            counts as not set, the same as for the Maven plugins.
+     * @return The timestamp.
+     * @throws MojoFailureException if neither is set or the value is invalid
+     */
+    static Date resolve( String outputTimestamp )
+        throws MojoFailureException
+    {
+        final String epoch = System.getenv( VARIABLE );
+        if ( epoch != null && epoch.trim().length() > 0 )
+        {
+            try
+            {
+                return new Date( Long.parseLong( epoch.trim() ) * 1000 );
+            }
+            catch ( NumberFormatException e )
+            {
+                throw new MojoFailureException( "Invalid " + VARIABLE + ": " + epoch );
+            }
+        }
+
+        if ( outputTimestamp == null || outputTimestamp.trim().length() < 2 )
+        {
+            throw new MojoFailureException( "A reproducible build requires the " + VARIABLE
+                + " environment variable or the project.build.outputTimestamp property" );
+        }
+
+        final String value = outputTimestamp.trim();
+        try
+        {
+            if ( value.matches( "\\d+" ) )
+            {
+                return new Date( Long.parseLong( value ) * 1000 );
+            }
+            return new Date( OffsetDateTime.parse( value ).toInstant().toEpochMilli() );
+        }
+        catch ( DateTimeParseException e )
+        {
+            throw new MojoFailureException( "Invalid project.build.outputTimestamp: " + value );
+        }
+    }
+
+    /**
+     * Sets the modification time of everything below <i>directory</i> which is newer than <i>timestamp</i> to
+     * <i>timestamp</i>. Soft links and files with more than one hard link (which may be a source outside of the build
+     * root) are left alone.
+     *
+     * @param directory The directory to clamp the content of.
+     * @param timestamp The timestamp.
+     * @param manifest The manifest to record the new modification times in, may be {@code null}.
+     * @return The number of files and directories changed.
+     * @throws IOException if the modification time of a file cannot be read or changed
+     */
+    static int clamp( File directory, Date timestamp, final StagingManifest manifest )
+        throws IOException
+    {
+        final FileTime time = FileTime.fromMillis( timestamp.getTime() );
+        final AtomicInteger clamped = new AtomicInteger();
+        Files.walkFileTree( directory.toPath(), new SimpleFileVisitor<Path>()
+        {
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+                throws IOException
+            {
+                if ( attrs.isRegularFile() && attrs.lastModifiedTime().compareTo( time ) > 0
+                    && getLinkCount( file ) <= 1 )
+                {
+                    Files.setLastModifiedTime( file, time );
+                    clamped.incrementAndGet();
+                    if ( manifest != null )
+                    {
+                        manifest.updateStagedLastModified( file.toFile() );
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult postVisitDirectory( Path dir, IOException e )
+                throws IOException
+            {
+                if ( e != null )
+                {
+                    throw e;
+                }
+                // the content has been changed before, which does not change the directory again
+                if ( Files.getLastModifiedTime( dir ).compareTo( time ) > 0 )
+                {
+                    Files.setLastModifiedTime( dir, time );
+                    clamped.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+        return clamped.get();
+    }
+
+    private static int getLinkCount( Path file )
+        throws IOException
+    {
+        try
+        {
+            return ( (Number) Files.getAttribute( file, "unix:nlink" ) ).intValue();
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            return 1;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return 1;
+        }
+    }
+}
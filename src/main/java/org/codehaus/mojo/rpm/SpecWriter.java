@@ -21,14 +21,13 @@ package org.codehaus.mojo.rpm;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
-import org.codehaus.plexus.util.DirectoryScanner;
-import org.codehaus.plexus.util.StringUtils;
 
 /**
  * Utility to write spec file based on {@link AbstractRPMMojo} instance.
@@ -42,6 +41,11 @@ final class SpecWriter
 
     private final PrintWriter spec;
 
+    /**
+     * Reused to assemble the lines of the <i>%files</i> directive.
+     */
+    private char[] line = new char[256];
+
     /**
      * Creates instance with the <i>mojo</i> to use and the <i>spec</i> to write to.
      *
@@ -122,9 +126,20 @@ final class SpecWriter
             spec.println( mojo.getDescription() );
         }
 
-        if ( !mojo.getMappings().isEmpty() )
+        for ( Subpackage subpackage : mojo.getSubpackages() )
         {
-            writeMove();
+            writeSubpackage( subpackage );
+        }
+
+        final boolean copy = !mojo.getMappings().isEmpty() && !mojo.getBuildroot().equals( mojo.getRPMBuildroot() );
+        if ( copy || !mojo.getLinkTargetToSources().isEmpty() || mojo.getInstallScriptlet() != null )
+        {
+            spec.println();
+            spec.println( "%install" );
+            if ( copy )
+            {
+                writeCopy();
+            }
         }
 
         writeLinks();
@@ -157,17 +172,68 @@ final class SpecWriter
     }
 
     /**
-     * Writes the %files directive based on {@link AbstractRPMMojo#mappings}.
+     * Writes the <i>%package</i> and <i>%description</i> sections of a sub-package. The summary, group and description
+     * default to those of the package.
+     *
+     * @param subpackage The sub-package.
+     */
+    private void writeSubpackage( Subpackage subpackage )
+    {
+        spec.println();
+        spec.println( "%package " + subpackage.getName() );
+        final String summary = subpackage.getSummary() != null ? subpackage.getSummary() : mojo.getSummary();
+        writeNonNullDirective( "Summary", summary );
+        writeNonNullDirective( "Group", subpackage.getGroup() != null ? subpackage.getGroup() : mojo.getGroup() );
+        writeList( subpackage.getProvides(), "Provides: " );
+        writeList( subpackage.getRequires(), "Requires: " );
+        writeList( subpackage.getObsoletes(), "Obsoletes: " );
+        writeList( subpackage.getConflicts(), "Conflicts: " );
+        spec.println();
+        spec.println( "%description " + subpackage.getName() );
+        spec.println( subpackage.getDescription() != null ? subpackage.getDescription() : summary );
+    }
+
+    /**
+     * Writes the %files directives of the package and of each sub-package.
      */
     private void writeFiles()
+    {
+        // anything added by the install scriptlet would become part of a collapsed directory
+        final FileListCollapser collapser =
+            mojo.isCollapseDirectories() && mojo.getInstallScriptlet() == null && mojo.getStagedFileIndex().isComplete()
+                ? new FileListCollapser( mojo.getStagedFileIndex(), mojo.getMappings() ) : null;
+
+        int collapsed = writeFiles( "%files", mojo.getPackageMappings(), collapser );
+        for ( Subpackage subpackage : mojo.getSubpackages() )
+        {
+            collapsed += writeFiles( "%files " + subpackage.getName(), subpackage.getMappings(), collapser );
+        }
+
+        if ( collapser != null )
+        {
+            mojo.getLog().info( "Collapsed " + collapsed + " entries of the %files section" );
+        }
+    }
+
+    /**
+     * Writes a %files directive based on <i>mappings</i>.
+     *
+     * @param directive The directive, with the name of the sub-package if any.
+     * @param mappings The mappings of the package.
+     * @param collapser The collapser of the paths, {@code null} to list them all.
+     * @return The number of paths collapsed.
+     */
+    private int writeFiles( String directive, List<Mapping> mappings, FileListCollapser collapser )
     {
         final Log log = mojo.getLog();
 
         spec.println();
-        spec.println( "%files" );
+        spec.println( directive );
         spec.println( getDefAttrString() );
 
-        for ( Mapping map : mojo.getMappings() )
+        int collapsed = 0;
+
+        for ( Mapping map : mappings )
         {
             // For each mapping we need to determine which files in the destination were defined by this
             // mapping so that we can write the %attr statement correctly.
@@ -177,9 +243,9 @@ final class SpecWriter
 
             final String attrString =
                 map.getAttrString( mojo.getDefaultFilemode(), mojo.getDefaultDirmode(), mojo.getDefaultGroupname(), mojo.getDefaultUsername() );
-            final String baseFileString = assembleBaseString( destination, attrString );
+            final char[] baseFileString = assembleBaseString( destination, attrString );
             String dirAttrString = map.getDerivedDirAttrString( mojo.getDefaultDirmode(), mojo.getDefaultGroupname(), mojo.getDefaultUsername() );
-            final String baseDirString = assembleBaseString( destination, dirAttrString );
+            final char[] baseDirString = assembleBaseString( destination, dirAttrString );
 
             if ( map.hasSoftLinks() && !absoluteDestination.exists() )
             {
@@ -191,7 +257,7 @@ final class SpecWriter
                 continue;
             }
 
-            final List<String> links = map.getLinkedFileNamesRelativeToDestination();
+            final List<String> links = inOrder( map.getLinkedFileNamesRelativeToDestination() );
 
             if ( map.isSoftLinkOnly() )
             {
@@ -199,8 +265,7 @@ final class SpecWriter
                 log.debug( "writing attribute string for softlink only source" );
                 for ( String link : links )
                 {
-                    spec.print( baseFileString );
-                    spec.println( link + "\"" );
+                    writeFileLine( baseFileString, link );
                 }
                 continue;
             }
@@ -230,14 +295,11 @@ final class SpecWriter
             final List<String> includes = map.getCopiedFileNamesRelativeToDestination();
 
             log.debug( "scanning: " + absoluteDestination );
-            final DirectoryScanner scanner = new DirectoryScanner();
-            scanner.setBasedir( absoluteDestination );
 
             // the linked files are not present yet (will be "installed" during rpm build)
             // so they cannot be "included"
-            scanner.setIncludes( includes.isEmpty() ? null : includes.toArray( new String[includes.size()] ) );
-            scanner.setExcludes( null );
-            scanner.scan();
+            final StagedFileIndex.Scan scanner =
+                mojo.getStagedFileIndex().scan( absoluteDestination, includes, null );
 
             final boolean noFiles = map.getSources() == null || map.getSources().isEmpty()
                     || (scanner.isEverythingIncluded() && links.isEmpty());
@@ -250,15 +312,43 @@ final class SpecWriter
             {
                 log.debug( "writing attribute string for identified files in directory: " + destination );
 
+                final boolean listFiles = !map.isDirectoryIncluded() || !noFiles;
+
                 // Emit directories first, then files
-                if ( map.isRecurseDirectories() )
+                if ( collapser != null )
                 {
-                    final String[] dirs = scanner.getIncludedDirectories();
+                    final boolean sameAttributes =
+                        !map.isDirOnly() && dirAttrString.replace( "%dir ", "" ).equals( attrString );
+                    final FileListCollapser.Listing listing =
+                        collapser.collapse( absoluteDestination, scanner, map.isRecurseDirectories(),
+                                            map.isDirectoryIncluded(), listFiles, sameAttributes );
+
+                    for ( String dir : inOrder( listing.getDirectories() ) )
+                    {
+                        writeFileLine( baseDirString, dir );
+                    }
+                    for ( String tree : inOrder( listing.getTrees() ) )
+                    {
+                        writeFileLine( baseFileString, tree );
+                    }
+                    for ( String glob : inOrder( listing.getGlobs() ) )
+                    {
+                        writeFileLine( baseFileString, glob.length() == 0 ? "*" : glob + "/*" );
+                    }
+                    for ( String file : inOrder( listing.getFiles() ) )
+                    {
+                        writeFileLine( baseFileString, file );
+                    }
+                    collapsed += listing.getCollapsed();
+                }
+                else if ( map.isRecurseDirectories() )
+                {
+                    final List<String> dirs = inOrder( scanner.getIncludedDirectories() );
 
                     if ( map.isDirectoryIncluded() )
                     {
                         // write out destination first (%dir already included in baseDirString)
-                        spec.println( baseDirString + "\"" );
+                        writeFileLine( baseDirString, "" );
                     }
 
                     for ( String dir : dirs )
@@ -267,213 +357,119 @@ final class SpecWriter
                         if ( dir.length() > 0 )
                         {
                             // %dir already included in baseDirString
-                            spec.print( baseDirString );
-                            spec.println( StringUtils.replace(dir, "\\", FileHelper.UNIX_FILE_SEPARATOR) + "\"" );
+                            writeFileLine( baseDirString, dir );
                         }
                     }
                 }
 
                 // only list files if requested (directoryIncluded == false) or we have to
-                if ( !map.isDirectoryIncluded() || !noFiles )
+                if ( collapser == null && listFiles )
                 {
-                    final String[] files = scanner.getIncludedFiles();
+                    final List<String> files = inOrder( scanner.getIncludedFiles() );
 
                     for ( String file : files )
                     {
-                        spec.print( baseFileString );
-                        spec.println( StringUtils.replace( file, "\\", FileHelper.UNIX_FILE_SEPARATOR) + "\"" );
+                        writeFileLine( baseFileString, file );
                     }
                 }
 
                 // since the linked files are not present in directory (yet), the scanner will not find them
                 for ( String link : links )
                 {
-                    spec.print( baseFileString );
-                    spec.println( link + "\"" );
+                    writeFileLine( baseFileString, link );
                 }
             }
         }
-    }
 
-    private String assembleBaseString(String destination, String dirAttrString) {
-        return dirAttrString + "  \"" + destination + FileHelper.UNIX_FILE_SEPARATOR;
+        return collapsed;
     }
 
     /**
-     * Writes the beginning of the <i>%install</i> which includes moving all files from the
-     * {@link AbstractRPMMojo#getBuildroot()} to {@link AbstractRPMMojo#getRPMBuildroot()}.
+     * Sorts the paths of a mapping for a reproducible build, so the spec file does not depend on the order the file
+     * system lists directories in.
+     *
+     * @param paths The paths.
+     * @return The paths, sorted if the build is reproducible.
      */
-    private void writeMove()
+    private List<String> inOrder( List<String> paths )
     {
-        final String tmpBuildRoot = FileHelper.toUnixPath( mojo.getBuildroot() );
-        spec.println();
-        spec.println( "%install" );
-        spec.println();
-        spec.println( "if [ -d $RPM_BUILD_ROOT ];" );
-        spec.println( "then" );
-        spec.print( "  mv " );
-        spec.print( tmpBuildRoot );
-        spec.println( "/* $RPM_BUILD_ROOT" );
-        spec.println( "else" );
-        spec.print( "  mv " );
-        spec.print( tmpBuildRoot );
-        spec.println( " $RPM_BUILD_ROOT" );
-        spec.println( "fi" );
+        if ( mojo.getReproducibleTimestamp() == null || paths.size() < 2 )
+        {
+            return paths;
+        }
+        final List<String> sorted = new ArrayList<String>( paths );
+        Collections.sort( sorted, FileListHelper.PATH_ORDER );
+        return sorted;
+    }
+
+    private char[] assembleBaseString(String destination, String dirAttrString) {
+        return ( dirAttrString + "  \"" + destination + FileHelper.UNIX_FILE_SEPARATOR ).toCharArray();
     }
 
     /**
-     * Writes the install commands to link files.
+     * Writes a line of the <i>%files</i> directive, consisting of <i>base</i> (the attributes and the destination of
+     * the mapping), <i>path</i> with backslashes replaced by slashes and the closing quote. The line is assembled in
+     * {@link #line} so that it is passed to the writer at once, without intermediate strings.
+     *
+     * @param base The start of the line, as created by {@link #assembleBaseString(String, String)}.
+     * @param path The path relative to the destination of the mapping.
      */
-    private void writeLinks()
+    private void writeFileLine( char[] base, String path )
     {
-        if ( !mojo.getLinkTargetToSources().isEmpty() )
+        final int pathLength = path.length();
+        final int length = base.length + pathLength + 2;
+        if ( line.length < length )
         {
-            spec.println();
+            line = new char[Math.max( length, line.length * 2 )];
+        }
 
-            for ( Map.Entry<String, List<SoftlinkSource>> directoryToSourcesEntry : mojo.getLinkTargetToSources().entrySet() )
+        System.arraycopy( base, 0, line, 0, base.length );
+        path.getChars( 0, pathLength, line, base.length );
+        final int end = base.length + pathLength;
+        for ( int i = base.length; i < end; ++i )
+        {
+            if ( line[i] == '\\' )
             {
-                String directory = directoryToSourcesEntry.getKey();
-                if ( directory.startsWith( "/" ) )
-                {
-                    directory = directory.substring( 1 );
-                }
-                if ( directory.endsWith( "/" ) )
-                {
-                    directory = directory.substring( 0, directory.length() - 1 );
-                }
-
-                final List<SoftlinkSource> sources = directoryToSourcesEntry.getValue();
-                final int sourceCnt = sources.size();
-
-                if ( sourceCnt == 1 )
-                {
-                    final SoftlinkSource linkSource = sources.get( 0 );
-
-                    final String macroEvaluatedLocation = linkSource.getMacroEvaluatedLocation();
-
-                    final File buildSourceLocation;
-                    if ( macroEvaluatedLocation.startsWith( "/" ) )
-                    {
-                        buildSourceLocation = new File( mojo.getBuildroot(), macroEvaluatedLocation );
-                    }
-                    else
-                    {
-                        buildSourceLocation = new File( mojo.getBuildroot(), directory + '/' + macroEvaluatedLocation );
-                    }
-
-                    if ( buildSourceLocation.isDirectory() )
-                    {
-                        final DirectoryScanner scanner = scanLinkSource( linkSource, buildSourceLocation );
-
-                        if ( scanner.isEverythingIncluded() )
-                        {
-                            final File destinationFile = linkSource.getSourceMapping().getAbsoluteDestination();
-                            destinationFile.delete();
-
-                            spec.print( "ln -s " );
-                            spec.print( linkSource.getLocation() );
-                            spec.print( " $RPM_BUILD_ROOT/" );
-                            spec.print( directory );
-
-                            final String dest = linkSource.getDestination();
-                            if ( dest != null )
-                            {
-                                spec.print( '/' );
-                                spec.print( dest );
-                                linkSource.getSourceMapping().addLinkedFileNameRelativeToDestination( dest );
-                            }
-
-                            spec.println();
-                        }
-                        else
-                        {
-                            linkScannedFiles( directory, linkSource, scanner );
-                        }
-                    }
-                    else
-                    {
-                        linkSingleFile( directory, linkSource );
-                    }
-                }
-                else
-                {
-                    for ( SoftlinkSource linkSource : sources )
-                    {
-                        final String sourceLocation = linkSource.getMacroEvaluatedLocation();
-                        final File buildSourceLocation;
-                        if ( sourceLocation.startsWith( "/" ) )
-                        {
-                            buildSourceLocation = new File( mojo.getBuildroot(), sourceLocation );
-                        }
-                        else
-                        {
-                            buildSourceLocation = new File( mojo.getBuildroot(), directory + '/' + sourceLocation );
-                        }
-
-                        if ( buildSourceLocation.isDirectory() )
-                        {
-                            final DirectoryScanner scanner = scanLinkSource( linkSource, buildSourceLocation );
-
-                            linkScannedFiles( directory, linkSource, scanner );
-                        }
-                        else
-                        {
-                            linkSingleFile( directory, linkSource );
-                        }
-                    }
-                }
+                line[i] = '/';
             }
         }
+        line[end] = '"';
+        line[end + 1] = '\n';
+        spec.write( line, 0, length );
     }
 
     /**
-     * Writes soft link from <i>linkSource</i> to <i>directory</i> for all files in the <i>scanner</i>.
-     *
-     * @param directory Directory to link to.
-     * @param linkSource Source to link from. {@link SoftlinkSource#getLocation()} must be a {@link File#isDirectory()
-     *            directory}.
-     * @param scanner Scanner used to scan the {@link SoftlinkSource#getLocation() linSource location}.
+     * Writes the beginning of the <i>%install</i> which copies all files from the
+     * {@link AbstractRPMMojo#getBuildroot()} to {@link AbstractRPMMojo#getRPMBuildroot()}. This is only needed when
+     * staging is {@link AbstractRPMMojo#getStagingManifest() incremental}, so the files are still in place for the
+     * next build. Otherwise the files are staged into the build root of rpmbuild directly.
      */
-    private void linkScannedFiles( String directory, final SoftlinkSource linkSource, final DirectoryScanner scanner )
+    private void writeCopy()
     {
-        final String[] files = scanner.getIncludedFiles();
-        final String sourceLocation = linkSource.getLocation();
-
-        final String targetPrefix = sourceLocation + FileHelper.UNIX_FILE_SEPARATOR;
-        final String sourcePrefix = directory + FileHelper.UNIX_FILE_SEPARATOR;
-
-        for ( String file : files )
-        {
-            spec.print( "ln -s " );
-            spec.print( targetPrefix + file );
-            spec.print( " $RPM_BUILD_ROOT/" );
-            spec.println( sourcePrefix + file );
-
-            linkSource.getSourceMapping().addLinkedFileNameRelativeToDestination( file );
-        }
+        spec.println();
+        spec.println( "mkdir -p $RPM_BUILD_ROOT" );
+        spec.print( "cp -pPR " );
+        spec.print( FileHelper.toUnixPath( mojo.getBuildroot() ) );
+        spec.println( "/. $RPM_BUILD_ROOT" );
     }
 
     /**
-     * {@link DirectoryScanner#scan() Scans} the <i>buildSourceLocation</i> using the
-     * {@link SoftlinkSource#getIncludes()} and {@link SoftlinkSource#getExcludes()} from <i>linkSource</i>. Returns the
-     * {@link DirectoryScanner} used for scanning.
-     *
-     * @param linkSource Source
-     * @param buildSourceLocation Build location where content exists.
-     * @return {@link DirectoryScanner} used for scanning.
+     * Writes the install commands to link files.
      */
-    private static DirectoryScanner scanLinkSource( final SoftlinkSource linkSource, final File buildSourceLocation )
+    private void writeLinks()
     {
-        final DirectoryScanner scanner = new DirectoryScanner();
-        scanner.setBasedir( buildSourceLocation );
-        List<String> includes = linkSource.getIncludes();
-        scanner.setIncludes( ( includes == null || includes.isEmpty() ) ? null
-                        : (String[]) includes.toArray( new String[includes.size()] ) );
-        List<String> excludes = linkSource.getExcludes();
-        scanner.setExcludes( ( excludes == null || excludes.isEmpty() ) ? null
-                        : (String[]) excludes.toArray( new String[excludes.size()] ) );
-        scanner.scan();
-        return scanner;
+        if ( !mojo.getLinkTargetToSources().isEmpty() )
+        {
+            spec.println();
+
+            for ( LinkHelper.Link link : new LinkHelper( mojo ).resolveLinks() )
+            {
+                spec.print( "ln -s " );
+                spec.print( link.getTarget() );
+                spec.print( " $RPM_BUILD_ROOT/" );
+                spec.println( link.getPath() );
+            }
+        }
     }
 
     /**
@@ -536,28 +532,6 @@ final class SpecWriter
         return sb.toString();
     }
 
-    /**
-     * Writes soft link from <i>linkSource</i> to <i>directory</i> using optional
-     * {@link SoftlinkSource#getDestination()} as the name of the link in <i>directory</i> if present.
-     *
-     * @param directory Directory to link to.
-     * @param linkSource Source to link from.
-     */
-    private void linkSingleFile( String directory, final SoftlinkSource linkSource )
-    {
-        spec.print( "ln -s " );
-        spec.print( linkSource.getLocation() );
-        spec.print( " $RPM_BUILD_ROOT/" );
-        spec.print( directory );
-        spec.print( '/' );
-        final String destination = linkSource.getDestination();
-        final String linkedFileName =
-            destination == null ? new File( linkSource.getMacroEvaluatedLocation() ).getName() : destination;
-        spec.println( linkedFileName );
-
-        linkSource.getSourceMapping().addLinkedFileNameRelativeToDestination( linkedFileName );
-    }
-
     /**
      * Writes all the scriptlets to the <i>spec</i>.
      */
@@ -0,0 +1,253 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Remembers the content of the artifacts staged into the {@link AbstractRPMMojo#getBuildroot() build root}, so that
+ * an artifact staged by several mappings is only copied once. Further placements of the same content are hard links to
+ * the first staged copy.
+ * <p>
+ * Content is identified by the sha256 of the source. Sources are only hashed if a staged copy of the same size exists
+ * and it was copied from another source, so a build without duplicates does not hash anything. A staged copy is only
+ * reused if it has the permissions and package attributes (e.g. <i>%attr</i> or <i>%config</i>) the new placement
+ * needs, as rpm installs the placements as hard links as well, and if it is still the same file (device and inode),
+ * so nothing is linked on file systems which do not identify files. As the placements share their content and
+ * modification time, identical content from sources with different modification times gets the modification time of
+ * the first copy.
+ * </p>
+ * <p>
+ * The registry is safe for use by concurrent staging threads. Two threads staging the same content at the same time
+ * may both copy it. Sources are hashed without holding the lock, so staging threads do not wait for each other to read
+ * large files.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class StagedContentRegistry
+{
+    /**
+     * A staged copy.
+     */
+    private static final class Copy
+    {
+        final File source;
+
+        final File staged;
+
+        final int mode;
+
+        final String attributes;
+
+        final Object fileKey;
+
+        Copy( File source, File staged, int mode, String attributes )
+        {
+            this.source = source;
+            this.staged = staged;
+            this.mode = mode;
+            this.attributes = attributes;
+            this.fileKey = getFileKey( staged );
+        }
+
+        /**
+         * @return Indicates if the staged file is still the copy (i.e. it has not been replaced by a later mapping).
+         */
+        boolean isIntact()
+        {
+            return fileKey != null && fileKey.equals( getFileKey( staged ) );
+        }
+    }
+
+    /**
+     * The staged copies, keyed by size.
+     */
+    private final Map<Long, List<Copy>> copies = new HashMap<Long, List<Copy>>();
+
+    /**
+     * The sha256 of the sources hashed so far, keyed by absolute path.
+     */
+    private final ConcurrentMap<String, String> hashes = new ConcurrentHashMap<String, String>();
+
+    private int linked;
+
+    private long bytesSaved;
+
+    /**
+     * Stages <i>source</i> at <i>destination</i> as a hard link to a staged copy of the same content, if there is one.
+     * An existing <i>destination</i> is replaced.
+     *
+     * @param source The file to stage.
+     * @param destination The location in the build root.
+     * @param mode The permissions the staged file needs.
+     * @param attributes The attributes of the file in the package.
+     * @return {@code true} if the link has been created, {@code false} if the file has to be copied.
+     * @throws IOException if the sources cannot be read or an existing <i>destination</i> cannot be replaced
+     */
+    boolean link( File source, File destination, int mode, String attributes )
+        throws IOException
+    {
+        final Copy copy = find( source, mode, attributes );
+        if ( copy == null )
+        {
+            return false;
+        }
+
+        final Path destinationPath = destination.toPath();
+        if ( Files.exists( destinationPath ) && Files.isSameFile( destinationPath, copy.staged.toPath() ) )
+        {
+            // e.g. the same artifact twice in the same mapping
+            return true;
+        }
+
+        Files.createDirectories( destinationPath.getParent() );
+        Files.deleteIfExists( destinationPath );
+        try
+        {
+            Files.createLink( destinationPath, copy.staged.toPath() );
+        }
+        catch ( FileSystemException e )
+        {
+            return false;
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            return false;
+        }
+
+        final long length = copy.staged.length();
+        synchronized ( this )
+        {
+            ++linked;
+            bytesSaved += length;
+        }
+        return true;
+    }
+
+    /**
+     * Records that <i>source</i> has been copied to <i>destination</i>.
+     *
+     * @param source The copied file.
+     * @param destination The location in the build root.
+     * @param mode The permissions of the copy.
+     * @param attributes The attributes of the file in the package.
+     */
+    synchronized void register( File source, File destination, int mode, String attributes )
+    {
+        final Long size = Long.valueOf( source.length() );
+        List<Copy> sameSize = copies.get( size );
+        if ( sameSize == null )
+        {
+            sameSize = new ArrayList<Copy>();
+            copies.put( size, sameSize );
+        }
+        sameSize.add( new Copy( source, destination, mode, attributes ) );
+    }
+
+    /**
+     * Logs how many placements have been linked and how much copying that saved.
+     *
+     * @param log The log to report to.
+     */
+    synchronized void logSummary( Log log )
+    {
+        log.info( "Artifact deduplication: " + linked + " files linked, " + bytesSaved + " bytes saved" );
+    }
+
+    /**
+     * Finds a staged copy with the content of <i>source</i>. The candidates are selected while holding the lock, the
+     * sources are hashed without it so that concurrent staging threads are not serialized by reading large files.
+     */
+    private Copy find( File source, int mode, String attributes )
+        throws IOException
+    {
+        final List<Copy> candidates = new ArrayList<Copy>();
+        synchronized ( this )
+        {
+            final List<Copy> sameSize = copies.get( Long.valueOf( source.length() ) );
+            if ( sameSize == null )
+            {
+                return null;
+            }
+            for ( Copy copy : sameSize )
+            {
+                if ( copy.mode == mode && copy.attributes.equals( attributes ) )
+                {
+                    candidates.add( copy );
+                }
+            }
+        }
+
+        for ( Copy copy : candidates )
+        {
+            if ( !copy.isIntact() )
+            {
+                continue;
+            }
+            if ( copy.source.equals( source ) || hash( copy.source ).equals( hash( source ) ) )
+            {
+                return copy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The identity of the file (e.g. device and inode), {@code null} if it cannot be determined.
+     */
+    private static Object getFileKey( File file )
+    {
+        try
+        {
+            return Files.readAttributes( file.toPath(), BasicFileAttributes.class ).fileKey();
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+    }
+
+    private String hash( File source )
+        throws IOException
+    {
+        final String path = source.getAbsolutePath();
+        String hash = hashes.get( path );
+        if ( hash == null )
+        {
+            hash = FileDigest.hash( source );
+            hashes.putIfAbsent( path, hash );
+        }
+        return hash;
+    }
+}
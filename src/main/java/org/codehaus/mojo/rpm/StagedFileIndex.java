@@ -0,0 +1,491 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.MatchPatterns;
+
+/**
+ * An index of everything staged into the {@link AbstractRPMMojo#getBuildroot() build root}, including the files of the
+ * {@link VirtualBuildroot}. It is built while the mappings are staged, so that the file lists can be determined without
+ * walking the build root again. Anything copied elsewhere (e.g. the icon) is ignored.
+ * <p>
+ * {@link #scan(File, List, List) Scanning} the index gives the same result as a {@link DirectoryScanner}. Names
+ * without wildcards are looked up directly instead of being matched against every path, which keeps scanning linear
+ * in the number of staged files. If a soft link to a directory is staged, the index cannot tell what is below it and
+ * falls back to a {@link DirectoryScanner}.
+ * </p>
+ * <p>
+ * The index is safe for use by concurrent staging threads.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class StagedFileIndex
+{
+    /**
+     * The type of a staged path.
+     */
+    enum Type
+    {
+        FILE, DIRECTORY, SYMLINK
+    }
+
+    /**
+     * A staged path.
+     */
+    static final class Entry
+    {
+        private final Type type;
+
+        private final int mode;
+
+        private final long size;
+
+        Entry( Type type, int mode, long size )
+        {
+            this.type = type;
+            this.mode = mode;
+            this.size = size;
+        }
+
+        /**
+         * @return The type of the path.
+         */
+        Type getType()
+        {
+            return type;
+        }
+
+        /**
+         * @return The permissions, {@code -1} if they are not known (e.g. directories created as parents).
+         */
+        int getMode()
+        {
+            return mode;
+        }
+
+        /**
+         * @return The size of a file, {@code 0} for anything else.
+         */
+        long getSize()
+        {
+            return size;
+        }
+    }
+
+    /**
+     * The result of {@link StagedFileIndex#scan(File, List, List) scanning} a directory. Paths are relative to the
+     * scanned directory and use the platform separator, the same as {@link DirectoryScanner#getIncludedFiles()}.
+     */
+    static final class Scan
+    {
+        private final List<String> includedFiles;
+
+        private final List<String> includedDirectories;
+
+        private final boolean everythingIncluded;
+
+        Scan( List<String> includedFiles, List<String> includedDirectories, boolean everythingIncluded )
+        {
+            this.includedFiles = includedFiles;
+            this.includedDirectories = includedDirectories;
+            this.everythingIncluded = everythingIncluded;
+        }
+
+        /**
+         * @return The included files.
+         */
+        List<String> getIncludedFiles()
+        {
+            return includedFiles;
+        }
+
+        /**
+         * @return The included directories, the scanned directory itself as the empty string.
+         */
+        List<String> getIncludedDirectories()
+        {
+            return includedDirectories;
+        }
+
+        /**
+         * @return Indicates if no file or directory below the scanned directory was left out.
+         */
+        boolean isEverythingIncluded()
+        {
+            return everythingIncluded;
+        }
+    }
+
+    private static final Entry PARENT = new Entry( Type.DIRECTORY, -1, 0 );
+
+    private final String root;
+
+    private final String canonicalRoot;
+
+    private final VirtualBuildroot virtualBuildroot;
+
+    /**
+     * The entries keyed by path relative to the build root, using '/' as separator.
+     */
+    private final SortedMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+    private boolean complete = true;
+
+    /**
+     * @param buildroot The build root the files are staged into.
+     * @param virtualBuildroot The files recorded instead of staged, merged into the result of a
+     *            {@link DirectoryScanner} if the index is not complete. May be {@code null}.
+     */
+    StagedFileIndex( File buildroot, VirtualBuildroot virtualBuildroot )
+    {
+        this.root = buildroot.getAbsolutePath();
+        this.canonicalRoot = getCanonicalPath( buildroot );
+        this.virtualBuildroot = virtualBuildroot;
+    }
+
+    /**
+     * Records a staged (or virtual) file.
+     *
+     * @param destination The location in the build root.
+     * @param mode The permissions of the file, {@code -1} if not known.
+     * @param size The size of the file.
+     */
+    void addFile( File destination, int mode, long size )
+    {
+        put( destination, new Entry( Type.FILE, mode < 0 ? -1 : mode & 07777, size ) );
+    }
+
+    /**
+     * Records a staged directory.
+     *
+     * @param destination The location in the build root.
+     * @param mode The permissions of the directory, {@code -1} if not known.
+     */
+    void addDirectory( File destination, int mode )
+    {
+        put( destination, new Entry( Type.DIRECTORY, mode < 0 ? -1 : mode & 07777, 0 ) );
+    }
+
+    /**
+     * Records a staged soft link.
+     *
+     * @param destination The location in the build root.
+     */
+    void addSymlink( File destination )
+    {
+        put( destination, new Entry( Type.SYMLINK, 0777, 0 ) );
+        if ( destination.isDirectory() )
+        {
+            synchronized ( this )
+            {
+                complete = false;
+            }
+        }
+    }
+
+    /**
+     * Removes a deleted path and everything below it.
+     *
+     * @param destination The location in the build root.
+     */
+    synchronized void remove( File destination )
+    {
+        final String key = toKey( destination );
+        if ( key == null )
+        {
+            return;
+        }
+        entries.remove( key );
+        entries.subMap( key + '/', key + "/￿" ).clear();
+    }
+
+    /**
+     * @param destination The location in the build root.
+     * @return The entry of <i>destination</i>, {@code null} if it has not been staged.
+     */
+    synchronized Entry get( File destination )
+    {
+        final String key = toKey( destination );
+        return key == null ? null : entries.get( key );
+    }
+
+    /**
+     * @return The total size of the staged files.
+     */
+    synchronized long getFileSize()
+    {
+        long size = 0;
+        for ( Entry entry : entries.values() )
+        {
+            size += entry.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return Indicates if the index holds everything below the build root, which it does not once a soft link to a
+     *         directory has been staged.
+     */
+    synchronized boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * Selects the files and directories below <i>basedir</i> the same as a {@link DirectoryScanner} without default
+     * excludes.
+     *
+     * @param basedir The directory in the build root to scan.
+     * @param includes The include patterns, {@code null} or empty to include everything.
+     * @param excludes The exclude patterns, may be {@code null}.
+     * @return The selected files and directories.
+     */
+    Scan scan( File basedir, List<String> includes, List<String> excludes )
+    {
+        final String[] includePatterns =
+            includes == null || includes.isEmpty() ? null : includes.toArray( new String[includes.size()] );
+        final String[] excludePatterns =
+            excludes == null || excludes.isEmpty() ? null : excludes.toArray( new String[excludes.size()] );
+
+        synchronized ( this )
+        {
+            final String base = toKey( basedir );
+            if ( complete && base != null )
+            {
+                return scanIndex( base, new Selector( includePatterns, true ),
+                                  new Selector( excludePatterns, false ) );
+            }
+        }
+        return scanDirectory( basedir, includePatterns, excludePatterns );
+    }
+
+    /**
+     * Matches paths against patterns, looking up names without wildcards directly.
+     */
+    private static final class Selector
+    {
+        private final boolean all;
+
+        private final Set<String> names = new HashSet<String>();
+
+        private final MatchPatterns patterns;
+
+        Selector( String[] sources, boolean matchAll )
+        {
+            this.all = sources == null && matchAll;
+
+            final List<String> wildcards = new ArrayList<String>();
+            if ( sources != null )
+            {
+                for ( String source : sources )
+                {
+                    final String pattern = normalize( source );
+                    if ( pattern.startsWith( "%" ) || pattern.indexOf( '*' ) >= 0 || pattern.indexOf( '?' ) >= 0 )
+                    {
+                        wildcards.add( pattern );
+                    }
+                    else
+                    {
+                        names.add( pattern );
+                    }
+                }
+            }
+            this.patterns =
+                wildcards.isEmpty() ? null : MatchPatterns.from( wildcards.toArray( new String[wildcards.size()] ) );
+        }
+
+        boolean matches( String path )
+        {
+            return all || names.contains( path ) || patterns != null && patterns.matches( path, true );
+        }
+
+        /**
+         * Normalizes <i>pattern</i> the same as {@link DirectoryScanner#setIncludes(String[])}.
+         */
+        private static String normalize( String pattern )
+        {
+            String normalized = pattern.trim();
+            if ( !normalized.startsWith( "%regex[" ) )
+            {
+                normalized = normalized.replace( '/', File.separatorChar ).replace( '\\', File.separatorChar );
+                if ( normalized.endsWith( File.separator ) )
+                {
+                    normalized += "**";
+                }
+            }
+            return normalized;
+        }
+    }
+
+    private Scan scanIndex( String base, Selector includes, Selector excludes )
+    {
+        final String prefix = base.length() == 0 ? "" : base + '/';
+
+        final List<String> files = new ArrayList<String>();
+        final List<String> directories = new ArrayList<String>();
+        boolean everythingIncluded = true;
+
+        // the base directory itself never affects everythingIncluded
+        if ( includes.matches( "" ) && !excludes.matches( "" ) )
+        {
+            directories.add( "" );
+        }
+
+        for ( Map.Entry<String, Entry> entry : entries.subMap( prefix, prefix + '￿' ).entrySet() )
+        {
+            final String path = entry.getKey().substring( prefix.length() ).replace( '/', File.separatorChar );
+            if ( path.length() == 0 )
+            {
+                continue;
+            }
+
+            if ( includes.matches( path ) && !excludes.matches( path ) )
+            {
+                if ( entry.getValue().getType() == Type.DIRECTORY )
+                {
+                    directories.add( path );
+                }
+                else
+                {
+                    files.add( path );
+                }
+            }
+            else
+            {
+                everythingIncluded = false;
+            }
+        }
+
+        return new Scan( files, directories, everythingIncluded );
+    }
+
+    private Scan scanDirectory( File basedir, String[] includePatterns, String[] excludePatterns )
+    {
+        final DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir( basedir );
+        scanner.setIncludes( includePatterns );
+        scanner.setExcludes( excludePatterns );
+        scanner.scan();
+
+        final List<String> files = new ArrayList<String>( Arrays.asList( scanner.getIncludedFiles() ) );
+        boolean everythingIncluded = scanner.isEverythingIncluded();
+        if ( virtualBuildroot != null )
+        {
+            for ( String file : virtualBuildroot.getFiles( basedir ) )
+            {
+                if ( VirtualBuildroot.isSelected( file, includePatterns, excludePatterns ) )
+                {
+                    files.add( file );
+                }
+                else
+                {
+                    everythingIncluded = false;
+                }
+            }
+        }
+
+        return new Scan( files, Arrays.asList( scanner.getIncludedDirectories() ), everythingIncluded );
+    }
+
+    private synchronized void put( File destination, Entry entry )
+    {
+        final String key = toKey( destination );
+        if ( key == null )
+        {
+            // e.g. the icon
+            return;
+        }
+        entries.put( key, entry );
+
+        // the parents have been created as well
+        for ( int i = key.lastIndexOf( '/' ); i > 0; i = key.lastIndexOf( '/', i - 1 ) )
+        {
+            final String parent = key.substring( 0, i );
+            if ( entries.containsKey( parent ) )
+            {
+                break;
+            }
+            entries.put( parent, PARENT );
+        }
+    }
+
+    /**
+     * Converts <i>file</i> to a path relative to the build root. The archiver passes canonical paths, so both forms of
+     * the build root are accepted.
+     *
+     * @return The relative path, {@code null} if <i>file</i> is not within the build root.
+     */
+    private String toKey( File file )
+    {
+        final String path = file.getAbsolutePath();
+        final String relative;
+        if ( path.startsWith( root ) )
+        {
+            relative = path.substring( root.length() );
+        }
+        else if ( path.startsWith( canonicalRoot ) )
+        {
+            relative = path.substring( canonicalRoot.length() );
+        }
+        else
+        {
+            return null;
+        }
+
+        final StringBuilder key = new StringBuilder( relative.length() );
+        for ( String part : relative.split( "[/\\\\]+" ) )
+        {
+            if ( part.length() > 0 && !".".equals( part ) )
+            {
+                if ( key.length() > 0 )
+                {
+                    key.append( '/' );
+                }
+                key.append( part );
+            }
+        }
+        return key.toString();
+    }
+
+    private static String getCanonicalPath( File file )
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch ( IOException e )
+        {
+            return file.getAbsolutePath();
+        }
+    }
+}
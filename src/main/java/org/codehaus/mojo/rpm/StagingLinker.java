@@ -0,0 +1,209 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Stages unfiltered files into the {@link AbstractRPMMojo#getBuildroot() build root} as hard links to their source
+ * instead of copies, falling back to a copy wherever a link cannot be used.
+ * <p>
+ * A file is copied if its source is on another file system than the build root (detected up front by comparing the
+ * devices of both, and otherwise when creating the link fails), or if the staged file needs other permissions than the
+ * source has, because changing the permissions of a link would change the source. The strategy used for each file is
+ * recorded.
+ * </p>
+ * <p>
+ * The linker is safe for use by concurrent staging threads.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class StagingLinker
+{
+    /**
+     * How a file has been staged.
+     */
+    enum Strategy
+    {
+        /** A hard link to the source. */
+        LINK,
+
+        /** A copy, because the source is on another file system. */
+        COPY_CROSS_DEVICE,
+
+        /** A copy, because the staged file needs other permissions than the source. */
+        COPY_MODE,
+
+        /** A copy, because the file system does not support hard links. */
+        COPY_UNSUPPORTED
+    }
+
+    private final Object buildrootDevice;
+
+    private final Map<File, Strategy> strategies = new ConcurrentHashMap<File, Strategy>();
+
+    private final Map<Object, Boolean> linkableDevices = new ConcurrentHashMap<Object, Boolean>();
+
+    /**
+     * @param buildroot The build root files are staged into.
+     */
+    StagingLinker( File buildroot )
+    {
+        this.buildrootDevice = getDevice( buildroot.toPath() );
+    }
+
+    /**
+     * Tries to stage <i>source</i> at <i>destination</i> as a hard link. An existing <i>destination</i> is replaced.
+     *
+     * @param source The file to stage.
+     * @param destination The location in the build root.
+     * @param mode The permissions the staged file needs.
+     * @return {@code true} if the link has been created, {@code false} if the file has to be copied.
+     * @throws IOException if the parent of <i>destination</i> cannot be created or an existing <i>destination</i>
+     *             cannot be replaced
+     */
+    boolean link( File source, File destination, int mode )
+        throws IOException
+    {
+        final Path sourcePath = source.toPath();
+        final Object device = getDevice( sourcePath );
+        if ( device != null && buildrootDevice != null && !device.equals( buildrootDevice ) )
+        {
+            return record( destination, Strategy.COPY_CROSS_DEVICE );
+        }
+        if ( device != null && Boolean.FALSE.equals( linkableDevices.get( device ) ) )
+        {
+            return record( destination, Strategy.COPY_UNSUPPORTED );
+        }
+        if ( !hasMode( sourcePath, mode ) )
+        {
+            return record( destination, Strategy.COPY_MODE );
+        }
+
+        final Path destinationPath = destination.toPath();
+        Files.createDirectories( destinationPath.getParent() );
+        Files.deleteIfExists( destinationPath );
+        try
+        {
+            Files.createLink( destinationPath, sourcePath );
+        }
+        catch ( FileSystemException e )
+        {
+            // EXDEV if the devices could not be compared, otherwise links are not supported
+            if ( device != null )
+            {
+                linkableDevices.put( device, Boolean.FALSE );
+            }
+            return record( destination, Strategy.COPY_UNSUPPORTED );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            return record( destination, Strategy.COPY_UNSUPPORTED );
+        }
+
+        return record( destination, Strategy.LINK );
+    }
+
+    /**
+     * @param destination The location in the build root.
+     * @return How <i>destination</i> has been staged, {@code null} if it has not been staged by this linker.
+     */
+    Strategy getStrategy( File destination )
+    {
+        return strategies.get( destination );
+    }
+
+    /**
+     * Logs how many files have been linked and copied.
+     *
+     * @param log The log to report to.
+     */
+    void logSummary( Log log )
+    {
+        final Map<Strategy, Integer> counts = new EnumMap<Strategy, Integer>( Strategy.class );
+        for ( Strategy strategy : strategies.values() )
+        {
+            final Integer count = counts.get( strategy );
+            counts.put( strategy, count == null ? 1 : count + 1 );
+        }
+        log.info( "Link staging: " + counts );
+    }
+
+    private boolean record( File destination, Strategy strategy )
+    {
+        strategies.put( destination, strategy );
+        return strategy == Strategy.LINK;
+    }
+
+    /**
+     * Determines if the permissions of <i>path</i> are <i>mode</i>. If permissions are not supported, the mode of the
+     * link does not matter.
+     */
+    private static boolean hasMode( Path path, int mode )
+        throws IOException
+    {
+        final Set<PosixFilePermission> permissions;
+        try
+        {
+            permissions = Files.getPosixFilePermissions( path );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            return true;
+        }
+        return FileListHelper.toMode( permissions ) == ( mode & 0777 ) && ( mode & 07000 ) == 0;
+    }
+
+    /**
+     * @return The device <i>path</i> is on, {@code null} if the device cannot be determined.
+     */
+    private static Object getDevice( Path path )
+    {
+        try
+        {
+            return Files.getAttribute( path, "unix:dev", LinkOption.NOFOLLOW_LINKS );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            return null;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return null;
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Remembers what was staged into the {@link AbstractRPMMojo#getBuildroot() build root} by the previous execution, so
+ * that files which did not change since can be left in place instead of being copied again.
+ * <p>
+ * Each staged file is recorded with the path, size, modification time, mode and sha256 of its source, whether it was
+ * filtered and a fingerprint of the filter settings. A file is up to date if the staged file is unchanged and the
+ * source has the same size and either the same modification time or the same content. Everything staged by the
+ * previous execution but not by the current one is {@link #removeStale(Log) removed}.
+ * </p>
+ * <p>
+ * The manifest is safe for use by concurrent staging threads.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class StagingManifest
+{
+    private static final String HEADER = "# rpm-maven-plugin staging manifest 1";
+
+    /** Marks a file copied from a source. */
+    private static final String TYPE_FILE = "F";
+
+    /** Marks anything else staged (directories and hard links), which is only subject to removal. */
+    private static final String TYPE_STAGED = "S";
+
+    /**
+     * A recorded staged file.
+     */
+    private static final class Record
+    {
+        final String source;
+
+        final long size;
+
+        final long lastModified;
+
+        final int mode;
+
+        final String hash;
+
+        final String filter;
+
+        final long stagedLastModified;
+
+        Record( String source, long size, long lastModified, int mode, String hash, String filter,
+                long stagedLastModified )
+        {
+            this.source = source;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mode = mode;
+            this.hash = hash;
+            this.filter = filter;
+            this.stagedLastModified = stagedLastModified;
+        }
+    }
+
+    private final File file;
+
+    private final File buildroot;
+
+    private final String canonicalRoot;
+
+    private final String filterFingerprint;
+
+    /**
+     * The records of the previous execution, keyed by path relative to the build root. Records without a source are
+     * destinations which were staged but are not files copied from a source.
+     */
+    private final Map<String, Record> previous = new HashMap<String, Record>();
+
+    private final Map<String, Record> current = new ConcurrentHashMap<String, Record>();
+
+    private final Record staged = new Record( null, 0, 0, 0, null, null, 0 );
+
+    private final AtomicInteger copied = new AtomicInteger();
+
+    private final AtomicInteger unchanged = new AtomicInteger();
+
+    /**
+     * @param file The file the manifest is persisted in.
+     * @param buildroot The build root the manifest describes.
+     * @param filterFingerprint Identifies the filter settings, filtered files are copied again if it changes.
+     * @throws IOException if the build root cannot be resolved
+     */
+    StagingManifest( File file, File buildroot, String filterFingerprint )
+        throws IOException
+    {
+        this.file = file;
+        this.buildroot = buildroot;
+        this.canonicalRoot = buildroot.getCanonicalPath();
+        this.filterFingerprint = filterFingerprint;
+    }
+
+    /**
+     * Loads the manifest of the previous execution.
+     *
+     * @return {@code true} if a manifest was loaded, {@code false} if there is none (or it cannot be used), in which
+     *         case the content of the build root is unknown.
+     */
+    boolean load()
+    {
+        if ( !file.isFile() )
+        {
+            return false;
+        }
+
+        try
+        {
+            final BufferedReader reader =
+                new BufferedReader( new InputStreamReader( new FileInputStream( file ), StandardCharsets.UTF_8 ) );
+            try
+            {
+                if ( !HEADER.equals( reader.readLine() ) )
+                {
+                    return false;
+                }
+
+                String line;
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    final String[] fields = line.split( "\t", -1 );
+                    if ( TYPE_STAGED.equals( fields[0] ) && fields.length == 2 )
+                    {
+                        previous.put( fields[1], staged );
+                    }
+                    else if ( TYPE_FILE.equals( fields[0] ) && fields.length == 9 )
+                    {
+                        previous.put( fields[1],
+                                      new Record( fields[2], Long.parseLong( fields[3] ), Long.parseLong( fields[4] ),
+                                                  Integer.parseInt( fields[5] ), fields[6], fields[7],
+                                                  Long.parseLong( fields[8] ) ) );
+                    }
+                    else
+                    {
+                        previous.clear();
+                        return false;
+                    }
+                }
+                return true;
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            previous.clear();
+            return false;
+        }
+        catch ( NumberFormatException e )
+        {
+            previous.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Determines if <i>destination</i> still holds the content of <i>source</i> from the previous execution. If so, it
+     * is recorded as staged by the current execution as well.
+     *
+     * @param source The file to copy.
+     * @param destination The location in the build root.
+     * @param mode The mode the copy would get.
+     * @param filtered Indicates if the copy is filtered.
+     * @return {@code true} if the copy can be skipped.
+     * @throws IOException if the source cannot be read
+     */
+    boolean isUpToDate( File source, File destination, int mode, boolean filtered )
+        throws IOException
+    {
+        final String key = toKey( destination );
+        final Record record = previous.get( key );
+        if ( record == null || record.source == null || !record.source.equals( source.getAbsolutePath() )
+            || record.mode != mode || !record.filter.equals( getFilter( filtered ) ) )
+        {
+            return false;
+        }
+
+        if ( !destination.isFile() || destination.lastModified() != record.stagedLastModified )
+        {
+            return false;
+        }
+
+        final long size = source.length();
+        final long lastModified = source.lastModified();
+        if ( size != record.size )
+        {
+            return false;
+        }
+
+        if ( lastModified == record.lastModified )
+        {
+            current.put( key, record );
+        }
+        else
+        {
+            // touched, but maybe not modified
+            final String hash = FileDigest.hash( source );
+            if ( !hash.equals( record.hash ) )
+            {
+                return false;
+            }
+            current.put( key, new Record( record.source, size, lastModified, mode, hash, record.filter,
+                                          record.stagedLastModified ) );
+        }
+
+        unchanged.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records that <i>source</i> has been copied to <i>destination</i>.
+     *
+     * @param source The copied file.
+     * @param destination The location in the build root.
+     * @param mode The mode of the copy.
+     * @param filtered Indicates if the copy was filtered.
+     * @throws IOException if the source cannot be read
+     */
+    void recordFile( File source, File destination, int mode, boolean filtered )
+        throws IOException
+    {
+        current.put( toKey( destination ), new Record( source.getAbsolutePath(), source.length(), source.lastModified(),
+                                                       mode, FileDigest.hash( source ), getFilter( filtered ),
+                                                       destination.lastModified() ) );
+        copied.incrementAndGet();
+    }
+
+    /**
+     * Records that <i>destination</i> has been staged by other means than copying a file, e.g. a directory or a hard
+     * link.
+     *
+     * @param destination The location in the build root.
+     */
+    void recordStaged( File destination )
+    {
+        final String key = toKey( destination );
+        if ( !current.containsKey( key ) )
+        {
+            current.put( key, staged );
+        }
+    }
+
+    /**
+     * Records the modification time of a copied file which has been changed after it was recorded (e.g. clamped for a
+     * reproducible build), so that the file is still up to date in the next execution.
+     *
+     * @param destination The location in the build root.
+     */
+    void updateStagedLastModified( File destination )
+    {
+        final String key = toKey( destination );
+        final Record record = current.get( key );
+        if ( record != null && record.source != null )
+        {
+            current.put( key, new Record( record.source, record.size, record.lastModified, record.mode, record.hash,
+                                          record.filter, destination.lastModified() ) );
+        }
+    }
+
+    /**
+     * Deletes everything staged by the previous execution which has not been staged by the current one. Directories
+     * are only deleted if they are empty.
+     *
+     * @param log The log to report to.
+     */
+    void removeStale( Log log )
+    {
+        final List<String> stale = new ArrayList<String>();
+        for ( String key : previous.keySet() )
+        {
+            if ( !current.containsKey( key ) )
+            {
+                stale.add( key );
+            }
+        }
+
+        // children sort after their parent, so this removes the content of a directory before the directory
+        Collections.sort( stale, Collections.reverseOrder() );
+
+        int removed = 0;
+        for ( String key : stale )
+        {
+            final File staleFile = new File( buildroot, key );
+            if ( staleFile.delete() )
+            {
+                ++removed;
+            }
+            else if ( staleFile.exists() && !staleFile.isDirectory() )
+            {
+                log.warn( "Unable to delete stale file " + staleFile.getAbsolutePath() );
+            }
+        }
+
+        log.info( "Incremental staging: " + copied.get() + " files copied, " + unchanged.get() + " unchanged, "
+            + removed + " stale removed" );
+    }
+
+    /**
+     * Persists the records of the current execution.
+     *
+     * @throws IOException if the manifest cannot be written
+     */
+    void save()
+        throws IOException
+    {
+        final File tmp = new File( file.getPath() + ".tmp" );
+        final Writer writer =
+            new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tmp ), StandardCharsets.UTF_8 ) );
+        try
+        {
+            writer.write( HEADER );
+            writer.write( '\n' );
+            for ( Map.Entry<String, Record> entry : current.entrySet() )
+            {
+                final Record record = entry.getValue();
+                if ( record.source == null )
+                {
+                    writer.write( TYPE_STAGED + '\t' + entry.getKey() + '\n' );
+                }
+                else
+                {
+                    writer.write( TYPE_FILE + '\t' + entry.getKey() + '\t' + record.source + '\t' + record.size + '\t'
+                        + record.lastModified + '\t' + record.mode + '\t' + record.hash + '\t' + record.filter + '\t'
+                        + record.stagedLastModified + '\n' );
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        if ( file.exists() && !file.delete() || !tmp.renameTo( file ) )
+        {
+            throw new IOException( "Unable to replace " + file.getAbsolutePath() );
+        }
+    }
+
+    private String getFilter( boolean filtered )
+    {
+        return filtered ? filterFingerprint : "-";
+    }
+
+    /**
+     * Converts <i>destination</i> to a path relative to the build root. The archiver passes canonical paths, so both
+     * forms of the build root are accepted.
+     */
+    private String toKey( File destination )
+    {
+        String path = destination.getPath();
+        final String root;
+        if ( path.startsWith( canonicalRoot ) )
+        {
+            root = canonicalRoot;
+        }
+        else
+        {
+            path = destination.getAbsolutePath();
+            root = buildroot.getAbsolutePath();
+            if ( !path.startsWith( root ) )
+            {
+                throw new IllegalArgumentException( destination + " is not within " + buildroot );
+            }
+        }
+
+        String key = path.substring( root.length() ).replace( File.separatorChar, '/' );
+        while ( key.startsWith( "/" ) )
+        {
+            key = key.substring( 1 );
+        }
+        return key;
+    }
+}
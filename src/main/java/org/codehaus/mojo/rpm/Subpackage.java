@@ -0,0 +1,210 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sub-package built from the same spec file as the main package, written as a <i>%package</i> section. It owns its
+ * own {@link Mapping mappings}, which are staged into the build root shared with the main package, and gets its own
+ * <i>%files</i> section. rpmbuild writes it as <code><i>name</i>-<i>subpackage name</i></code>.
+ *
+ * @since 2.3.1
+ */
+public class Subpackage
+{
+    /** The name, appended to the name of the main package. */
+    private String name;
+
+    /** The summary, the one of the main package if not set. */
+    private String summary;
+
+    /** The description, the summary if not set. */
+    private String description;
+
+    /** The group, the one of the main package if not set. */
+    private String group;
+
+    /** The capabilities required. */
+    private List<String> requires;
+
+    /** The capabilities provided. */
+    private List<String> provides;
+
+    /** The capabilities conflicting. */
+    private List<String> conflicts;
+
+    /** The capabilities obsoleted. */
+    private List<String> obsoletes;
+
+    /** The mappings of the files packaged. */
+    private List<Mapping> mappings = Collections.emptyList();
+
+    /**
+     * @return Returns the {@link #name}.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @param name The {@link #name} to set.
+     */
+    public void setName( String name )
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return Returns the {@link #summary}.
+     */
+    public String getSummary()
+    {
+        return summary;
+    }
+
+    /**
+     * @param summary The {@link #summary} to set.
+     */
+    public void setSummary( String summary )
+    {
+        this.summary = summary;
+    }
+
+    /**
+     * @return Returns the {@link #description}.
+     */
+    public String getDescription()
+    {
+        return description;
+    }
+
+    /**
+     * @param description The {@link #description} to set.
+     */
+    public void setDescription( String description )
+    {
+        this.description = description;
+    }
+
+    /**
+     * @return Returns the {@link #group}.
+     */
+    public String getGroup()
+    {
+        return group;
+    }
+
+    /**
+     * @param group The {@link #group} to set.
+     */
+    public void setGroup( String group )
+    {
+        this.group = group;
+    }
+
+    /**
+     * @return Returns the {@link #requires}.
+     */
+    public List<String> getRequires()
+    {
+        return requires;
+    }
+
+    /**
+     * @param requires The {@link #requires} to set.
+     */
+    public void setRequires( List<String> requires )
+    {
+        this.requires = requires;
+    }
+
+    /**
+     * @return Returns the {@link #provides}.
+     */
+    public List<String> getProvides()
+    {
+        return provides;
+    }
+
+    /**
+     * @param provides The {@link #provides} to set.
+     */
+    public void setProvides( List<String> provides )
+    {
+        this.provides = provides;
+    }
+
+    /**
+     * @return Returns the {@link #conflicts}.
+     */
+    public List<String> getConflicts()
+    {
+        return conflicts;
+    }
+
+    /**
+     * @param conflicts The {@link #conflicts} to set.
+     */
+    public void setConflicts( List<String> conflicts )
+    {
+        this.conflicts = conflicts;
+    }
+
+    /**
+     * @return Returns the {@link #obsoletes}.
+     */
+    public List<String> getObsoletes()
+    {
+        return obsoletes;
+    }
+
+    /**
+     * @param obsoletes The {@link #obsoletes} to set.
+     */
+    public void setObsoletes( List<String> obsoletes )
+    {
+        this.obsoletes = obsoletes;
+    }
+
+    /**
+     * @return Returns the {@link #mappings}, never {@code null}.
+     */
+    public List<Mapping> getMappings()
+    {
+        return mappings != null ? mappings : Collections.<Mapping>emptyList();
+    }
+
+    /**
+     * @param mappings The {@link #mappings} to set.
+     */
+    public void setMappings( List<Mapping> mappings )
+    {
+        this.mappings = mappings;
+    }
+
+    /** {@inheritDoc} */
+    public String toString()
+    {
+        return "[Subpackage name=" + name + " mappings=" + getMappings().size() + "]";
+    }
+}
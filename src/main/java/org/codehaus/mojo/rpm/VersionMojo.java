@@ -89,12 +89,35 @@ public class VersionMojo
     @Parameter( required = true, defaultValue = "rpm.release" )
     private String releaseProperty;
 
+    /**
+     * Indicates if the timestamp appended to the release of <i>SNAPSHOT</i> versions is taken from the
+     * <code>SOURCE_DATE_EPOCH</code> environment variable or the {@link #outputTimestamp} instead of the time of the
+     * build, the same as for a reproducible package.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( property = "rpm.reproducible", defaultValue = "false" )
+    private boolean reproducible;
+
+    /**
+     * The timestamp of a {@link #reproducible} build, in seconds since the epoch or as ISO 8601 date and time with
+     * offset.
+     *
+     * @since 2.3.1
+     */
+    @Parameter( defaultValue = "${project.build.outputTimestamp}" )
+    private String outputTimestamp;
+
+    private Date reproducibleTimestamp;
+
     /**
      * {@inheritDoc}
      */
     public void execute()
         throws MojoExecutionException, MojoFailureException
     {
+        reproducibleTimestamp = reproducible ? SourceDateEpoch.resolve( outputTimestamp ) : null;
+
         VersionHelper.Version version = new VersionHelper( this ).calculateVersion();
 
         setProperty( versionProperty, version.version );
@@ -126,6 +149,6 @@ public class VersionMojo
 
     public Date getBuildTimestamp()
     {
-        return session.getStartTime();
+        return reproducibleTimestamp != null ? reproducibleTimestamp : session.getStartTime();
     }
 }
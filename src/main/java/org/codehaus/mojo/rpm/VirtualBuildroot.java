@@ -0,0 +1,224 @@
+package org.codehaus.mojo.rpm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * The manifest of files which are part of the {@link AbstractRPMMojo#getBuildroot() build root} without having been
+ * copied into it. Each entry maps the destination in the build root to the original file, whose content is streamed
+ * directly into the payload by the {@link RPMPackageWriter}.
+ * <p>
+ * Directories and filtered files are still staged on disk. The owner of a virtual file is determined from its
+ * {@link Mapping} when the file list is built, the same as for staged files.
+ * </p>
+ * <p>
+ * The manifest is safe for use by concurrent staging threads.
+ * </p>
+ *
+ * @since 2.3.1
+ */
+final class VirtualBuildroot
+{
+    /**
+     * A file recorded in the manifest.
+     */
+    static final class Entry
+    {
+        private final File origin;
+
+        private final int mode;
+
+        Entry( File origin, int mode )
+        {
+            this.origin = origin;
+            this.mode = mode;
+        }
+
+        /**
+         * @return The file providing the content.
+         */
+        File getOrigin()
+        {
+            return origin;
+        }
+
+        /**
+         * @return The permissions the file would have had if copied.
+         */
+        int getMode()
+        {
+            return mode;
+        }
+    }
+
+    private final String root;
+
+    /**
+     * The entries keyed by path relative to the build root, using '/' as separator.
+     */
+    private final SortedMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * @param buildroot The build root the destinations are in.
+     */
+    VirtualBuildroot( File buildroot )
+    {
+        this.root = buildroot.getAbsolutePath();
+    }
+
+    /**
+     * Records that <i>origin</i> is installed at <i>destination</i>. A file already staged at the destination is
+     * replaced, the same as if <i>origin</i> had been copied.
+     *
+     * @param destination The destination in the build root.
+     * @param origin The file providing the content.
+     * @param mode The permissions of the file.
+     */
+    synchronized void add( File destination, File origin, int mode )
+    {
+        if ( destination.isFile() )
+        {
+            destination.delete();
+        }
+        entries.put( toKey( destination ), new Entry( origin, mode ) );
+    }
+
+    /**
+     * Removes the entry for <i>destination</i>, because a file has been staged there.
+     *
+     * @param destination The destination in the build root.
+     */
+    synchronized void remove( File destination )
+    {
+        entries.remove( toKey( destination ) );
+    }
+
+    /**
+     * @param destination The destination in the build root.
+     * @return The entry for <i>destination</i> or {@code null} if there is none.
+     */
+    synchronized Entry get( File destination )
+    {
+        return entries.get( toKey( destination ) );
+    }
+
+    /**
+     * @return The number of files in the manifest.
+     */
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return The combined size of all files in the manifest.
+     */
+    synchronized long getLength()
+    {
+        long length = 0;
+        for ( Entry entry : entries.values() )
+        {
+            length += entry.getOrigin().length();
+        }
+        return length;
+    }
+
+    /**
+     * Lists the files below <i>directory</i>.
+     *
+     * @param directory The directory in the build root.
+     * @return The paths of the files, relative to <i>directory</i> using the platform separator (the same as
+     *         {@link org.codehaus.plexus.util.DirectoryScanner#getIncludedFiles()}).
+     */
+    synchronized List<String> getFiles( File directory )
+    {
+        final String key = toKey( directory );
+        final String prefix = key.length() == 0 ? "" : key + '/';
+
+        final List<String> files = new ArrayList<String>();
+        for ( Map.Entry<String, Entry> entry : entries.subMap( prefix, prefix + '￿' ).entrySet() )
+        {
+            files.add( entry.getKey().substring( prefix.length() ).replace( '/', File.separatorChar ) );
+        }
+        return files;
+    }
+
+    /**
+     * Determines if the relative <i>path</i> is selected by the patterns, using the same rules as
+     * {@link org.codehaus.plexus.util.DirectoryScanner}.
+     *
+     * @param path The path as returned by {@link #getFiles(File)}.
+     * @param includes The include patterns or {@code null} to include everything.
+     * @param excludes The exclude patterns or {@code null}.
+     * @return {@code true} if <i>path</i> is included and not excluded.
+     */
+    static boolean isSelected( String path, String[] includes, String[] excludes )
+    {
+        return ( includes == null || matches( path, includes ) ) && ( excludes == null || !matches( path, excludes ) );
+    }
+
+    private static boolean matches( String path, String[] patterns )
+    {
+        for ( String pattern : patterns )
+        {
+            String normalized = pattern.replace( '/', File.separatorChar ).replace( '\\', File.separatorChar );
+            if ( normalized.endsWith( File.separator ) )
+            {
+                normalized += "**";
+            }
+            if ( SelectorUtils.matchPath( normalized, path, true ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String toKey( File file )
+    {
+        final String path = file.getAbsolutePath();
+        if ( !path.startsWith( root ) )
+        {
+            throw new IllegalArgumentException( file + " is not within " + root );
+        }
+
+        final StringBuilder key = new StringBuilder( path.length() - root.length() );
+        for ( String part : path.substring( root.length() ).split( "[/\\\\]+" ) )
+        {
+            if ( part.length() > 0 )
+            {
+                if ( key.length() > 0 )
+                {
+                    key.append( '/' );
+                }
+                key.append( part );
+            }
+        }
+        return key.toString();
+    }
+}